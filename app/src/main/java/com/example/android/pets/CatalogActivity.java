@@ -2,8 +2,8 @@ package com.example.android.pets;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -12,25 +12,60 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements PetPageLoader.Listener,
+        PetAdapter.OnPetClickListener, LoaderManager.LoaderCallbacks<Cursor>,
+        PetGeneratorTask.Listener, PetDeleteAllTask.Listener {
 
-    private final int PET_LOADER = 1;
+    private final int SEARCH_LOADER = 1;
 
-    ListView mListView;
-    PetCursorAdapter mCursorAdapter;
-    Cursor mCursor;
+    /** key for the search text in the loader's bundle */
+    private static final String ARG_QUERY = "query";
+
+    /** Most search results shown in the list */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Seed for the generated pets, fixed so every run inserts the same pets */
+    private static final long GENERATOR_SEED = 845;
+
+    /** Page sort keys for the options of the sort dialog, and whether each one is descending */
+    private static final String[] SORT_KEYS = {PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT, PetEntry._ID};
+    private static final boolean[] SORT_DESCENDING = {false, false, true};
+
+    RecyclerView mRecyclerView;
+    View mEmptyView;
+    PetAdapter mAdapter;
+    PetPageLoader mPageLoader;
+    PetGeneratorTask mGeneratorTask;
+    ProgressDialog mGeneratorProgress;
+    PetDeleteAllTask mDeleteTask;
+    ProgressDialog mDeleteProgress;
+
+    /** the chosen sort option, -1 for the order the pets were added in */
+    int mSort = -1;
+
+    /** the chosen filter, null for no filter on that column */
+    Integer mFilterGender;
+    String mFilterBreed;
+    Integer mFilterMinWeight;
+    Integer mFilterMaxWeight;
 
 
     @Override
@@ -48,28 +83,82 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        mListView = (ListView)findViewById(R.id.pets_list_view);
-        View emptyView = findViewById(R.id.empty_view);
-        mListView.setEmptyView(emptyView);
+        mRecyclerView = (RecyclerView) findViewById(R.id.pets_list_view);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // set up the adaptor to a new petCursorAdapter, set it to null for now will be occupied by the cursorLoader
-        mCursorAdapter = new PetCursorAdapter(this, null);
+        // set up the adaptor to a new petAdapter, it shows the pages as the pageLoader brings them in
+        // and the search results while the search view is open
+        mAdapter = new PetAdapter(this, PetThumbnails.get(this));
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
 
-        //set the listView's adapter to the new petCursorAdapter
-        mListView.setAdapter(mCursorAdapter);
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
 
-        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
-                intent.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
-                startActivity(intent);
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
             }
         });
 
-        //initialize the cursor loader
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+        //set the recyclerView's adapter to the new petAdapter
+        mRecyclerView.setAdapter(mAdapter);
+
+        //initialize the page loader - pages are loaded in the background as the list scrolls
+        startPageLoader();
+
+    }
+
+    /**
+     * Page through the pets with the chosen sort and filter, replacing the loader of the last
+     * choice. The provider only accepts the sorts and filters it has an index for, which are the
+     * ones the dialogs offer.
+     */
+    private void startPageLoader() {
+        if (mPageLoader != null) mPageLoader.close();
+        boolean showingCatalog = mPageLoader == null || isShowingCatalog();
+        String sortKey = mSort == -1 ? PetEntry._ID : SORT_KEYS[mSort];
+        boolean descending = mSort != -1 && SORT_DESCENDING[mSort];
+        Uri baseUri = PetEntry.buildFilterUri(mFilterGender, mFilterBreed, mFilterMinWeight,
+                mFilterMaxWeight, descending);
+        mPageLoader = new PetPageLoader(getContentResolver(), baseUri, getProjection(), sortKey, this);
+        // while searching the new pages wait until the search view is closed
+        if (showingCatalog) mAdapter.setSource(mPageLoader);
+        mPageLoader.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPageLoader.close();
+        if (mGeneratorTask != null) {
+            mGeneratorTask.detach();
+            mGeneratorTask.cancel(false);
+        }
+        if (mGeneratorProgress != null) mGeneratorProgress.dismiss();
+        if (mDeleteTask != null) {
+            mDeleteTask.detach();
+            mDeleteTask.cancel(false);
+        }
+        if (mDeleteProgress != null) mDeleteProgress.dismiss();
+    }
 
+    /** show the empty shelter when there is nothing in the list */
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    public void onPetClick(long id) {
+        Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+        intent.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        startActivity(intent);
     }
 
     private String genderToString(int genderNum){
@@ -92,9 +181,47 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        setupSearch(menu.findItem(R.id.action_search));
         return true;
     }
 
+    /**
+     * Set up the search action - every change to the text restarts the search loader and the
+     * list shows the results until the search view is closed again.
+     */
+    private void setupSearch(MenuItem searchItem) {
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return onQueryTextChange(query);
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                Bundle args = new Bundle();
+                args.putString(ARG_QUERY, newText);
+                getLoaderManager().restartLoader(SEARCH_LOADER, args, CatalogActivity.this);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                mAdapter.setSource(PetRows.EMPTY);
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                getLoaderManager().destroyLoader(SEARCH_LOADER);
+                mAdapter.setSource(mPageLoader);
+                return true;
+            }
+        });
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -102,7 +229,13 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 // insert a dummy pet into the database
-                insertDummyData();
+                showGenerateDialog();
+                return true;
+            case R.id.action_sort:
+                showSortDialog();
+                return true;
+            case R.id.action_filter:
+                showFilterDialog();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
@@ -138,28 +271,233 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         alertDialog.show();
     }
 
+    /** delete every pet in the background a chunk at a time, then tidy the database when idle */
     private void deletePets(){
-        getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        if (mDeleteTask != null) return;
+        mDeleteProgress = new ProgressDialog(this);
+        mDeleteProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDeleteProgress.setMessage(getString(R.string.delete_all_progress));
+        mDeleteProgress.setCancelable(false);
+        mDeleteProgress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mDeleteTask != null) mDeleteTask.cancel(false);
+                    }
+                });
+        mDeleteProgress.show();
+
+        mDeleteTask = new PetDeleteAllTask(getContentResolver(), this);
+        mDeleteTask.execute();
+    }
+
+    @Override
+    public void onDeleteProgress(int deleted, int count) {
+        mDeleteProgress.setMax(count);
+        mDeleteProgress.setProgress(deleted);
+    }
+
+    @Override
+    public void onDeleteFinished(int deleted, long elapsedMs, boolean cancelled) {
+        mDeleteTask = null;
+        mDeleteProgress.dismiss();
+        mDeleteProgress = null;
+        String message = cancelled
+                ? getString(R.string.delete_all_cancelled, deleted)
+                : getString(R.string.delete_all_finished, deleted, elapsedMs);
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        // the deleted pets leave free pages behind, give them back once the device is idle
+        if (deleted > 0) PetMaintenance.schedule(this);
+    }
+
+    private void showSortDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_sort);
+        builder.setSingleChoiceItems(R.array.array_sort_options, mSort, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+                if (which == mSort) return;
+                mSort = which;
+                startPageLoader();
+            }
+        });
+        builder.create().show();
+    }
+
+    private void showFilterDialog() {
+        final View view = getLayoutInflater().inflate(R.layout.dialog_filter, null);
+        final Spinner genderSpinner = (Spinner) view.findViewById(R.id.filter_gender);
+        final EditText breedText = (EditText) view.findViewById(R.id.filter_breed);
+        final EditText minWeightText = (EditText) view.findViewById(R.id.filter_min_weight);
+        final EditText maxWeightText = (EditText) view.findViewById(R.id.filter_max_weight);
+
+        ArrayAdapter genderAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_filter_gender_options, android.R.layout.simple_spinner_item);
+        genderAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        genderSpinner.setAdapter(genderAdapter);
+        // the first option is any gender, the rest are the GENDER_ values in order
+        genderSpinner.setSelection(mFilterGender == null ? 0 : mFilterGender + 1);
+        if (mFilterBreed != null) breedText.setText(mFilterBreed);
+        if (mFilterMinWeight != null) minWeightText.setText(String.valueOf(mFilterMinWeight));
+        if (mFilterMaxWeight != null) maxWeightText.setText(String.valueOf(mFilterMaxWeight));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_dialog_title);
+        builder.setView(view);
+        // the apply listener is set once the dialog shows, a builder listener would always dismiss it
+        builder.setPositiveButton(R.string.filter_apply, null);
+        builder.setNegativeButton(R.string.filter_clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                setFilter(null, null, null, null);
+            }
+        });
+        final AlertDialog dialog = builder.create();
+        dialog.setOnShowListener(new DialogInterface.OnShowListener() {
+            @Override
+            public void onShow(DialogInterface dialogInterface) {
+                dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v) {
+                        int genderPosition = genderSpinner.getSelectedItemPosition();
+                        Integer gender = genderPosition <= 0 ? null : genderPosition - 1;
+                        String breed = breedText.getText().toString().trim();
+                        // keep the dialog open so the choice can be fixed rather than typed again
+                        if (gender != null && !breed.isEmpty()) {
+                            Toast.makeText(CatalogActivity.this, R.string.filter_gender_or_breed, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        dialog.dismiss();
+                        setFilter(gender, breed.isEmpty() ? null : breed,
+                                parseWeight(minWeightText), parseWeight(maxWeightText));
+                    }
+                });
+            }
+        });
+        dialog.show();
+    }
+
+    private void setFilter(Integer gender, String breed, Integer minWeight, Integer maxWeight) {
+        mFilterGender = gender;
+        mFilterBreed = breed;
+        mFilterMinWeight = minWeight;
+        mFilterMaxWeight = maxWeight;
+        startPageLoader();
+    }
+
+    /** the weight typed in the field, null when it is empty or not a number */
+    private static Integer parseWeight(EditText field) {
+        try {
+            return Integer.parseInt(field.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** ask how many pets to make up, then insert them in the background */
+    private void showGenerateDialog() {
+        if (mGeneratorTask != null) return;
+        final int[] counts = getResources().getIntArray(R.array.generate_counts);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.generate_dialog_title);
+        builder.setItems(R.array.generate_count_labels, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                insertDummyData(counts[which]);
+            }
+        });
+        builder.create().show();
     }
 
-    private void insertDummyData(){
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+    private void insertDummyData(int count){
+        mGeneratorProgress = new ProgressDialog(this);
+        mGeneratorProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mGeneratorProgress.setMessage(getString(R.string.generate_progress));
+        mGeneratorProgress.setMax(count);
+        mGeneratorProgress.setCancelable(false);
+        mGeneratorProgress.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mGeneratorTask != null) mGeneratorTask.cancel(false);
+                    }
+                });
+        mGeneratorProgress.show();
 
-        getContentResolver().insert(PetEntry.CONTENT_URI, values);
+        mGeneratorTask = new PetGeneratorTask(getContentResolver(), count, GENERATOR_SEED, this);
+        mGeneratorTask.execute();
     }
 
+    @Override
+    public void onGeneratorProgress(int inserted, int count) {
+        mGeneratorProgress.setProgress(inserted);
+    }
+
+    @Override
+    public void onGeneratorFinished(int inserted, long elapsedMs, boolean cancelled) {
+        mGeneratorTask = null;
+        mGeneratorProgress.dismiss();
+        mGeneratorProgress = null;
+        String message = cancelled
+                ? getString(R.string.generate_cancelled, inserted)
+                : getString(R.string.generate_finished, inserted, elapsedMs);
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+
+
+    /**
+     * function to get the projection array - in this case it is simple...
+     * @return
+     */
+    private String[] getProjection(){
+        // the weight is there for the page loader, which needs the sort key of each page's last row.
+        // the photo is only its file name, the thumbnails are loaded separately
+        return new String[]{
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO};
+    }
+
+    /** the page loader's changes only go to the adapter while it is showing the catalog */
+    private boolean isShowingCatalog() {
+        return mAdapter.getSource() == mPageLoader;
+    }
+
+    @Override
+    public void onInserted(int position, int count) {
+        if (isShowingCatalog()) mAdapter.notifyItemRangeInserted(position, count);
+    }
+
+    @Override
+    public void onRemoved(int position, int count) {
+        if (isShowingCatalog()) mAdapter.notifyItemRangeRemoved(position, count);
+    }
+
+    @Override
+    public void onMoved(int fromPosition, int toPosition) {
+        if (isShowingCatalog()) mAdapter.notifyItemMoved(fromPosition, toPosition);
+    }
+
+    @Override
+    public void onChanged(int position, int count, Object payload) {
+        if (isShowingCatalog()) mAdapter.notifyItemRangeChanged(position, count, payload);
+    }
+
+    @Override
+    public void onReset() {
+        if (isShowingCatalog()) mAdapter.notifyDataSetChanged();
+    }
 
     @Override
     public Loader<Cursor> onCreateLoader(int loaderId, Bundle bundle) {
         switch (loaderId){
-            case PET_LOADER:
+            case SEARCH_LOADER:
                 return new CursorLoader(
                         CatalogActivity.this,
-                        PetEntry.CONTENT_URI,
+                        PetEntry.buildSearchUri(bundle.getString(ARG_QUERY), SEARCH_LIMIT),
                         getProjection(),
                         null,
                         null,
@@ -170,24 +508,15 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         }
     }
 
-    /**
-     * function to get the projection array - in this case it is simple...
-     * @return
-     */
-    private String[] getProjection(){
-        return new String[]{
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_NAME,};
-    }
-
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
-        mCursorAdapter.swapCursor(cursor);
+        // the search view may have been closed while the results were loading
+        if (isShowingCatalog()) return;
+        mAdapter.setSource(PetRows.from(cursor));
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        mCursorAdapter.swapCursor(null);
+        if (!isShowingCatalog()) mAdapter.setSource(PetRows.EMPTY);
     }
 }
\ No newline at end of file
@@ -17,9 +17,11 @@ package com.example.android.pets;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
-import android.content.ContentValues;
+import android.content.ContentUris;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
@@ -34,10 +36,13 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetRecord;
+import com.example.android.pets.data.PetWriteQueue;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -47,6 +52,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** Final number for the pet loader is the same as catalog activity */
     private final int PET_EDITOR_LOADER = 2;
 
+    /** Request code for picking a photo */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
+    /** Key the picked photo is saved under when the editor is recreated */
+    private static final String STATE_PICKED_PHOTO = "picked_photo";
+
     /** Member variable for the uri will be provided by intent */
     private Uri mCurrentPetUri;
 
@@ -62,6 +73,13 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** EditText field to enter the pet's gender */
     private Spinner mGenderSpinner;
 
+    /** The pet's photo, tapping it picks a new one */
+    private ImageView mPhotoView;
+    private int mPhotoSize;
+
+    /** Photo picked to replace the pet's photo on save, null if none was picked */
+    private Uri mPickedPhoto;
+
     /** boolean to check if any data has been entered - to be used for whether a dialog should be shown */
     private boolean mPetHasChanged = false;
 
@@ -71,6 +89,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      */
     private int mGender = 0;
 
+    /** Writes the pet in the background, the record is copied when queued and reused for every save */
+    private PetWriteQueue mWriteQueue;
+    private final PetRecord mPetRecord = new PetRecord();
+
+    /** The pet as it was loaded in edit mode, a save only writes the fields that differ from it */
+    private final PetRecord mLoadedPet = new PetRecord();
+    private boolean mPetLoaded = false;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -81,6 +107,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
+        mPhotoView = (ImageView) findViewById(R.id.edit_pet_photo);
+        mPhotoSize = getResources().getDimensionPixelSize(R.dimen.editor_photo_size);
+        mPhotoView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
 
         mNameEditText.setOnTouchListener(mTouchListener);
         mBreedEditText.setOnTouchListener(mTouchListener);
@@ -103,6 +137,41 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
 
         setupSpinner();
+        mWriteQueue = PetWriteQueue.get(this);
+
+        if (savedInstanceState != null) {
+            mPickedPhoto = savedInstanceState.getParcelable(STATE_PICKED_PHOTO);
+            if (mPickedPhoto != null) showPickedPhoto();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PICKED_PHOTO, mPickedPhoto);
+    }
+
+    /** let the user choose an image for the photo, it is only saved along with the pet */
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            startActivityForResult(intent, REQUEST_PICK_PHOTO);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_PICK_PHOTO || resultCode != RESULT_OK || data == null
+                || data.getData() == null) return;
+        mPickedPhoto = data.getData();
+        mPetHasChanged = true;
+        showPickedPhoto();
+    }
+
+    private void showPickedPhoto() {
+        PetThumbnails.get(this).load(mPhotoView, mPickedPhoto, mPickedPhoto.toString(), mPhotoSize);
     }
 
     /**
@@ -208,8 +277,11 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String petName = mNameEditText.getText().toString().trim();
         String petBreed = mBreedEditText.getText().toString().trim();
 
-        // if breed is empty add default text Breed Unkown
-        if (petBreed.isEmpty()) petBreed = getString(R.string.breed_unknown);
+        // if breed is empty add default text Breed Unkown, unless the pet was loaded without a
+        // breed and the field was left empty - then it is not a change
+        if (petBreed.isEmpty()) {
+            petBreed = mPetLoaded && mLoadedPet.breed == null ? null : getString(R.string.breed_unknown);
+        }
 
         //get the gender was already set in the spinner
         int petGender = mGender;
@@ -219,37 +291,75 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             Toast.makeText(this, getString(R.string.invalid_entries_database_add_toast), Toast.LENGTH_SHORT).show();
             return;
         }
-        //create a ContentValues object occupied by those contents
-        ContentValues values = setUpValues(petName, petBreed, petGender, petWeight);
-        // Uri object to determine if insert/update was succesfull
-        Uri uri = null;
-        int row = -1;
+        //fill in the record with those contents
+        mPetRecord.set(petName, petBreed, petGender, petWeight);
 
-        //if this is an insert will insert a new pet using the contentResolver
+        //the write is queued and the editor closes straight away, so the toast is shown up front
+        //and a write that fails later is reported by the SaveCallback
         if (mCurrentPetUri == null){
-            uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-            //display the id to the user
-            if (uri != null) Toast.makeText(this, getString(R.string.successfull_database_add_toast) , Toast.LENGTH_SHORT).show();
+            mWriteQueue.insert(mPetRecord, new SaveCallback(this, true, mPickedPhoto));
+            Toast.makeText(this, getString(R.string.successfull_database_add_toast), Toast.LENGTH_SHORT).show();
         }
-        // If in edit moder will update the pet using the petUri, where and selectionArgs are null as
-        // using a uri with an id will set it up for us
+        // If in edit mode will update the pet with the id from the petUri, writing only the
+        // fields that changed - or nothing at all if none did
         else {
-            row = getContentResolver().update(mCurrentPetUri, values, null, null);
-            if (row != -1) Toast.makeText(this, "Pet updated", Toast.LENGTH_SHORT);
+            mPetRecord.id = ContentUris.parseId(mCurrentPetUri);
+            int dirty = mPetLoaded ? mPetRecord.diff(mLoadedPet) : PetRecord.ALL_COLUMNS;
+            if (dirty == 0) {
+                if (mPickedPhoto == null) {
+                    Toast.makeText(this, getString(R.string.editor_no_changes_toast), Toast.LENGTH_SHORT).show();
+                } else {
+                    // only the photo changed, so there is no record to write first
+                    new PetPhotoSaveTask(this, mPickedPhoto, mPetRecord.id, petName).start();
+                    mPickedPhoto = null;
+                    Toast.makeText(this, getString(R.string.editor_update_pet_toast), Toast.LENGTH_SHORT).show();
+                }
+                return;
+            }
+            mWriteQueue.update(mPetRecord, dirty, new SaveCallback(this, false, mPickedPhoto));
+            mLoadedPet.set(mPetRecord);
+            mPickedPhoto = null;
+            Toast.makeText(this, getString(R.string.editor_update_pet_toast), Toast.LENGTH_SHORT).show();
         }
-        if (uri == null && row == -1) Toast.makeText(this, getString(R.string.unsuccessfull_database_add_toast), Toast.LENGTH_SHORT).show();
-
     }
 
-    /** simple function to set up a contentValues for the query */
-    private ContentValues setUpValues(String name, String breed, int gender, int weight){
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, name);
-        values.put(PetEntry.COLUMN_PET_BREED, breed);
-        values.put(PetEntry.COLUMN_PET_GENDER, gender);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+    /**
+     * Reports a save that failed after the editor closed, and saves the picked photo once the pet
+     * it belongs to has been written. Only holds the application context so the finished editor
+     * is not kept alive by a write waiting in the queue.
+     */
+    private static class SaveCallback implements PetWriteQueue.Callback {
+        private final Context mContext;
+        private final boolean mInsert;
+        private final Uri mPhoto;
+
+        SaveCallback(Context context, boolean insert, Uri photo) {
+            mContext = context.getApplicationContext();
+            mInsert = insert;
+            mPhoto = photo;
+        }
+
+        @Override
+        public void onWriteFinished(PetRecord pet, long result) {
+            // an update that changed no rows means the pet was deleted before it was written
+            if (!mInsert && result == 0) {
+                showFailure(pet);
+            } else if (mPhoto != null) {
+                // a new pet only has an id to hang the photo on now
+                new PetPhotoSaveTask(mContext, mPhoto, pet.id, pet.name).start();
+            }
+        }
+
+        @Override
+        public void onWriteFailed(PetRecord pet, Exception error) {
+            showFailure(pet);
+        }
 
-        return values;
+        private void showFailure(PetRecord pet) {
+            int message = mInsert ? R.string.editor_insert_pet_failed_toast
+                    : R.string.editor_update_pet_failed_toast;
+            Toast.makeText(mContext, mContext.getString(message, pet.name), Toast.LENGTH_LONG).show();
+        }
     }
 
     /** function to get the weight of the pet, will return null if it is empty or not an integer
@@ -393,7 +503,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
                 PetEntry.COLUMN_PET_BREED,
                 PetEntry.COLUMN_PET_NAME,
                 PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT};
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO};
     }
 
     @Override
@@ -416,6 +527,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int gender = cursor.getInt(cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER));
             mGenderSpinner.setSelection(gender);
 
+            //remember the pet as loaded to tell which fields a save changes
+            mLoadedPet.set(cursor.getString(nameIndex), cursor.getString(breedIndex), gender,
+                    cursor.getInt(weightIndex));
+            mPetLoaded = true;
+
+            //show the pet's photo, unless one has been picked to replace it
+            if (mPickedPhoto == null) {
+                String photo = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO));
+                PetThumbnails.get(this).load(mPhotoView, ContentUris.parseId(mCurrentPetUri), photo, mPhotoSize);
+            }
+
         }
     }
 
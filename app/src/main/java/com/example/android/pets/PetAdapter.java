@@ -0,0 +1,119 @@
+package com.example.android.pets;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * {@link PetAdapter} is a {@link RecyclerView} adapter for the catalog list. It binds the pets
+ * of a {@link Source} - the paged catalog or a set of search results - into list items whose
+ * views are looked up once by their {@link PetViewHolder}. Photo thumbnails come from
+ * {@link PetThumbnails} and load in the background while the rest of the row shows.
+ */
+public class PetAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder> {
+
+    /** The rows the adapter shows */
+    public interface Source {
+        int getCount();
+
+        /** false while the row is still loading, the getters can only be called once it is true */
+        boolean isLoaded(int position);
+
+        long getId(int position);
+
+        String getName(int position);
+
+        String getBreed(int position);
+
+        /** The pet's photo column, null if it has no photo */
+        String getPhoto(int position);
+    }
+
+    /** Callback for a pet in the list being clicked */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final OnPetClickListener mClickListener;
+    private final PetThumbnails mThumbnails;
+    private Source mSource;
+
+    /** Width and height of the thumbnails in pixels, read when the first view is made */
+    private int mThumbnailSize;
+
+    public PetAdapter(OnPetClickListener clickListener, PetThumbnails thumbnails) {
+        mClickListener = clickListener;
+        mThumbnails = thumbnails;
+    }
+
+    /** Show the rows of another source, every row is bound again */
+    public void setSource(Source source) {
+        mSource = source;
+        notifyDataSetChanged();
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSource == null ? 0 : mSource.getCount();
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        if (mThumbnailSize == 0) {
+            mThumbnailSize = parent.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        }
+        return new PetViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        if (mSource.isLoaded(position)) {
+            holder.mId = mSource.getId(position);
+            holder.mNameTextView.setText(mSource.getName(position));
+            holder.mSummaryTextView.setText(mSource.getBreed(position));
+            mThumbnails.load(holder.mPhotoView, holder.mId, mSource.getPhoto(position), mThumbnailSize);
+        } else {
+            // the row's page is still on its way, it is bound again once it arrives
+            holder.mId = -1;
+            holder.mNameTextView.setText(null);
+            holder.mSummaryTextView.setText(null);
+            mThumbnails.load(holder.mPhotoView, -1, null, mThumbnailSize);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(PetViewHolder holder) {
+        // a row scrolled off screen no longer needs its thumbnail
+        mThumbnails.cancel(holder.mPhotoView);
+    }
+
+    /** Holds the views of one list item so they are only found once */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView mNameTextView;
+        final TextView mSummaryTextView;
+        final ImageView mPhotoView;
+        long mId = -1;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mSummaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            mPhotoView = (ImageView) itemView.findViewById(R.id.photo);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            // nothing to open until the row has loaded
+            if (mId != -1) mClickListener.onPetClick(mId);
+        }
+    }
+}
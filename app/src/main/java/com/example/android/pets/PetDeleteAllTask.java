@@ -0,0 +1,96 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+/**
+ * Deletes every pet on a background thread a chunk at a time. Each chunk is its own short
+ * transaction, so the editor and the importers get the write lock between chunks instead of
+ * waiting for the whole table to go. Progress is reported after every chunk and a cancel takes
+ * effect at the next one, the pets not reached yet are kept.
+ */
+public class PetDeleteAllTask extends AsyncTask<Void, Integer, Integer> {
+
+    /** Callback on the main thread */
+    public interface Listener {
+        void onDeleteProgress(int deleted, int count);
+
+        /** @param cancelled true if the task was cancelled before all the pets were deleted */
+        void onDeleteFinished(int deleted, long elapsedMs, boolean cancelled);
+    }
+
+    private final ContentResolver mResolver;
+    private Listener mListener;
+
+    private long mStart;
+    private int mCount;
+    private volatile int mDeleted;
+
+    public PetDeleteAllTask(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+    }
+
+    /** Stop reporting to the listener, for when it is going away */
+    public void detach() {
+        mListener = null;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        mStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        // the stats table has the count without scanning the pets, it is only for the progress so
+        // pets added while the task runs are deleted too even though they push it past the count
+        mCount = countPets();
+        while (!isCancelled()) {
+            Bundle result = mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_DELETE_CHUNK,
+                    null, null);
+            int deleted = result.getInt(PetContract.KEY_DELETED_ROWS);
+            if (deleted == 0) break;
+            mDeleted += deleted;
+            publishProgress(mDeleted);
+        }
+        return mDeleted;
+    }
+
+    private int countPets() {
+        Cursor cursor = mResolver.query(PetStatsEntry.CONTENT_URI,
+                new String[]{PetStatsEntry.COLUMN_COUNT}, null, null, null);
+        if (cursor == null) return 0;
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mListener != null) mListener.onDeleteProgress(values[0], Math.max(mCount, values[0]));
+    }
+
+    @Override
+    protected void onPostExecute(Integer deleted) {
+        if (mListener != null) {
+            mListener.onDeleteFinished(deleted, SystemClock.elapsedRealtime() - mStart, false);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Integer deleted) {
+        if (mListener != null) {
+            mListener.onDeleteFinished(deleted == null ? mDeleted : deleted,
+                    SystemClock.elapsedRealtime() - mStart, true);
+        }
+    }
+}
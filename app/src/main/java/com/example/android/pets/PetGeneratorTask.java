@@ -0,0 +1,98 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetGenerator;
+
+/**
+ * Inserts made up pets from a {@link PetGenerator} on a background thread. The pets go in with
+ * bulkInsert a chunk at a time, so each chunk is one transaction, progress is reported after
+ * every chunk and a cancel takes effect at the next one. Chunks already inserted are kept.
+ */
+public class PetGeneratorTask extends AsyncTask<Void, Integer, Integer> {
+
+    /** Pets inserted per bulkInsert transaction */
+    public static final int CHUNK_SIZE = 5000;
+
+    /** Callback on the main thread */
+    public interface Listener {
+        void onGeneratorProgress(int inserted, int count);
+
+        /** @param cancelled true if the task was cancelled before all the pets were inserted */
+        void onGeneratorFinished(int inserted, long elapsedMs, boolean cancelled);
+    }
+
+    private final ContentResolver mResolver;
+    private final int mCount;
+    private final long mSeed;
+    private Listener mListener;
+
+    private long mStart;
+    private volatile int mInserted;
+
+    public PetGeneratorTask(ContentResolver resolver, int count, long seed, Listener listener) {
+        mResolver = resolver;
+        mCount = count;
+        mSeed = seed;
+        mListener = listener;
+    }
+
+    /** Stop reporting to the listener, for when it is going away */
+    public void detach() {
+        mListener = null;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        mStart = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        PetGenerator generator = new PetGenerator(mSeed);
+        // the same values objects are filled again for every chunk rather than making new ones
+        ContentValues[] chunk = new ContentValues[Math.min(mCount, CHUNK_SIZE)];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = new ContentValues();
+        }
+
+        while (mInserted < mCount && !isCancelled()) {
+            int size = Math.min(chunk.length, mCount - mInserted);
+            if (size < chunk.length) {
+                ContentValues[] last = new ContentValues[size];
+                System.arraycopy(chunk, 0, last, 0, size);
+                chunk = last;
+            }
+            for (ContentValues values : chunk) {
+                generator.next(values);
+            }
+            mInserted += mResolver.bulkInsert(PetEntry.CONTENT_URI, chunk);
+            publishProgress(mInserted);
+        }
+        return mInserted;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (mListener != null) mListener.onGeneratorProgress(values[0], mCount);
+    }
+
+    @Override
+    protected void onPostExecute(Integer inserted) {
+        if (mListener != null) {
+            mListener.onGeneratorFinished(inserted, SystemClock.elapsedRealtime() - mStart, false);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Integer inserted) {
+        if (mListener != null) {
+            mListener.onGeneratorFinished(inserted == null ? mInserted : inserted,
+                    SystemClock.elapsedRealtime() - mStart, true);
+        }
+    }
+}
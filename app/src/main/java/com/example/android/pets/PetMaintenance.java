@@ -0,0 +1,80 @@
+package com.example.android.pets;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract;
+
+/**
+ * Schedules the database maintenance - reclaiming the space of deleted pets and refreshing the
+ * query planner's statistics - for when the device is idle, so the write lock it holds never
+ * gets in the user's way. Kept apart from {@link PetMaintenanceService} so it can be loaded on
+ * devices that have no job scheduler.
+ */
+public final class PetMaintenance {
+
+    private static final int JOB_ID = 845;
+
+    private PetMaintenance() {
+    }
+
+    /**
+     * Run the maintenance the next time the device is idle, replacing any run still waiting.
+     * Before lollipop there is no way to wait for idle, so it runs straight away on a background
+     * thread instead.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            new Task(context.getContentResolver(), null, null).execute();
+            return;
+        }
+        scheduleJob(context);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, PetMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .build());
+    }
+
+    /** Runs the maintenance on a background thread, the provider logs the space it reclaimed */
+    static class Task extends AsyncTask<Void, Void, Bundle> {
+        private final ContentResolver mResolver;
+        private final JobParameters mParams;
+        private JobService mService;
+
+        /** @param service the job to finish afterwards, null when not run as a job */
+        Task(ContentResolver resolver, JobService service, JobParameters params) {
+            mResolver = resolver;
+            mService = service;
+            mParams = params;
+        }
+
+        /** Don't finish the job, for when it has been stopped */
+        void detach() {
+            mService = null;
+        }
+
+        @Override
+        protected Bundle doInBackground(Void... params) {
+            return mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_RUN_MAINTENANCE, null, null);
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        protected void onPostExecute(Bundle report) {
+            if (mService != null) mService.jobFinished(mParams, false);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.pets;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * The job {@link PetMaintenance#schedule} sets up to run the database maintenance while the
+ * device is idle.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PetMaintenanceService extends JobService {
+
+    private PetMaintenance.Task mTask;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mTask = new PetMaintenance.Task(getContentResolver(), this, params);
+        mTask.execute();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // a vacuum can't be interrupted, it finishes on its own and does not need another run
+        if (mTask != null) mTask.detach();
+        return false;
+    }
+}
@@ -0,0 +1,681 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the pets table a page at a time for the catalog list.
+ *
+ * Pages are fetched with keyset paging uris on a background thread as the list scrolls towards
+ * them, the next page is prefetched before the user gets to the end, and only a bounded number
+ * of pages keep their rows - the rest only remember how many rows they had and are loaded again
+ * if the user scrolls back.
+ *
+ * Once a page is full its keyset range is fixed, so when the table changes each page in memory
+ * is reloaded over the same range and diffed against what it held on the background thread.
+ * The listener then gets only the rows that were really inserted, removed or changed.
+ *
+ * Which pages to reload comes from the change log: the loader reads the changes since the last
+ * one it applied, looks up where the inserted and updated pets now sort, and only reloads the
+ * pages that held a changed pet or whose range one of them now falls in. If the log has dropped
+ * the changes, or there are more of them than rows in memory, every page is reloaded instead.
+ */
+public class PetPageLoader implements PetAdapter.Source {
+
+    /** Rows in each page */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /** Pages that keep their rows in memory at any time */
+    public static final int DEFAULT_MAX_RESIDENT_PAGES = 6;
+
+    /**
+     * The change log consumer. Every loader shares it, so one left behind by a process that was
+     * killed is taken over by the next loader instead of holding on to changes forever. Two
+     * loaders running at once can only drop changes the other still needs, which it sees as a
+     * reset and reloads everything.
+     */
+    private static final String CHANGE_CONSUMER = PetPageLoader.class.getName();
+
+    /**
+     * Runs every loader's calls to the change log one at a time in the order they were made. With
+     * the consumer shared, the remove of a closed loader has to land before the next loader
+     * registers, or it would take the new loader's registration with it.
+     */
+    private static final ExecutorService CHANGE_LOG_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /** Callback for the rows changing, the positions are positions in the whole list */
+    public interface Listener extends ListUpdateCallback {
+        /** every row was dropped, the list starts again from nothing */
+        void onReset();
+    }
+
+    private final ContentResolver mResolver;
+    /** the pets uri the pages are taken from, with any filter and direction parameters */
+    private final Uri mBaseUri;
+    private final String[] mProjection;
+    private final String mSortKey;
+    private final boolean mDescending;
+    private final int mPageSize;
+    private final int mMaxResidentPages;
+    private final Listener mListener;
+
+    /** Every page loaded so far in list order, the rows are null if the page was evicted */
+    private final List<Page> mPages = new ArrayList<>();
+
+    /** false once a page comes back short - there is nothing after it */
+    private boolean mHasMore = true;
+
+    /** Bumped on every reset so loads started before it are thrown away */
+    private int mGeneration;
+
+    /** The page and first list position found by the last lookup, -1 when the pages changed */
+    private int mLocatedPage = -1;
+    private int mLocatedStart;
+
+    /** The last change applied to the pages, -1 until the loader is registered with the change log */
+    private long mChangeSeq = -1;
+
+    /** true while the changes are being read, and true in pending if the table changed again since */
+    private boolean mChangesLoading;
+    private boolean mChangesPending;
+
+    private boolean mClosed;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Reload the pages the changes touched when the pets table changes */
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            applyChanges();
+        }
+    };
+
+    /**
+     * @param projection columns to load, must include _id, name, breed and the sort key
+     * @param sortKey column the pages are ordered by, see {@link PetEntry#QUERY_PARAM_SORT_KEY}
+     */
+    public PetPageLoader(ContentResolver resolver, String[] projection, String sortKey,
+                         Listener listener) {
+        this(resolver, PetEntry.CONTENT_URI, projection, sortKey, listener);
+    }
+
+    /**
+     * @param baseUri the pets to page through, from {@link PetEntry#buildFilterUri}
+     */
+    public PetPageLoader(ContentResolver resolver, Uri baseUri, String[] projection, String sortKey,
+                         Listener listener) {
+        this(resolver, baseUri, projection, sortKey, DEFAULT_PAGE_SIZE, DEFAULT_MAX_RESIDENT_PAGES, listener);
+    }
+
+    public PetPageLoader(ContentResolver resolver, Uri baseUri, String[] projection, String sortKey,
+                         int pageSize, int maxResidentPages, Listener listener) {
+        mResolver = resolver;
+        mBaseUri = baseUri;
+        mProjection = projection;
+        mSortKey = sortKey;
+        mDescending = baseUri.getBooleanQueryParameter(PetEntry.QUERY_PARAM_DESCENDING, false);
+        mPageSize = pageSize;
+        mMaxResidentPages = maxResidentPages;
+        mListener = listener;
+    }
+
+    /** Start loading the first page and watching for changes */
+    public void start() {
+        mResolver.registerContentObserver(PetEntry.CONTENT_URI, true, mObserver);
+        // registered before the first page is loaded on the same thread, so the page has every
+        // change up to the seq it starts from
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long seq = ackChanges(null);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mClosed && mChangeSeq < 0) mChangeSeq = seq;
+                    }
+                });
+            }
+        });
+        loadNextPage();
+    }
+
+    /** Stop watching for changes and drop every page */
+    public void close() {
+        mResolver.unregisterContentObserver(mObserver);
+        mClosed = true;
+        mGeneration++;
+        mPages.clear();
+        mLocatedPage = -1;
+        mExecutor.shutdownNow();
+        // queued before the next loader can register, see CHANGE_LOG_EXECUTOR
+        CHANGE_LOG_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mResolver.call(PetChangeEntry.CONTENT_URI, PetContract.METHOD_REMOVE_CHANGE_CONSUMER,
+                        CHANGE_CONSUMER, null);
+            }
+        });
+    }
+
+    /** Drop every page and start again from the first one */
+    public void reset() {
+        mGeneration++;
+        mPages.clear();
+        mLocatedPage = -1;
+        mHasMore = true;
+        mListener.onReset();
+        loadNextPage();
+    }
+
+    /**
+     * Reload every page that is in memory and apply the differences. Pages that were evicted
+     * are reloaded anyway when the list gets back to them.
+     */
+    public void refresh() {
+        if (mPages.isEmpty()) {
+            mHasMore = true;
+            loadNextPage();
+            return;
+        }
+        for (Page page : mPages) {
+            if (page.loading) {
+                // what it is loading may be from before the change, so go again once it is done
+                page.reloadPending = true;
+            } else if (page.rows != null) {
+                load(page);
+            }
+        }
+        // the last page may have been full with more rows arriving after it
+        mHasMore = true;
+    }
+
+    /**
+     * Read the changes since the last one applied on the background thread and reload the pages
+     * they touched, or every page if that can't be worked out from the change log.
+     */
+    private void applyChanges() {
+        if (mChangeSeq < 0) {
+            // not registered with the change log yet
+            refresh();
+            return;
+        }
+        if (mChangesLoading) {
+            mChangesPending = true;
+            return;
+        }
+        mChangesLoading = true;
+        final long since = mChangeSeq;
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Changes changes = readChanges(since);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChangesLoaded(generation, changes);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * On the background thread - the pets changed since the seq and where the ones still in the
+     * list now sort. If the provider can't be queried the changes are a reset.
+     */
+    private Changes readChanges(long since) {
+        Changes changes = new Changes();
+        changes.seq = since;
+        // more changes than rows in memory cost more to look up than reloading the pages
+        int limit = mPageSize * mMaxResidentPages;
+        Cursor cursor = mResolver.query(PetChangeEntry.buildChangesUri(since, limit + 1), null, null, null, null);
+        if (cursor == null) {
+            changes.reset = true;
+            return changes;
+        }
+        try {
+            int seqIndex = cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_SEQ);
+            int idIndex = cursor.getColumnIndexOrThrow(PetChangeEntry._ID);
+            int opIndex = cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_OP);
+            changes.reset = cursor.getCount() > limit;
+            while (cursor.moveToNext()) {
+                changes.seq = cursor.getLong(seqIndex);
+                int op = cursor.getInt(opIndex);
+                if (op == PetChangeEntry.OP_RESET) changes.reset = true;
+                changes.ids.add(cursor.getLong(idIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (changes.reset || changes.ids.isEmpty()) return changes;
+
+        // where the changed pets sort now, a deleted pet or one the filter leaves out is not found
+        String[] args = new String[changes.ids.size()];
+        int i = 0;
+        for (Long id : changes.ids) {
+            args[i++] = String.valueOf(id);
+        }
+        cursor = mResolver.query(mBaseUri, new String[]{PetEntry._ID, mSortKey},
+                PetEntry._ID + " IN (" + TextUtils.join(",", Collections.nCopies(args.length, "?")) + ")",
+                args, null);
+        if (cursor == null) {
+            changes.reset = true;
+            return changes;
+        }
+        try {
+            int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            int keyIndex = cursor.getColumnIndexOrThrow(mSortKey);
+            changes.keyIds = new long[cursor.getCount()];
+            changes.keys = new String[cursor.getCount()];
+            for (i = 0; cursor.moveToNext(); i++) {
+                changes.keyIds[i] = cursor.getLong(idIndex);
+                changes.keys[i] = cursor.getString(keyIndex);
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    private void onChangesLoaded(int generation, Changes changes) {
+        mChangesLoading = false;
+        if (mClosed) return;
+        // a reset since the changes were read has reloaded every page anyway
+        if (generation == mGeneration) {
+            if (changes.reset) {
+                refresh();
+            } else {
+                reloadTouchedPages(changes);
+            }
+        }
+        // a reset can go back too, when the database was replaced
+        if (changes.seq != mChangeSeq) {
+            mChangeSeq = changes.seq;
+            final long seq = changes.seq;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ackChanges(seq);
+                }
+            });
+        }
+        if (mChangesPending) {
+            mChangesPending = false;
+            applyChanges();
+        }
+    }
+
+    /** Reload the pages in memory that held a changed pet or that one now sorts into */
+    private void reloadTouchedPages(Changes changes) {
+        for (Page page : mPages) {
+            if (page.rows == null) continue;
+            boolean touched = false;
+            for (int i = 0; i < page.rows.getCount() && !touched; i++) {
+                touched = changes.ids.contains(page.rows.getId(i));
+            }
+            for (int i = 0; i < changes.keys.length && !touched; i++) {
+                touched = inRange(page, changes.keys[i], changes.keyIds[i]);
+            }
+            if (!touched) continue;
+            if (page.loading) {
+                // what it is loading may be from before the change, so go again once it is done
+                page.reloadPending = true;
+            } else {
+                load(page);
+            }
+        }
+        // a pet that now sorts after the last full page belongs to a page that isn't loaded yet
+        Page last = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1);
+        if (last != null && last.untilKey != null) {
+            for (int i = 0; i < changes.keys.length; i++) {
+                if (compare(changes.keys[i], changes.keyIds[i], last.untilKey, last.untilId) > 0) mHasMore = true;
+            }
+        }
+    }
+
+    /** Whether the row with the sort key and id falls in the page's range */
+    private boolean inRange(Page page, String key, long id) {
+        if (page.afterId != -1 && compare(key, id, page.afterKey, page.afterId) <= 0) return false;
+        return page.untilKey == null || compare(key, id, page.untilKey, page.untilId) <= 0;
+    }
+
+    /**
+     * Compare two rows the way the pages are ordered, by the sort key then the _id. The names
+     * are compared as java strings, which only differs from sqlite's order for characters
+     * outside the basic multilingual plane.
+     */
+    private int compare(String key, long id, String otherKey, long otherId) {
+        int result = 0;
+        if (PetEntry.COLUMN_PET_NAME.equals(mSortKey)) {
+            result = key.compareTo(otherKey);
+        } else if (!PetEntry._ID.equals(mSortKey)) {
+            result = compareLongs(Long.parseLong(key), Long.parseLong(otherKey));
+        }
+        if (result == 0) result = compareLongs(id, otherId);
+        return mDescending ? -result : result;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * On the background thread - tell the change log the loader has applied every change up to
+     * the seq, or register it with a null seq. The call is made on the change log executor and
+     * waited for.
+     * @return the newest change, -1 if the provider is gone or the loader was closed
+     */
+    private long ackChanges(final Long seq) {
+        Future<Long> result = CHANGE_LOG_EXECUTOR.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return callAckChanges(seq);
+            }
+        });
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            // closed while waiting, the ack still goes ahead but nobody needs its answer
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private long callAckChanges(Long seq) {
+        Bundle extras = null;
+        if (seq != null) {
+            extras = new Bundle();
+            extras.putLong(PetContract.KEY_CHANGE_SEQ, seq);
+        }
+        Bundle result = mResolver.call(PetChangeEntry.CONTENT_URI, PetContract.METHOD_ACK_CHANGES,
+                CHANGE_CONSUMER, extras);
+        return result == null ? -1 : result.getLong(PetContract.KEY_CHANGE_SEQ, -1);
+    }
+
+    /** Number of rows in all the pages loaded so far, in memory or not */
+    @Override
+    public int getCount() {
+        int count = 0;
+        for (Page page : mPages) {
+            count += page.count;
+        }
+        return count;
+    }
+
+    /**
+     * Whether the row at the position is in memory. Asking also loads its page if it was evicted
+     * and prefetches the next page once the position gets near the end.
+     */
+    @Override
+    public boolean isLoaded(int position) {
+        Page page = locate(position);
+        if (page == null) return false;
+        if (position >= getCount() - mPageSize / 2) loadNextPage();
+        if (page.rows == null) {
+            if (!page.loading) load(page);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public long getId(int position) {
+        Page page = locate(position);
+        return page.rows.getId(position - mLocatedStart);
+    }
+
+    @Override
+    public String getName(int position) {
+        Page page = locate(position);
+        return page.rows.getName(position - mLocatedStart);
+    }
+
+    @Override
+    public String getBreed(int position) {
+        Page page = locate(position);
+        return page.rows.getBreed(position - mLocatedStart);
+    }
+
+    @Override
+    public String getPhoto(int position) {
+        Page page = locate(position);
+        return page.rows.getPhoto(position - mLocatedStart);
+    }
+
+    /** Find the page holding the list position, starting from the last one found */
+    private Page locate(int position) {
+        if (mLocatedPage >= 0) {
+            Page page = mPages.get(mLocatedPage);
+            if (position >= mLocatedStart && position < mLocatedStart + page.count) return page;
+        }
+        int start = 0;
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if (position < start + page.count) {
+                mLocatedPage = i;
+                mLocatedStart = start;
+                return page;
+            }
+            start += page.count;
+        }
+        return null;
+    }
+
+    /** The list position of the first row of the page */
+    private int startOf(Page page) {
+        int start = 0;
+        for (Page other : mPages) {
+            if (other == page) return start;
+            start += other.count;
+        }
+        return -1;
+    }
+
+    /** Add the page after the last one and load it, unless it is already loading or there is no more */
+    private void loadNextPage() {
+        if (!mHasMore) return;
+        Page page = new Page();
+        if (!mPages.isEmpty()) {
+            Page last = mPages.get(mPages.size() - 1);
+            // the next page starts where this one ends, so its range has to be known first
+            if (last.loading || last.untilKey == null) return;
+            page.afterKey = last.untilKey;
+            page.afterId = last.untilId;
+        }
+        mPages.add(page);
+        load(page);
+    }
+
+    /**
+     * Load the page on the background thread. A full page is reloaded over the range it was
+     * first loaded with, the open last page with the page size as its limit. If the page's rows
+     * are in memory the new rows are diffed against them there as well.
+     */
+    private void load(final Page page) {
+        page.loading = true;
+        final int generation = mGeneration;
+        final PetRows oldRows = page.rows;
+        final Uri uri;
+        if (page.untilKey != null) {
+            uri = PetEntry.buildPageRangeUri(mBaseUri, mSortKey, page.afterKey, page.afterId,
+                    page.untilKey, page.untilId);
+        } else if (page.afterKey == null) {
+            uri = PetEntry.buildFirstPageUri(mBaseUri, mPageSize, mSortKey);
+        } else {
+            uri = PetEntry.buildNextPageUri(mBaseUri, mPageSize, mSortKey, page.afterKey, page.afterId);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor cursor = mResolver.query(uri, mProjection, null, null, null);
+                if (cursor == null) return;
+                final PetRows rows;
+                final String lastKey;
+                final long lastId;
+                try {
+                    rows = PetRows.from(cursor);
+                    if (cursor.moveToLast()) {
+                        lastKey = cursor.getString(cursor.getColumnIndexOrThrow(mSortKey));
+                        lastId = cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID));
+                    } else {
+                        lastKey = null;
+                        lastId = -1;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                final DiffUtil.DiffResult diff = oldRows == null ? null : oldRows.diff(rows);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(generation, page, oldRows, rows, diff, lastKey, lastId);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int generation, Page page, PetRows oldRows, PetRows rows,
+                              DiffUtil.DiffResult diff, String lastKey, long lastId) {
+        page.loading = false;
+        int start = startOf(page);
+        if (generation != mGeneration || start < 0) return;
+
+        int oldCount = page.count;
+        boolean diffable = diff != null && page.rows == oldRows;
+        page.rows = rows;
+        page.count = rows.getCount();
+        mLocatedPage = -1;
+
+        // a page that came back full gets its range fixed, and there may be more after it
+        if (page.untilKey == null) {
+            if (page.count >= mPageSize) {
+                page.untilKey = lastKey;
+                page.untilId = lastId;
+                mHasMore = true;
+            } else if (page == mPages.get(mPages.size() - 1)) {
+                mHasMore = false;
+            }
+        }
+
+        if (diffable) {
+            diff.dispatchUpdatesTo(new OffsetCallback(start));
+        } else {
+            // no rows to compare with, so every row that was there before is treated as changed
+            int common = Math.min(oldCount, page.count);
+            if (common > 0) mListener.onChanged(start, common, null);
+            if (page.count > oldCount) mListener.onInserted(start + oldCount, page.count - oldCount);
+            if (page.count < oldCount) mListener.onRemoved(start + page.count, oldCount - page.count);
+        }
+
+        evictFarthestFrom(mPages.indexOf(page));
+
+        if (page.reloadPending) {
+            page.reloadPending = false;
+            if (page.rows != null) load(page);
+        }
+    }
+
+    /** Drop the rows of the pages farthest from the one just loaded until few enough are left */
+    private void evictFarthestFrom(int index) {
+        int resident = 0;
+        for (Page page : mPages) {
+            if (page.rows != null) resident++;
+        }
+        while (resident > mMaxResidentPages) {
+            int farthest = -1;
+            for (int i = 0; i < mPages.size(); i++) {
+                if (mPages.get(i).rows == null || mPages.get(i).loading) continue;
+                if (farthest == -1 || Math.abs(i - index) > Math.abs(farthest - index)) farthest = i;
+            }
+            if (farthest == -1) return;
+            mPages.get(farthest).rows = null;
+            resident--;
+        }
+    }
+
+    /** Passes a page's diff on to the listener with positions moved to where the page starts */
+    private class OffsetCallback implements ListUpdateCallback {
+        private final int mStart;
+
+        OffsetCallback(int start) {
+            mStart = start;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            mListener.onInserted(mStart + position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            mListener.onRemoved(mStart + position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mListener.onMoved(mStart + fromPosition, mStart + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            mListener.onChanged(mStart + position, count, payload);
+        }
+    }
+
+    /** The changes read from the log, and the sort keys of the changed pets still in the list */
+    private static class Changes {
+        long seq;
+        /** too many changes, or dropped from the log, so every page has to be reloaded */
+        boolean reset;
+        final Set<Long> ids = new HashSet<>();
+        long[] keyIds = new long[0];
+        String[] keys = new String[0];
+    }
+
+    /**
+     * One page of rows. The page holds the rows after (afterKey, afterId) up to and including
+     * (untilKey, untilId), or up to the page size while untilKey is still null.
+     */
+    private static class Page {
+        String afterKey;
+        long afterId = -1;
+        String untilKey;
+        long untilId = -1;
+        int count;
+        PetRows rows;
+        boolean loading;
+        /** the table changed while the page was loading */
+        boolean reloadPending;
+    }
+}
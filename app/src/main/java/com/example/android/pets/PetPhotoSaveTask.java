@@ -0,0 +1,92 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Saves a picked image as a pet's photo on a background thread. The image is scaled down so its
+ * longer side is at most {@link #MAX_PHOTO_SIZE} and written as a jpeg to the pet's photo uri, so
+ * a photo straight off the camera doesn't take megabytes on disk or in every thumbnail decode.
+ * It is started once the editor has closed, so a failure is reported with a toast.
+ */
+public class PetPhotoSaveTask extends AsyncTask<Void, Void, Boolean> {
+
+    private static final String LOG_TAG = PetPhotoSaveTask.class.getSimpleName();
+
+    /** Longest side of a saved photo in pixels */
+    public static final int MAX_PHOTO_SIZE = 1280;
+
+    private final Context mContext;
+    private final Uri mSource;
+    private final long mPetId;
+    private final String mPetName;
+
+    public PetPhotoSaveTask(Context context, Uri source, long petId, String petName) {
+        mContext = context.getApplicationContext();
+        mSource = source;
+        mPetId = petId;
+        mPetName = petName;
+    }
+
+    /** Start saving on the shared pool, so it does not wait behind other tasks */
+    public void start() {
+        executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        ContentResolver resolver = mContext.getContentResolver();
+        try {
+            BitmapFactory.Options bounds = PetThumbnails.readBounds(resolver, mSource);
+            if (bounds == null) return false;
+            // decode at the smallest power of two that is still at least the size, then scale
+            // the rest of the way
+            int longer = Math.max(bounds.outWidth, bounds.outHeight);
+            int sample = 1;
+            while (longer / (sample * 2) >= MAX_PHOTO_SIZE) sample *= 2;
+            Bitmap bitmap = PetThumbnails.decode(resolver, mSource, sample);
+            if (bitmap == null) return false;
+            longer = Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (longer > MAX_PHOTO_SIZE) {
+                float scale = (float) MAX_PHOTO_SIZE / longer;
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                        Math.round(bitmap.getHeight() * scale), true);
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+
+            OutputStream out = resolver.openOutputStream(PetEntry.buildPhotoUri(mPetId));
+            if (out == null) return false;
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                // the pet only points to the new photo once the stream is closed
+                out.close();
+                bitmap.recycle();
+            }
+            return true;
+        } catch (IOException | SecurityException e) {
+            Log.w(LOG_TAG, "Cannot save " + mSource + " as the photo of pet " + mPetId, e);
+            return false;
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean saved) {
+        if (!saved) {
+            Toast.makeText(mContext, mContext.getString(R.string.editor_photo_failed_toast, mPetName),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.support.v7.util.DiffUtil;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Immutable copy of the rows the catalog shows - the _id, name, breed and photo of each pet - read out
+ * of a cursor with the column indices looked up once. Being immutable it can be diffed against
+ * the next copy on a background thread while the list keeps showing it.
+ */
+public final class PetRows implements PetAdapter.Source {
+
+    public static final PetRows EMPTY = new PetRows(new long[0], new String[0], new String[0], new String[0]);
+
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+    private final String[] mPhotos;
+
+    private PetRows(long[] ids, String[] names, String[] breeds, String[] photos) {
+        mIds = ids;
+        mNames = names;
+        mBreeds = breeds;
+        mPhotos = photos;
+    }
+
+    /**
+     * Copy every row of the cursor, which must have the _id, name and breed columns. Without a
+     * photo column every pet is shown without a photo.
+     */
+    public static PetRows from(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        String[] breeds = new String[count];
+        String[] photos = new String[count];
+
+        int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        int photoIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idIndex);
+            names[i] = cursor.getString(nameIndex);
+            breeds[i] = cursor.getString(breedIndex);
+            if (photoIndex != -1) photos[i] = cursor.getString(photoIndex);
+        }
+        return new PetRows(ids, names, breeds, photos);
+    }
+
+    @Override
+    public int getCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public boolean isLoaded(int position) {
+        return true;
+    }
+
+    @Override
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    @Override
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    @Override
+    public String getBreed(int position) {
+        return mBreeds[position];
+    }
+
+    @Override
+    public String getPhoto(int position) {
+        return mPhotos[position];
+    }
+
+    /**
+     * Work out the moves, inserts, removes and changes that turn these rows into the new ones.
+     * Rows are matched by _id so a pet that was edited is a change rather than a remove and an
+     * insert. This is slow for big lists so it belongs on a background thread.
+     */
+    public DiffUtil.DiffResult diff(final PetRows newRows) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return getCount();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newRows.getCount();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return mIds[oldPosition] == newRows.mIds[newPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return equal(mNames[oldPosition], newRows.mNames[newPosition])
+                        && equal(mBreeds[oldPosition], newRows.mBreeds[newPosition])
+                        && equal(mPhotos[oldPosition], newRows.mPhotos[newPosition]);
+            }
+        });
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
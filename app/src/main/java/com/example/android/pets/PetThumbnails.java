@@ -0,0 +1,302 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Square thumbnails of the pet photos, cut down to the size they are shown at. Decoded bitmaps
+ * are kept in a memory LRU of an eighth of the heap, and the thumbnails are also saved as small
+ * jpegs in the cache directory, so a full size photo is only ever decoded once per thumbnail
+ * size. Only a memory hit is handled on the main thread. Everything else runs on two background
+ * threads, and rebinding a view cancels the load it was waiting on, so a fast fling only decodes
+ * the rows that stay on screen.
+ *
+ * A photo's name changes whenever the photo does, so it is used as the cache key and an entry
+ * never has to be invalidated - the old one just falls out of the LRU.
+ */
+public class PetThumbnails {
+
+    private static final String LOG_TAG = PetThumbnails.class.getSimpleName();
+
+    private static final String DISK_DIRECTORY = "thumbnails";
+
+    /** The disk cache is trimmed back to three quarters of this once it grows past it */
+    private static final long MAX_DISK_BYTES = 32L * 1024 * 1024;
+
+    /** Thumbnails saved to disk between checks of the disk cache's size */
+    private static final int TRIM_EVERY_WRITES = 64;
+
+    private static final int THREADS = 2;
+
+    private static PetThumbnails sInstance;
+
+    private final ContentResolver mResolver;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskDirectory;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Thumbnails saved to disk since the last trim */
+    private final AtomicInteger mDiskWrites = new AtomicInteger();
+
+    /** The thumbnails for the process, shared by every list and the editor */
+    public static synchronized PetThumbnails get(Context context) {
+        if (sInstance == null) sInstance = new PetThumbnails(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private PetThumbnails(Context context) {
+        mResolver = context.getContentResolver();
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        mDiskDirectory = new File(context.getCacheDir(), DISK_DIRECTORY);
+        // a cache left over the limit by the last run is trimmed before anything is added
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of a pet's photo in the view.
+     * @param photo the pet's photo column, null clears the view
+     * @param size width and height of the thumbnail in pixels
+     */
+    public void load(ImageView view, long id, String photo, int size) {
+        load(view, photo == null ? null : PetEntry.buildPhotoUri(id), photo, size);
+    }
+
+    /**
+     * Show a thumbnail of any image in the view, the editor uses it for a photo that has been
+     * picked but not saved yet.
+     * @param key names the image in the caches, it has to change whenever the image does
+     */
+    public void load(ImageView view, Uri source, String key, int size) {
+        String cacheKey = key == null ? null : key + "@" + size;
+        Request previous = (Request) view.getTag();
+        if (previous != null) {
+            // the view is already waiting for this thumbnail
+            if (previous.mCacheKey.equals(cacheKey)) return;
+            previous.cancel();
+            view.setTag(null);
+        }
+        if (cacheKey == null) {
+            view.setImageDrawable(null);
+            return;
+        }
+
+        Bitmap bitmap = mMemoryCache.get(cacheKey);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        // the placeholder background shows through until the thumbnail arrives
+        view.setImageDrawable(null);
+        Request request = new Request(view, source, cacheKey, size);
+        view.setTag(request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /** Stop loading a thumbnail into the view, for when it is recycled */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag();
+        if (request == null) return;
+        request.cancel();
+        view.setTag(null);
+    }
+
+    /** One view waiting for its thumbnail */
+    private final class Request implements Runnable {
+        final ImageView mView;
+        final Uri mSource;
+        final String mCacheKey;
+        final int mSize;
+        Future<?> mFuture;
+        volatile boolean mCancelled;
+
+        Request(ImageView view, Uri source, String cacheKey, int size) {
+            mView = view;
+            mSource = source;
+            mCacheKey = cacheKey;
+            mSize = size;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) mFuture.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+            final Bitmap bitmap = loadThumbnail(mSource, mCacheKey, mSize);
+            if (mCancelled) return;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // the view may have been rebound while the thumbnail was decoded
+                    if (mView.getTag() != Request.this) return;
+                    // without a thumbnail the placeholder stays, and binding again retries it
+                    mView.setTag(null);
+                    if (bitmap != null) mView.setImageBitmap(bitmap);
+                }
+            });
+        }
+    }
+
+    /** On a background thread - the thumbnail from the disk cache, or made from the full image */
+    private Bitmap loadThumbnail(Uri source, String cacheKey, int size) {
+        File file = new File(mDiskDirectory, diskName(cacheKey));
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) {
+            // keeps the disk cache least recently used first for trimming
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            try {
+                BitmapFactory.Options bounds = readBounds(mResolver, source);
+                if (bounds == null) return null;
+                // the largest power of two that keeps the shorter side at least the size
+                int shorter = Math.min(bounds.outWidth, bounds.outHeight);
+                int sample = 1;
+                while (shorter / (sample * 2) >= size) sample *= 2;
+                Bitmap decoded = decode(mResolver, source, sample);
+                if (decoded == null) return null;
+                bitmap = ThumbnailUtils.extractThumbnail(decoded, size, size,
+                        ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+            } catch (IOException | SecurityException e) {
+                // the photo went, or the picked image can't be read any more
+                Log.w(LOG_TAG, "Cannot load a thumbnail of " + source, e);
+                return null;
+            }
+            saveToDisk(bitmap, file);
+        }
+        mMemoryCache.put(cacheKey, bitmap);
+        return bitmap;
+    }
+
+    private void saveToDisk(Bitmap bitmap, File file) {
+        try {
+            if (!mDiskDirectory.isDirectory() && !mDiskDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDiskDirectory);
+            }
+            // written under another name first so a reader never finds half a thumbnail
+            File temp = File.createTempFile("thumb", null, mDiskDirectory);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) temp.delete();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot save thumbnail " + file, e);
+            return;
+        }
+        if (mDiskWrites.incrementAndGet() >= TRIM_EVERY_WRITES) {
+            mDiskWrites.set(0);
+            trimDiskCache();
+        }
+    }
+
+    /** Delete the least recently used thumbnails until the disk cache is back under its limit */
+    private void trimDiskCache() {
+        File[] files = mDiskDirectory.listFiles();
+        if (files == null) return;
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        if (bytes <= MAX_DISK_BYTES) return;
+
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // read once up front, it can change under the sort as other threads use the cache
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return lastModified[a] < lastModified[b] ? -1 : (lastModified[a] == lastModified[b] ? 0 : 1);
+            }
+        });
+        for (Integer i : order) {
+            if (bytes <= MAX_DISK_BYTES * 3 / 4) break;
+            long length = files[i].length();
+            if (files[i].delete()) bytes -= length;
+        }
+    }
+
+    /** A file name for the cache key, which can hold any character */
+    private static String diskName(String cacheKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(cacheKey.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(".jpg").toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("MD5 is always available", e);
+        }
+    }
+
+    /** The width and height of the image without decoding it, null if it is not an image */
+    static BitmapFactory.Options readBounds(ContentResolver resolver, Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(resolver, uri, options);
+        return options.outWidth > 0 && options.outHeight > 0 ? options : null;
+    }
+
+    /** Decode the image at 1/sample of its size, sample should be a power of two */
+    static Bitmap decode(ContentResolver resolver, Uri uri, int sample) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        return decode(resolver, uri, options);
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) throw new IOException("Cannot open " + uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * The change log behind {@link PetChangeEntry}.
+ *
+ * Triggers on the pets table append a (seq, _id, op) row for every insert, update and delete in
+ * the same transaction as the write, so the log can never miss a change or hold one that rolled
+ * back. The seq is an AUTOINCREMENT key, and since writes are serialized and a rolled back
+ * transaction takes its seqs back with it, the seqs have no gaps. That is what lets a query tell
+ * whether the log still goes back far enough: the first change it finds has to be the one right
+ * after the seq it was asked for.
+ *
+ * Each consumer records the last seq it has applied, and changes every consumer has applied are
+ * deleted. A consumer that stops acknowledging only holds on to the newest {@link #MAX_ROWS}
+ * changes, after that it is told to reset.
+ */
+final class PetChangeLog {
+
+    private static final String CHANGES = PetChangeEntry.TABLE_NAME;
+    private static final String CONSUMERS = PetChangeEntry.CONSUMER_TABLE_NAME;
+    private static final String SEQ = PetChangeEntry.COLUMN_SEQ;
+    private static final String ID = PetChangeEntry._ID;
+    private static final String OP = PetChangeEntry.COLUMN_OP;
+    private static final String CONSUMER = "consumer";
+
+    /** Changes kept for a consumer that has fallen behind, past this it gets a reset instead */
+    static final int MAX_ROWS = 100000;
+
+    private static final String[] COLUMNS = {SEQ, ID, OP};
+
+    private static final String SQL_CREATE_CHANGES = "CREATE TABLE " + CHANGES + " (" +
+            SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            ID + " INTEGER NOT NULL, " +
+            OP + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_CONSUMERS = "CREATE TABLE " + CONSUMERS + " (" +
+            CONSUMER + " TEXT PRIMARY KEY, " +
+            SEQ + " INTEGER NOT NULL)";
+
+    /** log a change to the pet in the row called row (new or old) */
+    private static String logChange(String row, int op) {
+        return "INSERT INTO " + CHANGES + " (" + ID + ", " + OP + ") VALUES (" +
+                row + "." + PetEntry._ID + ", " + op + "); ";
+    }
+
+    private static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER pet_changes_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + logChange("new", PetChangeEntry.OP_INSERT) + "END",
+            "CREATE TRIGGER pet_changes_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + logChange("old", PetChangeEntry.OP_DELETE) + "END",
+            "CREATE TRIGGER pet_changes_update AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + logChange("new", PetChangeEntry.OP_UPDATE) + "END"};
+
+    // the seq of the newest change ever logged, which outlives the row itself once it is deleted
+    private static final String SQL_HEAD_SEQ = "SELECT COALESCE(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?";
+
+    private PetChangeLog() {
+    }
+
+    /** create the tables and triggers, the log starts empty whatever is in the pets table */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CHANGES);
+        db.execSQL(SQL_CREATE_CONSUMERS);
+        for (String trigger : SQL_CREATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /** the seq of the newest change, 0 if there has never been one */
+    static long headSeq(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, SQL_HEAD_SEQ, new String[]{CHANGES});
+    }
+
+    /**
+     * The changes after the seq, oldest first, or a single {@link PetChangeEntry#OP_RESET} row if
+     * some of them have already been deleted from the log.
+     */
+    static Cursor queryChanges(SQLiteDatabase db, long since, int limit) {
+        Cursor cursor = db.query(CHANGES, COLUMNS, SEQ + ">?", new String[]{String.valueOf(since)},
+                null, null, SEQ, String.valueOf(limit));
+        boolean complete;
+        if (cursor.moveToFirst()) {
+            complete = cursor.getLong(0) == since + 1;
+        } else {
+            // nothing after it is only right if it is the newest - an older seq lost its changes
+            // and a newer one is from a database that has been replaced
+            complete = since == headSeq(db);
+        }
+        if (complete) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+        MatrixCursor reset = new MatrixCursor(COLUMNS, 1);
+        reset.addRow(new Object[]{headSeq(db), -1L, PetChangeEntry.OP_RESET});
+        return reset;
+    }
+
+    /**
+     * Record the last seq the consumer has applied, registering it if it is new, and drop what
+     * every consumer has applied.
+     * @param seq the last change applied, null to start the consumer at the newest change
+     * @return the seq of the newest change
+     */
+    static long ack(SQLiteDatabase db, String consumer, Long seq) {
+        db.beginTransaction();
+        try {
+            long head = headSeq(db);
+            db.execSQL("INSERT OR REPLACE INTO " + CONSUMERS + " (" + CONSUMER + ", " + SEQ + ") VALUES (?, ?)",
+                    new Object[]{consumer, seq == null ? head : Math.min(seq, head)});
+            truncate(db);
+            db.setTransactionSuccessful();
+            return head;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Forget the consumer and drop the changes only it was holding on to */
+    static void remove(SQLiteDatabase db, String consumer) {
+        db.beginTransaction();
+        try {
+            db.delete(CONSUMERS, CONSUMER + "=?", new String[]{consumer});
+            truncate(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete the changes every consumer has applied, all of them when there are no consumers,
+     * and anything older than the newest {@link #MAX_ROWS} whatever the consumers have applied.
+     * @return the number of changes deleted
+     */
+    static int truncate(SQLiteDatabase db) {
+        long head = headSeq(db);
+        long upTo = head;
+        Cursor cursor = db.rawQuery("SELECT MIN(" + SEQ + ") FROM " + CONSUMERS, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) upTo = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+        upTo = Math.max(upTo, head - MAX_ROWS);
+        return db.delete(CHANGES, SEQ + "<=?", new String[]{String.valueOf(upTo)});
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sends the change notifications for {@link PetProvider} writes.
+ *
+ * Writes made inside a transaction are held back until it commits (and dropped if it rolls
+ * back), and notifications arriving within the debounce window are merged so a burst of writes
+ * only makes the catalog reload a bounded number of times. Other work that must only happen once
+ * a write is kept, like deleting the photo file it replaced, waits for the commit the same way,
+ * see {@link #afterCommit}.
+ */
+class PetChangeNotifier {
+
+    /** Default time in ms that notifications are held to merge bursts of writes */
+    public static final long DEFAULT_DEBOUNCE_MS = 100;
+
+    /** Past this many changed rows in one flush the table uri is sent instead of each row uri */
+    private static final int MAX_ROW_URIS = 20;
+
+    private final ContentResolver mResolver;
+
+    /** Handler on a background thread that sends the debounced notifications */
+    private final Handler mHandler;
+
+    /** Uris changed by the transaction running on the current thread, null outside of one */
+    private final ThreadLocal<Transaction> mTransaction = new ThreadLocal<>();
+
+    /** Uris waiting for the debounce window to end, guarded by this */
+    private final Set<Uri> mPendingUris = new LinkedHashSet<>();
+
+    /** true while a flush is posted to the handler, guarded by this */
+    private boolean mFlushScheduled;
+
+    /** set by {@link #quit()}, from then on every notification is sent as it commits. Guarded by this */
+    private boolean mQuit;
+
+    private volatile long mDebounceMs = DEFAULT_DEBOUNCE_MS;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PetChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread("PetChangeNotifier");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** Set the debounce window in ms, 0 sends every notification as soon as it is committed */
+    void setDebounceMs(long debounceMs) {
+        if (debounceMs < 0) throw new IllegalArgumentException("Debounce cannot be negative");
+        mDebounceMs = debounceMs;
+    }
+
+    /**
+     * Send whatever is waiting for the debounce window and stop the background thread. Writes
+     * made afterwards still notify, straight away on the thread that made them.
+     */
+    void quit() {
+        synchronized (this) {
+            mQuit = true;
+            mFlushScheduled = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+        // quitSafely would send the posted flush itself, but it needs api 18
+        mHandler.getLooper().quit();
+        flush();
+    }
+
+    /** Start holding notifications for the current thread, calls can be nested */
+    void beginTransaction() {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) {
+            transaction = new Transaction();
+            mTransaction.set(transaction);
+        }
+        transaction.depth++;
+    }
+
+    /**
+     * End the transaction started by {@link #beginTransaction()}. When the outermost transaction
+     * ends its uris are queued if it committed, or thrown away if it did not.
+     */
+    void endTransaction(boolean committed) {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) throw new IllegalStateException("No transaction in progress");
+        if (!committed) transaction.failed = true;
+        if (--transaction.depth > 0) return;
+
+        mTransaction.remove();
+        if (transaction.failed) return;
+        enqueue(transaction.uris);
+        for (Runnable action : transaction.actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * Run the action once the current thread's transaction commits, or now outside of one. It is
+     * dropped if the transaction rolls back.
+     */
+    void afterCommit(Runnable action) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.actions.add(action);
+        } else {
+            action.run();
+        }
+    }
+
+    /** Notify that the rows at the uri changed, the caller only calls this when rows changed */
+    void notifyChange(Uri uri) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.uris.add(uri);
+        } else {
+            enqueue(Collections.singleton(uri));
+        }
+    }
+
+    private void enqueue(Collection<Uri> uris) {
+        if (uris.isEmpty()) return;
+        long debounceMs = mDebounceMs;
+        synchronized (this) {
+            mPendingUris.addAll(uris);
+            if (debounceMs > 0 && !mQuit) {
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlushRunnable, debounceMs);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /** Send everything that is pending */
+    private void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingUris.isEmpty()) return;
+            uris = coalesce(mPendingUris);
+            mPendingUris.clear();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Drop the row uris whose table uri is already being sent (a table notification reaches the
+     * observers of its rows), and swap the rows for their table once there are too many of them.
+     */
+    private static List<Uri> coalesce(Set<Uri> pending) {
+        Set<Uri> tables = new LinkedHashSet<>();
+        List<Uri> rows = new ArrayList<>();
+        for (Uri uri : pending) {
+            if (isRowUri(uri)) {
+                rows.add(uri);
+            } else {
+                tables.add(uri);
+            }
+        }
+        if (rows.size() > MAX_ROW_URIS) {
+            for (Uri row : rows) {
+                tables.add(parentOf(row));
+            }
+            rows.clear();
+        }
+
+        List<Uri> result = new ArrayList<>(tables);
+        for (Uri row : rows) {
+            if (!tables.contains(parentOf(row))) result.add(row);
+        }
+        return result;
+    }
+
+    private static boolean isRowUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() > 1 && TextUtils.isDigitsOnly(segments.get(segments.size() - 1));
+    }
+
+    private static Uri parentOf(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .encodedAuthority(uri.getEncodedAuthority());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
+    /** Uris and actions collected by one thread's transaction */
+    private static class Transaction {
+        final Set<Uri> uris = new LinkedHashSet<>();
+        final List<Runnable> actions = new ArrayList<>();
+        int depth;
+        boolean failed;
+    }
+}
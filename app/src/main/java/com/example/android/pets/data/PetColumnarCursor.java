@@ -0,0 +1,407 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only cursor over rows held a column at a time in primitive arrays - a long[] for the _id,
+ * int[]s for the gender and weight and String[]s for the name, breed and photo, with each distinct
+ * string kept once. Unlike a MatrixCursor nothing is boxed and there is no Object[] per row, so a
+ * result takes a fraction of the memory and reading a value is a single array access.
+ *
+ * The rows are copied once into a {@link Rows}, which never changes after that and hands out any
+ * number of cursors over itself, each with its own position. That lets a cached result be served
+ * again without copying it, and be read by several threads at once. Reading a value with the
+ * cursor before its first row or after its last throws, as it does from any other cursor.
+ */
+public final class PetColumnarCursor extends AbstractCursor {
+
+    private final Rows mRows;
+
+    private PetColumnarCursor(Rows rows) {
+        mRows = rows;
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mRows.mNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getType(mPos);
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getString(mPos);
+    }
+
+    @Override
+    public short getShort(int column) {
+        checkPosition();
+        return (short) mRows.mColumns[column].getLong(mPos);
+    }
+
+    @Override
+    public int getInt(int column) {
+        checkPosition();
+        return (int) mRows.mColumns[column].getLong(mPos);
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getLong(mPos);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        checkPosition();
+        return (float) mRows.mColumns[column].getDouble(mPos);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getDouble(mPos);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getBlob(mPos);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        return mRows.mColumns[column].getType(mPos) == Cursor.FIELD_TYPE_NULL;
+    }
+
+    /** An immutable copy of a result that any number of cursors can be opened over */
+    public static final class Rows {
+        private final String[] mNames;
+        private final Column[] mColumns;
+        private final int mCount;
+        private final int mBytes;
+
+        private Rows(String[] names, Column[] columns, int count, int bytes) {
+            mNames = names;
+            mColumns = columns;
+            mCount = count;
+            mBytes = bytes;
+        }
+
+        /**
+         * Copy every row of the cursor, reading it from the start once. The pets columns go into
+         * primitive arrays, any other column is kept as the objects a MatrixCursor would hold.
+         * The cursor is left before its first row.
+         */
+        public static Rows read(Cursor cursor) {
+            int count = cursor.getCount();
+            String[] names = cursor.getColumnNames();
+            Column[] columns = new Column[names.length];
+            Map<String, String> strings = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                columns[i] = newColumn(names[i], i, count, strings);
+            }
+
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                for (Column column : columns) {
+                    column.read(cursor, row);
+                }
+            }
+            cursor.moveToPosition(-1);
+
+            int bytes = 64;
+            for (Column column : columns) {
+                bytes += column.bytes();
+            }
+            // each distinct string is only held once however many rows share it
+            for (String value : strings.values()) {
+                bytes += 40 + 2 * value.length();
+            }
+            return new Rows(names, columns, count, bytes);
+        }
+
+        /** A new cursor over the rows, before the first row */
+        public Cursor newCursor() {
+            return new PetColumnarCursor(this);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Rough number of bytes the rows take on the heap */
+        public int sizeBytes() {
+            return mBytes;
+        }
+
+        private static Column newColumn(String name, int index, int count, Map<String, String> strings) {
+            if (PetEntry._ID.equals(name)) return new LongColumn(index, count);
+            if (PetEntry.COLUMN_PET_GENDER.equals(name) || PetEntry.COLUMN_PET_WEIGHT.equals(name)) {
+                return new IntColumn(index, count);
+            }
+            if (PetEntry.COLUMN_PET_NAME.equals(name) || PetEntry.COLUMN_PET_BREED.equals(name)
+                    || PetEntry.COLUMN_PET_PHOTO.equals(name)) {
+                return new StringColumn(index, count, strings);
+            }
+            return new ObjectColumn(index, count);
+        }
+    }
+
+    /** One column of every row */
+    private abstract static class Column {
+        /** index of the column in the source cursor */
+        final int mIndex;
+
+        Column(int index) {
+            mIndex = index;
+        }
+
+        abstract void read(Cursor cursor, int row);
+
+        abstract int getType(int row);
+
+        abstract long getLong(int row);
+
+        abstract double getDouble(int row);
+
+        abstract String getString(int row);
+
+        byte[] getBlob(int row) {
+            throw new UnsupportedOperationException("Column is not a blob");
+        }
+
+        abstract int bytes();
+    }
+
+    private static final class LongColumn extends Column {
+        private final long[] mValues;
+
+        LongColumn(int index, int count) {
+            super(index);
+            mValues = new long[count];
+        }
+
+        @Override
+        void read(Cursor cursor, int row) {
+            mValues[row] = cursor.getLong(mIndex);
+        }
+
+        @Override
+        int getType(int row) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        long getLong(int row) {
+            return mValues[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return mValues[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return Long.toString(mValues[row]);
+        }
+
+        @Override
+        int bytes() {
+            return 16 + 8 * mValues.length;
+        }
+    }
+
+    private static final class IntColumn extends Column {
+        private final int[] mValues;
+
+        IntColumn(int index, int count) {
+            super(index);
+            mValues = new int[count];
+        }
+
+        @Override
+        void read(Cursor cursor, int row) {
+            mValues[row] = cursor.getInt(mIndex);
+        }
+
+        @Override
+        int getType(int row) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        long getLong(int row) {
+            return mValues[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return mValues[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return Integer.toString(mValues[row]);
+        }
+
+        @Override
+        int bytes() {
+            return 16 + 4 * mValues.length;
+        }
+    }
+
+    /** Strings shared with every other string column read from the same cursor, null allowed */
+    private static final class StringColumn extends Column {
+        private final String[] mValues;
+        private final Map<String, String> mStrings;
+
+        StringColumn(int index, int count, Map<String, String> strings) {
+            super(index);
+            mValues = new String[count];
+            mStrings = strings;
+        }
+
+        @Override
+        void read(Cursor cursor, int row) {
+            String value = cursor.getString(mIndex);
+            if (value != null) {
+                String shared = mStrings.get(value);
+                if (shared == null) {
+                    mStrings.put(value, value);
+                } else {
+                    value = shared;
+                }
+            }
+            mValues[row] = value;
+        }
+
+        @Override
+        int getType(int row) {
+            return mValues[row] == null ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+        }
+
+        // numbers stored as text convert the way they do for a MatrixCursor, null reads as 0
+        @Override
+        long getLong(int row) {
+            String value = mValues[row];
+            return value == null ? 0 : Long.parseLong(value);
+        }
+
+        @Override
+        double getDouble(int row) {
+            String value = mValues[row];
+            return value == null ? 0 : Double.parseDouble(value);
+        }
+
+        @Override
+        String getString(int row) {
+            return mValues[row];
+        }
+
+        @Override
+        int bytes() {
+            return 16 + 4 * mValues.length;
+        }
+    }
+
+    /** Any column that is not a pets column, held the way a MatrixCursor would hold it */
+    private static final class ObjectColumn extends Column {
+        private final Object[] mValues;
+        private int mBytes;
+
+        ObjectColumn(int index, int count) {
+            super(index);
+            mValues = new Object[count];
+            mBytes = 16 + 4 * count;
+        }
+
+        @Override
+        void read(Cursor cursor, int row) {
+            switch (cursor.getType(mIndex)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    mValues[row] = cursor.getLong(mIndex);
+                    mBytes += 16;
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    mValues[row] = cursor.getDouble(mIndex);
+                    mBytes += 16;
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    String value = cursor.getString(mIndex);
+                    mValues[row] = value;
+                    mBytes += 40 + 2 * value.length();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    byte[] blob = cursor.getBlob(mIndex);
+                    mValues[row] = blob;
+                    mBytes += 16 + blob.length;
+                    break;
+                default:
+                    mValues[row] = null;
+            }
+        }
+
+        @Override
+        int getType(int row) {
+            Object value = mValues[row];
+            if (value == null) return Cursor.FIELD_TYPE_NULL;
+            if (value instanceof Long) return Cursor.FIELD_TYPE_INTEGER;
+            if (value instanceof Double) return Cursor.FIELD_TYPE_FLOAT;
+            if (value instanceof byte[]) return Cursor.FIELD_TYPE_BLOB;
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        long getLong(int row) {
+            Object value = mValues[row];
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).longValue();
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        double getDouble(int row) {
+            Object value = mValues[row];
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).doubleValue();
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        String getString(int row) {
+            Object value = mValues[row];
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        byte[] getBlob(int row) {
+            Object value = mValues[row];
+            if (value == null || value instanceof byte[]) return (byte[]) value;
+            throw new UnsupportedOperationException("Column is not a blob");
+        }
+
+        @Override
+        int bytes() {
+            return mBytes;
+        }
+    }
+}
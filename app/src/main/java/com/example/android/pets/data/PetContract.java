@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -18,6 +19,74 @@ public final class PetContract {
 
     //specific table paths to append to the base Uri
     public static final String PATH_PETS = "pets";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_BREEDS = "breeds";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_CHANGES = "changes";
+
+    //methods that can be run with ContentResolver.call on the provider
+    //rebuilds the statistics tables from the pets table, the result bundle says whether they were already right
+    public static final String METHOD_REBUILD_STATS = "rebuild_stats";
+    public static final String KEY_STATS_CONSISTENT = "stats_consistent";
+    //returns the provider's metrics since it started (or was reset) as a flat bundle of longs. Per
+    //operation keys are "<operation>.<uri>.<stat>", for example "query.pets.p95_us", where the
+    //operation is query, insert, bulk_insert, update, delete or apply_batch and the uri is pets,
+    //pet_id, search, stats, stats_breeds, photo, changes, export or, for apply_batch, batch. An export
+    //is recorded as a query of the export uri. The stats are count, p50_us, p95_us, p99_us, max_us,
+    //rows_read, rows_written, lock_wait_us and, for queries, window_fills and window_fill_us
+    public static final String METHOD_GET_METRICS = "get_metrics";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+    //query cache counters in the metrics bundle
+    public static final String KEY_CACHE_HITS = "cache.hits";
+    public static final String KEY_CACHE_MISSES = "cache.misses";
+    public static final String KEY_CACHE_EVICTIONS = "cache.evictions";
+    public static final String KEY_CACHE_STALE = "cache.stale";
+    public static final String KEY_CACHE_BYTES = "cache.bytes";
+    //write a binary snapshot of the pets table to the file whose absolute path is the call's arg, or replace every
+    //pet with the pets in such a snapshot. The result bundle has the number of pets and how long it took
+    public static final String METHOD_SAVE_SNAPSHOT = "save_snapshot";
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+    public static final String KEY_SNAPSHOT_ROWS = "snapshot_rows";
+    public static final String KEY_SNAPSHOT_ELAPSED_MS = "snapshot_elapsed_ms";
+    //delete the pets with the lowest _ids in one short transaction, at most the number given as the call's arg
+    //(DEFAULT_DELETE_CHUNK if it is null). Deleting everything a chunk at a time until this deletes nothing keeps
+    //the write lock free for other writers between chunks. The result bundle has the number of pets deleted
+    public static final String METHOD_DELETE_CHUNK = "delete_chunk";
+    public static final String KEY_DELETED_ROWS = "deleted_rows";
+    public static final int DEFAULT_DELETE_CHUNK = 2000;
+    //give the space of deleted rows back to the file system and refresh the query planner's statistics. It can
+    //take a while on a big database so run it when the device is idle, the result bundle reports the size of the
+    //database files before and after, how many photo files no pet used any more were deleted and how long it took
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    public static final String KEY_MAINTENANCE_BYTES_BEFORE = "maintenance_bytes_before";
+    public static final String KEY_MAINTENANCE_BYTES_AFTER = "maintenance_bytes_after";
+    public static final String KEY_MAINTENANCE_RECLAIMED_BYTES = "maintenance_reclaimed_bytes";
+    public static final String KEY_MAINTENANCE_ELAPSED_MS = "maintenance_elapsed_ms";
+    public static final String KEY_MAINTENANCE_PHOTOS_DELETED = "maintenance_photos_deleted";
+    //record that the consumer named by the call's arg has applied every change up to KEY_CHANGE_SEQ in the extras,
+    //or with no extras register it at the newest change. Changes every consumer has applied are dropped from the
+    //log. The result bundle has the seq of the newest change in KEY_CHANGE_SEQ, where a new consumer starts from
+    public static final String METHOD_ACK_CHANGES = "ack_changes";
+    //stop keeping changes for the consumer named by the call's arg
+    public static final String METHOD_REMOVE_CHANGE_CONSUMER = "remove_change_consumer";
+    public static final String KEY_CHANGE_SEQ = "change_seq";
+    //send the pets changed here since the last sync to the clinic registry whose base url is the call's arg, then
+    //apply the changes made on other devices since the last page applied. Each pet's newest write wins. The result
+    //bundle has the number of changes each way and the time taken
+    public static final String METHOD_SYNC = "sync";
+    public static final String KEY_SYNC_UPLOADED = "sync_uploaded";
+    public static final String KEY_SYNC_DOWNLOADED = "sync_downloaded";
+    public static final String KEY_SYNC_ELAPSED_MS = "sync_elapsed_ms";
+    //the tenant a call runs against, a string in the call's extras - each tenant has a database of its own, see
+    //PetEntry.QUERY_PARAM_TENANT. Without it the call runs against the default database
+    public static final String KEY_TENANT = "tenant";
+    //returns every tenant that has a database, other than the default one, as a string array list in KEY_TENANTS
+    public static final String METHOD_GET_TENANTS = "get_tenants";
+    public static final String KEY_TENANTS = "tenants";
+    //number of tenant databases open right now in the metrics bundle, they close once they have been idle a while
+    public static final String KEY_SHARDS_OPEN = "shards.open";
 
     public PetContract() {
     }
@@ -27,6 +96,13 @@ public final class PetContract {
         //the content Uri to access the pets table
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        //the content Uri to full text search the pets by name and breed, best matches first
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        //the content Uri to stream every pet out as csv or json with ContentResolver.openInputStream or
+        //openTypedAssetFileDescriptor, see QUERY_PARAM_FORMAT
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
         //MIME types for the table and single row
         public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
@@ -34,6 +110,9 @@ public final class PetContract {
         //table name
         public static final String TABLE_NAME = "pets";
 
+        //full text index over the name and breed columns, kept in sync with the pets table by triggers
+        public static final String SEARCH_TABLE_NAME = "pets_fts";
+
         //table columns
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
@@ -41,9 +120,285 @@ public final class PetContract {
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        //file name of the pet's photo, null if it has none. The provider sets it when the photo uri is written and
+        //every new photo gets a new name, so the name can be used as a cache key. The file itself is only
+        //reachable through the photo uri, see buildPhotoUri
+        public static final String COLUMN_PET_PHOTO = "photo";
+
         //possible gender values
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
         public static final int GENDER_UNKNOWN = 0;
+
+        //query parameters for keyset paging of the pets uri - a page holds at most QUERY_PARAM_LIMIT rows
+        //ordered by QUERY_PARAM_SORT_KEY then _id, starting after the row given by QUERY_PARAM_AFTER_KEY/QUERY_PARAM_AFTER_ID
+        public static final String QUERY_PARAM_LIMIT = "limit";
+        public static final String QUERY_PARAM_SORT_KEY = "sort_key";
+        public static final String QUERY_PARAM_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+        //optional inclusive upper bound of a page - the row given by QUERY_PARAM_UNTIL_KEY/QUERY_PARAM_UNTIL_ID is
+        //the last one it can hold, used to reload a page that has already been loaded without the limit
+        public static final String QUERY_PARAM_UNTIL_KEY = "until_key";
+        public static final String QUERY_PARAM_UNTIL_ID = "until_id";
+
+        //query parameter ordering the pets uri's pages from the highest sort key down, "true" or "false"
+        public static final String QUERY_PARAM_DESCENDING = "desc";
+
+        //query parameters filtering the pets uri, each one backed by an index. Gender and breed are exact matches
+        //and only one of them can be given, the weights are an inclusive range and either end can be left out
+        public static final String QUERY_PARAM_GENDER = "gender";
+        public static final String QUERY_PARAM_BREED = "breed";
+        public static final String QUERY_PARAM_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAM_MAX_WEIGHT = "max_weight";
+
+        //the only sort orders a query of the pets uri accepts, other than null for no order. Paged queries are
+        //ordered by QUERY_PARAM_SORT_KEY and QUERY_PARAM_DESCENDING instead
+        public static final String SORT_BY_NAME = COLUMN_PET_NAME + ", " + _ID;
+        public static final String SORT_BY_WEIGHT = COLUMN_PET_WEIGHT + ", " + _ID;
+        public static final String SORT_BY_NEWEST = _ID + " DESC";
+
+        //query parameter holding the text to search for on the search uri
+        public static final String QUERY_PARAM_SEARCH = "q";
+
+        //query parameter naming the tenant whose pets a uri reads and writes, each tenant has a database file of its
+        //own so its queries never touch the other tenants' pets. Without it the default database is used. Names are
+        //letters, digits and underscores. Every uri takes it, but a batch can only write to one tenant and the
+        //PetRecord writes always go to the default database
+        public static final String QUERY_PARAM_TENANT = "tenant";
+
+        //query parameter choosing the format of the export uri when it is opened with openFile, csv if it is missing
+        public static final String QUERY_PARAM_FORMAT = "format";
+        public static final String FORMAT_CSV = "csv";
+        public static final String FORMAT_JSON = "json";
+
+        //MIME types of the export formats - csv has a header row of column names, json is an array with an
+        //object per pet
+        public static final String EXPORT_CSV_TYPE = "text/csv";
+        public static final String EXPORT_JSON_TYPE = "application/json";
+
+        //MIME type of a pet's photo uri, photos are stored as jpegs
+        public static final String PHOTO_TYPE = "image/jpeg";
+
+        /**
+         * build the uri that reads or writes the same as the given one but in the tenant's database
+         * @param uri any of the pets uris
+         */
+        public static Uri buildTenantUri(Uri uri, String tenant) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_TENANT, tenant)
+                    .build();
+        }
+
+        /**
+         * build the uri of a pet's photo. Open it with ContentResolver.openInputStream to read the photo and
+         * openOutputStream to replace it - the new photo shows once the stream is closed. Deleting the uri
+         * removes the photo
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * build the uri to export every pet
+         * @param format FORMAT_CSV or FORMAT_JSON
+         */
+        public static Uri buildExportUri(String format) {
+            return EXPORT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_FORMAT, format)
+                    .build();
+        }
+
+        /**
+         * build the uri to search the pets, every word is matched as a prefix of a word in the name or breed
+         * @param query the text the user typed
+         * @param limit max number of results
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SEARCH, query)
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * build the uri for the pets that pass a filter, the base for the page uris of a filtered list
+         * @param gender one of the GENDER_ constants, null for any gender
+         * @param breed exact breed, null for any breed - can't be given with a gender
+         * @param minWeight lightest weight, null for no lower bound
+         * @param maxWeight heaviest weight, null for no upper bound
+         * @param descending true to page from the highest sort key down, newest first when paging by _id
+         */
+        public static Uri buildFilterUri(Integer gender, String breed, Integer minWeight, Integer maxWeight,
+                                         boolean descending) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (gender != null) builder.appendQueryParameter(QUERY_PARAM_GENDER, String.valueOf(gender));
+            if (breed != null) builder.appendQueryParameter(QUERY_PARAM_BREED, breed);
+            if (minWeight != null) builder.appendQueryParameter(QUERY_PARAM_MIN_WEIGHT, String.valueOf(minWeight));
+            if (maxWeight != null) builder.appendQueryParameter(QUERY_PARAM_MAX_WEIGHT, String.valueOf(maxWeight));
+            if (descending) builder.appendQueryParameter(QUERY_PARAM_DESCENDING, "true");
+            return builder.build();
+        }
+
+        /**
+         * build the uri for the first page of pets ordered by the sort key
+         * @param limit max number of rows in the page
+         * @param sortKey column to order by, one of _id, name, gender or weight
+         */
+        public static Uri buildFirstPageUri(int limit, String sortKey) {
+            return buildFirstPageUri(CONTENT_URI, limit, sortKey);
+        }
+
+        /**
+         * build the uri for the first page of the pets of a base uri from buildFilterUri
+         */
+        public static Uri buildFirstPageUri(Uri base, int limit, String sortKey) {
+            return base.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .appendQueryParameter(QUERY_PARAM_SORT_KEY, sortKey)
+                    .build();
+        }
+
+        /**
+         * build the uri for the page of pets that follows the given row
+         * @param afterKey the sort key value of the last row of the previous page
+         * @param afterId the _id of the last row of the previous page
+         */
+        public static Uri buildNextPageUri(int limit, String sortKey, String afterKey, long afterId) {
+            return buildNextPageUri(CONTENT_URI, limit, sortKey, afterKey, afterId);
+        }
+
+        /** build the uri for the page of the pets of a base uri that follows the given row */
+        public static Uri buildNextPageUri(Uri base, int limit, String sortKey, String afterKey, long afterId) {
+            return buildFirstPageUri(base, limit, sortKey).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_AFTER_KEY, afterKey)
+                    .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * build the uri for every pet between two rows, used to reload a page with the same bounds it was
+         * first loaded with so rows inserted into it land in exactly one page
+         * @param afterKey sort key of the row before the range, null for a range at the start of the table
+         * @param afterId _id of the row before the range, ignored when afterKey is null
+         * @param untilKey sort key of the last row of the range
+         * @param untilId _id of the last row of the range
+         */
+        public static Uri buildPageRangeUri(String sortKey, String afterKey, long afterId,
+                                            String untilKey, long untilId) {
+            return buildPageRangeUri(CONTENT_URI, sortKey, afterKey, afterId, untilKey, untilId);
+        }
+
+        /** build the uri for every pet of a base uri between two rows */
+        public static Uri buildPageRangeUri(Uri base, String sortKey, String afterKey, long afterId,
+                                            String untilKey, long untilId) {
+            Uri.Builder builder = base.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SORT_KEY, sortKey);
+            if (afterKey != null) {
+                builder.appendQueryParameter(QUERY_PARAM_AFTER_KEY, afterKey)
+                        .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.appendQueryParameter(QUERY_PARAM_UNTIL_KEY, untilKey)
+                    .appendQueryParameter(QUERY_PARAM_UNTIL_ID, String.valueOf(untilId))
+                    .build();
+        }
+    }
+
+    /**
+     * Statistics over the pets table. They are kept up to date by triggers on every write so
+     * reading them costs the same no matter how many pets there are.
+     */
+    public static final class PetStatsEntry implements BaseColumns {
+
+        //one row of totals for the whole pets table
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        //the most common breeds, most pets first - takes the PetEntry.QUERY_PARAM_LIMIT parameter
+        public static final Uri BREEDS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_BREEDS);
+
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+        public static final String CONTENT_BREEDS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        //tables holding the running totals - a row per gender and a row per breed
+        public static final String GENDER_TABLE_NAME = "pet_gender_stats";
+        public static final String BREED_TABLE_NAME = "pet_breed_stats";
+
+        //query parameter that makes both stats uris add up the pets of every tenant and the default database, it
+        //can't be given with PetEntry.QUERY_PARAM_TENANT
+        public static final String QUERY_PARAM_ALL_TENANTS = "all_tenants";
+
+        //columns of the totals row
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_MALE_COUNT = "male_count";
+        public static final String COLUMN_FEMALE_COUNT = "female_count";
+        public static final String COLUMN_UNKNOWN_COUNT = "unknown_count";
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+
+        //columns of the breeds rows, COLUMN_COUNT is the number of pets of the breed
+        public static final String COLUMN_BREED = "breed";
+
+        //columns of the running totals tables
+        public static final String COLUMN_GENDER = "gender";
+        public static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+
+        /**
+         * build the uri of the statistics over every tenant
+         * @param uri CONTENT_URI or BREEDS_URI
+         */
+        public static Uri buildAllTenantsUri(Uri uri) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_ALL_TENANTS, "true")
+                    .build();
+        }
+    }
+
+    /**
+     * The change log of the pets table - a row for every insert, update and delete in the order
+     * they committed, numbered by a seq with no gaps. A client that holds the pets in memory can
+     * read the changes since the last seq it saw and patch its copy instead of loading it again.
+     */
+    public static final class PetChangeEntry {
+
+        //the changes after the seq given by QUERY_PARAM_SINCE, oldest first - takes PetEntry.QUERY_PARAM_LIMIT too.
+        //If the log no longer goes back that far the only row is an OP_RESET, see below
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        //table the triggers on the pets table append to
+        public static final String TABLE_NAME = "pet_changes";
+
+        //table holding the last seq each consumer has applied
+        public static final String CONSUMER_TABLE_NAME = "pet_change_consumers";
+
+        //columns of a change - its seq, the _id of the pet that changed and what happened to it
+        public static final String COLUMN_SEQ = "seq";
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_OP = "op";
+
+        //the ops of a change. OP_RESET is only ever returned, never logged: the changes since the seq asked for
+        //have been dropped (or the database was replaced), so the client has to load every pet again. Its seq is
+        //the newest change, the one to ask for changes since once the pets have been loaded
+        public static final int OP_RESET = 0;
+        public static final int OP_INSERT = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_DELETE = 3;
+
+        //query parameter with the seq of the last change the client has, 0 for none
+        public static final String QUERY_PARAM_SINCE = "since";
+
+        /**
+         * build the uri of the changes after a seq
+         * @param limit max number of changes, the client asks again from the last one it got for more
+         */
+        public static Uri buildChangesUri(long since, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_SINCE, String.valueOf(since))
+                    .appendQueryParameter(PetEntry.QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
     }
 }
@@ -1,8 +1,25 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by aaronbrecher on 1/24/18.
@@ -10,8 +27,25 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 public class PetDbHelper extends SQLiteOpenHelper {
 
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
     private static final String DATABASE_NAME = "petsDB";
-    private static final int DATABASE_VERSION = 1;
+
+    /** a tenant's database is named this followed by the tenant, see PetShardPool */
+    static final String TENANT_DATABASE_PREFIX = DATABASE_NAME + "-";
+
+    // value of PRAGMA auto_vacuum that keeps freed pages until PRAGMA incremental_vacuum
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // names of the secondary indexes on the pets table
+    static final String INDEX_BREED = "pets_breed_index";
+    static final String INDEX_WEIGHT = "pets_weight_index";
+    static final String INDEX_GENDER_NAME = "pets_gender_name_index";
+    static final String INDEX_NAME = "pets_name_index";
+    static final String INDEX_GENDER = "pets_gender_index";
+    static final String INDEX_GENDER_WEIGHT = "pets_gender_weight_index";
+    static final String INDEX_BREED_NAME = "pets_breed_name_index";
+    static final String INDEX_BREED_WEIGHT = "pets_breed_weight_index";
 
     private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " + PetContract.PetEntry.TABLE_NAME + " (" +
             PetContract.PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -22,17 +56,368 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
     private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + PetContract.PetEntry.TABLE_NAME;
 
+    // full text index of the name and breed, the docid of each row is the _id of its pet
+    private static final String SQL_CREATE_SEARCH = "CREATE VIRTUAL TABLE " + PetEntry.SEARCH_TABLE_NAME +
+            " USING fts4(" + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED;
+
+    // prefix indexes make short "ab*" queries a single lookup, they need sqlite 3.7.7 (api 16)
+    private static final String SEARCH_PREFIX_OPTION = ", prefix=\"2,3\"";
+
+    private static final String SQL_FILL_SEARCH = "INSERT INTO " + PetEntry.SEARCH_TABLE_NAME +
+            " (docid, " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")" +
+            " SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED +
+            " FROM " + PetEntry.TABLE_NAME;
+
+    // triggers that keep the search table in step with every write to the pets table
+    private static final String[] SQL_CREATE_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + PetEntry.SEARCH_TABLE_NAME +
+                    " (docid, " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")" +
+                    " VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME +
+                    ", new." + PetEntry.COLUMN_PET_BREED + "); END",
+            "CREATE TRIGGER pets_fts_delete AFTER DELETE ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + PetEntry.SEARCH_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END",
+            "CREATE TRIGGER pets_fts_update AFTER UPDATE OF " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + " ON " + PetEntry.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + PetEntry.SEARCH_TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED +
+                    " WHERE docid = old." + PetEntry._ID + "; END"};
+
+    /** the sqlite settings applied to every connection this helper opens */
+    private final PetDbTuning mTuning;
+
+    /** writes since the last background checkpoint */
+    private final AtomicInteger mWritesSinceCheckpoint = new AtomicInteger();
+
+    /** seconds the checkpoint thread waits for more work before it exits */
+    private static final long CHECKPOINT_THREAD_KEEP_ALIVE_S = 30;
+
+    /**
+     * single thread that runs the checkpoints so a writer never waits on one. It is shared by
+     * every helper, so the tenant databases opening and closing don't start a thread each. It is
+     * never shut down: the thread exits once it has been idle for a while and the next task
+     * starts another, and it is a daemon so it never keeps the process alive
+     */
+    private static final ExecutorService CHECKPOINT_EXECUTOR = new ThreadPoolExecutor(0, 1,
+            CHECKPOINT_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PetDbHelper checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** set on the checkpoint thread once the helper is closed, so no queued checkpoint reopens it */
+    private boolean mClosed;
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, PetDbTuning.DEFAULT);
+    }
+
+    public PetDbHelper(Context context, PetDbTuning tuning) {
+        this(context, tuning, null);
+    }
+
+    /** @param tenant the tenant whose database this is, null for the default petsDB */
+    public PetDbHelper(Context context, PetDbTuning tuning, String tenant) {
+        super(context, databaseName(tenant), null, DATABASE_VERSION);
+        mTuning = tuning;
+    }
+
+    /** the file name of the tenant's database, the default petsDB for null */
+    static String databaseName(String tenant) {
+        return tenant == null ? DATABASE_NAME : TENANT_DATABASE_PREFIX + tenant;
+    }
+
+    /**
+     * Apply the tuning and turn on write-ahead logging before the schema is touched. With WAL
+     * readers see the last commit and never wait on a writer, and android gives the database a
+     * pool of connections so the catalog's reads run alongside the editor's and import's writes.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        configure(db);
+    }
+
+    private void configure(SQLiteDatabase db) {
+        // the page size has to be set before WAL is on and the first table is created, and so
+        // does incremental auto vacuum - a database made before it was set is converted by the
+        // first maintenance instead
+        pragma(db, "page_size = " + mTuning.pageSize);
+        pragma(db, "auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.enableWriteAheadLogging();
+        // these only apply to the connection that runs them, which is the one all writes go
+        // through - the pooled read connections keep the platform defaults
+        pragma(db, "synchronous = " + mTuning.synchronous);
+        pragma(db, "cache_size = " + (-mTuning.cacheSizeKb));
+        pragma(db, "mmap_size = " + mTuning.mmapSize);
+        pragma(db, "temp_store = " + mTuning.tempStore);
+        pragma(db, "wal_autocheckpoint = " + mTuning.walAutoCheckpoint);
+        pragma(db, "journal_size_limit = " + mTuning.journalSizeLimit);
+    }
+
+    /** run a pragma, reading its result row if it has one so that it actually executes */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
+    /**
+     * Called by the provider after each write commits, a batch or transaction counts once. Every
+     * {@link PetDbTuning#checkpointEveryWrites} commits a checkpoint is run in the background so
+     * the log stays bounded under sustained writes, even when readers keep sqlite's own
+     * checkpoints from catching up.
+     */
+    void onWriteCommitted() {
+        int every = mTuning.checkpointEveryWrites;
+        if (every <= 0 || mWritesSinceCheckpoint.incrementAndGet() < every) return;
+        mWritesSinceCheckpoint.set(0);
+        CHECKPOINT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        });
+    }
+
+    /**
+     * Checkpoint without blocking anyone. Frames a reader still needs are left for the next
+     * checkpoint, which finds that reader gone; the log only starts again from the beginning once
+     * a checkpoint has copied all of it back, and the idle maintenance truncates it. Waiting for
+     * the readers here (RESTART) would hold the write lock for as long and stall every writer.
+     */
+    private void checkpoint() {
+        if (mClosed) return;
+        SQLiteDatabase db = getWritableDatabase();
+        // the change log grows with every write, so drop what the consumers have applied as often
+        // as the log is checkpointed, and before it so the deletes are checkpointed too
+        PetChangeLog.truncate(db);
+        long[] result = walCheckpoint(db, "PASSIVE");
+        Log.d(LOG_TAG, "checkpoint: " + result[2] + " of " + result[1] + " log frames");
+    }
+
+    /**
+     * Drop applied changes from the change log, give the pages freed by deletes back to the file
+     * system, refresh the statistics the query planner works from and truncate the log. It takes the write lock for as long as it runs -
+     * on a database made before incremental auto vacuum was turned on that is a full VACUUM to
+     * convert it - so it is only meant to be run while the device is idle.
+     */
+    void maintain() {
+        SQLiteDatabase db = getWritableDatabase();
+        PetChangeLog.truncate(db);
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            // only takes effect once the whole file is rebuilt, which also drops the free pages
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+            Log.i(LOG_TAG, "maintain: converted to incremental auto vacuum");
+        } else {
+            // execSQL steps it to the end, stepping a cursor once would only free a single page
+            db.execSQL("PRAGMA incremental_vacuum");
+        }
+        db.execSQL("ANALYZE");
+        // only does anything on sqlite 3.18 and later (api 27), older versions ignore it
+        db.execSQL("PRAGMA optimize");
+        // sqlite before 3.8.8 does not know TRUNCATE and runs a passive checkpoint instead
+        walCheckpoint(db, "TRUNCATE");
+    }
+
+    /**
+     * Close the helper behind any checkpoints already queued for it, for a database that is done
+     * with. Closing it straight away could pull the database out from under a running checkpoint.
+     */
+    void closeAfterCheckpoints() {
+        CHECKPOINT_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mClosed = true;
+                close();
+            }
+        });
+    }
+
+    /** bytes the database takes on disk, the main file and its write-ahead log together */
+    long databaseBytes() {
+        String path = getWritableDatabase().getPath();
+        return new File(path).length() + new File(path + "-wal").length();
+    }
+
+    /** @return busy, frames in the log and frames checkpointed, as PRAGMA wal_checkpoint gives them */
+    private static long[] walCheckpoint(SQLiteDatabase db, String mode) {
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+        try {
+            if (!cursor.moveToFirst()) return new long[3];
+            return new long[]{cursor.getLong(0), cursor.getLong(1), cursor.getLong(2)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Every step of the schema after the first version, in order. To change the schema add a new
+     * migration to the end - never edit one that has shipped.
+     */
+    private static final PetMigration[] MIGRATIONS = {
+            // full text search over the name and breed
+            new PetMigration(2) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createSearchTable(db);
+                    db.execSQL(SQL_FILL_SEARCH);
+                }
+            },
+            // indexes for the filtered and sorted catalog queries. The (gender, name) index also
+            // finds the pets of a gender, but in name order; migration 5 adds a gender index,
+            // which is (gender, _id), for the newest first pages of a gender
+            new PetMigration(3) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_BREED + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_BREED + ")");
+                    db.execSQL("CREATE INDEX " + INDEX_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_WEIGHT + ")");
+                    db.execSQL("CREATE INDEX " + INDEX_GENDER_NAME + " ON " + PetEntry.TABLE_NAME +
+                            " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_NAME + ")");
+                }
+            },
+            // running totals by gender and breed for the stats uri
+            new PetMigration(4) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    PetStats.create(db);
+                }
+            },
+            // an index for every catalog filter and sort the provider offers, so each one reads
+            // its page straight out of an index in order. Every index ends in the _id, so the
+            // breed and gender indexes on their own give the newest first order within them
+            new PetMigration(5) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    createIndex(db, INDEX_NAME, PetEntry.COLUMN_PET_NAME);
+                    createIndex(db, INDEX_GENDER, PetEntry.COLUMN_PET_GENDER);
+                    createIndex(db, INDEX_GENDER_WEIGHT, PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT);
+                    createIndex(db, INDEX_BREED_NAME, PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_NAME);
+                    createIndex(db, INDEX_BREED_WEIGHT, PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_WEIGHT);
+                }
+            },
+            // the file name of each pet's photo. The photos themselves are files next to the
+            // database so they never end up in a cursor window, see PetPhotoStore
+            new PetMigration(6) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                            PetEntry.COLUMN_PET_PHOTO + " TEXT");
+                }
+            },
+            // a log of every change to the pets table so clients can apply deltas instead of
+            // loading everything again, see PetChangeLog
+            new PetMigration(7) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    PetChangeLog.create(db);
+                }
+            },
+            // the sync id, last write and dirty flag of every pet for syncing with the clinic
+            // registry, kept beside the pets table, see PetSyncStore
+            new PetMigration(8) {
+                @Override
+                public void migrate(SQLiteDatabase db) {
+                    PetSyncStore.create(db);
+                }
+            },
+    };
+
+    private static final int DATABASE_VERSION = MIGRATIONS[MIGRATIONS.length - 1].getVersion();
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        // create the first version of the schema then bring it up to date the same way an
+        // upgrade would, so a new install and an upgraded one always end up identical
         db.execSQL(SQL_CREATE_ENTRIES);
+        migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // before jelly bean there is no onConfigure, so the tuning is applied here instead
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            configure(db);
+        }
+        // catch a query that has stopped using its index while developing, it costs microseconds
+        if (BuildConfig.DEBUG) {
+            List<String> problems = PetQueryPlans.verify(db);
+            for (String problem : problems) {
+                Log.w(LOG_TAG, "Query plan: " + problem);
+            }
+        }
+    }
+
+    /**
+     * Run the migrations after fromVersion up to and including toVersion. Each one runs in a
+     * transaction of its own only when nothing else holds one: called from onCreate or onUpgrade
+     * they are all nested in the transaction SQLiteOpenHelper holds for the whole upgrade, so a
+     * step that fails rolls back every step before it and the database stays at its old version.
+     */
+    static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (PetMigration migration : MIGRATIONS) {
+            if (migration.getVersion() <= fromVersion || migration.getVersion() > toVersion) continue;
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.i(LOG_TAG, "Migrated database to version " + migration.getVersion());
+        }
+    }
+
+    /** the migration that brings the database to the version, for the tests that run the steps one at a time */
+    static PetMigration getMigration(int version) {
+        for (PetMigration migration : MIGRATIONS) {
+            if (migration.getVersion() == version) return migration;
+        }
+        throw new IllegalArgumentException("No migration to version " + version);
+    }
+
+    /** the version the migrations bring a database to, its PRAGMA user_version once it is up to date */
+    static int schemaVersion() {
+        return DATABASE_VERSION;
+    }
+
+    private static void createIndex(SQLiteDatabase db, String name, String columns) {
+        db.execSQL("CREATE INDEX " + name + " ON " + PetEntry.TABLE_NAME + " (" + columns + ")");
+    }
+
+    /** create the full text search table and the triggers that keep it up to date */
+    private static void createSearchTable(SQLiteDatabase db) {
+        String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+        db.execSQL(SQL_CREATE_SEARCH + (supportsPrefixIndex(version) ? SEARCH_PREFIX_OPTION : "") + ")");
+        for (String trigger : SQL_CREATE_SEARCH_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
 
+    /** check the sqlite version is 3.7.7 or later */
+    private static boolean supportsPrefixIndex(String version) {
+        String[] parts = version.split("\\.");
+        int major = Integer.parseInt(parts[0]);
+        int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        int patch = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+        return major > 3 || (major == 3 && (minor > 7 || (minor == 7 && patch >= 7)));
     }
 }
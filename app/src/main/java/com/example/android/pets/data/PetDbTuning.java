@@ -0,0 +1,62 @@
+package com.example.android.pets.data;
+
+/**
+ * The sqlite settings {@link PetDbHelper} applies when it opens the pets database, and how
+ * often it checkpoints the write-ahead log.
+ */
+public class PetDbTuning {
+
+    // values for PRAGMA synchronous
+    public static final int SYNCHRONOUS_OFF = 0;
+    public static final int SYNCHRONOUS_NORMAL = 1;
+    public static final int SYNCHRONOUS_FULL = 2;
+
+    // values for PRAGMA temp_store
+    public static final int TEMP_STORE_DEFAULT = 0;
+    public static final int TEMP_STORE_FILE = 1;
+    public static final int TEMP_STORE_MEMORY = 2;
+
+    /**
+     * NORMAL sync is safe with WAL - a crash can lose the last commits but never corrupts the
+     * database - and it skips the fsync on every commit. 8MB page cache, 64MB memory map, temp
+     * tables in memory, and a checkpoint after every 500 writes with the log held to 4MB.
+     */
+    public static final PetDbTuning DEFAULT = new PetDbTuning(SYNCHRONOUS_NORMAL, 8 * 1024,
+            64L * 1024 * 1024, 4096, TEMP_STORE_MEMORY, 1000, 4L * 1024 * 1024, 500);
+
+    /** PRAGMA synchronous, one of the SYNCHRONOUS_ constants */
+    public final int synchronous;
+
+    /** page cache size in KB, PRAGMA cache_size is given it as a negative number */
+    public final int cacheSizeKb;
+
+    /** bytes of the database file to memory map, 0 turns memory mapping off */
+    public final long mmapSize;
+
+    /** page size in bytes, only takes effect when the database file is created */
+    public final int pageSize;
+
+    /** PRAGMA temp_store, one of the TEMP_STORE_ constants */
+    public final int tempStore;
+
+    /** pages in the log before sqlite checkpoints on commit by itself */
+    public final int walAutoCheckpoint;
+
+    /** bytes the log file is truncated back to after a checkpoint */
+    public final long journalSizeLimit;
+
+    /** committed writes between the checkpoints run in the background, a batch counts once, 0 leaves it to sqlite */
+    public final int checkpointEveryWrites;
+
+    public PetDbTuning(int synchronous, int cacheSizeKb, long mmapSize, int pageSize, int tempStore,
+                       int walAutoCheckpoint, long journalSizeLimit, int checkpointEveryWrites) {
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+        this.pageSize = pageSize;
+        this.tempStore = tempStore;
+        this.walAutoCheckpoint = walAutoCheckpoint;
+        this.journalSizeLimit = journalSizeLimit;
+        this.checkpointEveryWrites = checkpointEveryWrites;
+    }
+}
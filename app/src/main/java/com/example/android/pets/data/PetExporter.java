@@ -0,0 +1,144 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the pets table out as csv or json for {@link PetProvider}'s export uri.
+ *
+ * Rows are read in _id order a chunk at a time, each chunk starting after the last _id of the one
+ * before, and written out as they are read. Memory stays the same however big the table is, and
+ * unlike one cursor over the whole table no window fill has to step over the rows before it.
+ * Rows written while an export runs are included if their chunk has not been read yet.
+ */
+class PetExporter {
+
+    /** Rows read per query */
+    private static final int CHUNK_SIZE = 1000;
+
+    /** The exported columns in the order they are written */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BREED = 2;
+    private static final int GENDER = 3;
+    private static final int WEIGHT = 4;
+
+    private final SQLiteDatabase mDatabase;
+
+    PetExporter(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Write a header row of column names then a row per pet, quoted as in RFC 4180.
+     * @return the number of pets written
+     */
+    int writeCsv(Writer out) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) out.write(',');
+            out.write(COLUMNS[i]);
+        }
+        out.write("\r\n");
+
+        int rows = 0;
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (cursor.getCount() == 0) return rows;
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(ID);
+                    out.write(Long.toString(lastId));
+                    out.write(',');
+                    writeCsvField(out, cursor.getString(NAME));
+                    out.write(',');
+                    if (!cursor.isNull(BREED)) writeCsvField(out, cursor.getString(BREED));
+                    out.write(',');
+                    out.write(Integer.toString(cursor.getInt(GENDER)));
+                    out.write(',');
+                    out.write(Integer.toString(cursor.getInt(WEIGHT)));
+                    out.write("\r\n");
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Write a json array with an object per pet, a pet with no breed has a null breed.
+     * @return the number of pets written
+     */
+    int writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        int rows = 0;
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryChunk(lastId);
+            try {
+                if (cursor.getCount() == 0) break;
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(ID);
+                    writer.beginObject();
+                    writer.name(PetEntry._ID).value(lastId);
+                    writer.name(PetEntry.COLUMN_PET_NAME).value(cursor.getString(NAME));
+                    writer.name(PetEntry.COLUMN_PET_BREED);
+                    if (cursor.isNull(BREED)) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(cursor.getString(BREED));
+                    }
+                    writer.name(PetEntry.COLUMN_PET_GENDER).value(cursor.getInt(GENDER));
+                    writer.name(PetEntry.COLUMN_PET_WEIGHT).value(cursor.getInt(WEIGHT));
+                    writer.endObject();
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        writer.endArray();
+        writer.flush();
+        return rows;
+    }
+
+    private Cursor queryChunk(long afterId) {
+        return mDatabase.query(PetEntry.TABLE_NAME, COLUMNS, PetEntry._ID + ">?",
+                new String[]{String.valueOf(afterId)}, null, null, PetEntry._ID,
+                String.valueOf(CHUNK_SIZE));
+    }
+
+    /**
+     * quote the field if it holds a comma, quote or line break, doubling any quotes. An empty
+     * string is quoted too, an empty field is how csv says null.
+     */
+    private static void writeCsvField(Writer out, String value) throws IOException {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Random;
+
+/**
+ * Makes up pets for filling the database to realistic sizes. The same seed always gives the same
+ * pets in the same order, so a profiling run can be repeated on exactly the same data.
+ *
+ * Names are skewed towards the popular ones so plenty of pets share a name, breeds follow rough
+ * shelter frequencies with some pets of unknown breed, and each breed's weights are spread
+ * log-normally around a typical weight for it.
+ */
+public class PetGenerator {
+
+    /** Most popular first, the earlier a name is the more often it is picked */
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Milo", "Bailey", "Buddy",
+            "Lola", "Rocky", "Sadie", "Oliver", "Molly", "Bear", "Stella", "Duke", "Maggie", "Tucker",
+            "Chloe", "Leo", "Penny", "Jack", "Zoe", "Toby", "Nala", "Simba", "Coco", "Oscar",
+            "Ruby", "Loki", "Rosie", "Teddy", "Lily", "Winston", "Pepper", "Bruno", "Ginger", "Toto",
+            "Biscuit", "Hazel", "Murphy", "Willow", "Gus", "Cleo", "Finn", "Olive", "Ziggy", "Mochi"};
+
+    private static final String[] BREEDS = {
+            "Labrador", "Domestic Shorthair", "German Shepherd", "Tabby", "Golden Retriever",
+            "Beagle", "Siamese", "Terrier", "Poodle", "Bulldog", "Maine Coon", "Chihuahua",
+            "Dachshund", "Persian", "Boxer", "Husky", "Rabbit", "Hamster"};
+
+    /** How often each breed turns up, relative to the others */
+    private static final int[] BREED_FREQUENCY = {
+            14, 16, 8, 10, 7, 6, 5, 6, 5, 4, 3, 4, 3, 2, 3, 3, 4, 2};
+
+    /** Typical weight of each breed in kg */
+    private static final int[] BREED_WEIGHT = {
+            32, 4, 34, 5, 30, 10, 4, 8, 12, 23, 7, 2, 9, 4, 29, 23, 2, 1};
+
+    /** Share of pets whose breed is not known, in percent */
+    private static final int UNKNOWN_BREED_PERCENT = 8;
+
+    /** Share of pets whose gender is not known, in percent */
+    private static final int UNKNOWN_GENDER_PERCENT = 6;
+
+    /** Typical weight in kg of a pet whose breed is not known */
+    private static final int UNKNOWN_BREED_WEIGHT = 10;
+
+    private final Random mRandom;
+    private final int mFrequencyTotal;
+
+    public PetGenerator(long seed) {
+        mRandom = new Random(seed);
+        int total = 0;
+        for (int frequency : BREED_FREQUENCY) {
+            total += frequency;
+        }
+        mFrequencyTotal = total;
+    }
+
+    /** A new pet */
+    public ContentValues next() {
+        ContentValues values = new ContentValues();
+        next(values);
+        return values;
+    }
+
+    /** Put the next pet into values, overwriting the pet it held before */
+    public void next(ContentValues values) {
+        // squaring a uniform number skews the pick towards the start of the list
+        double skew = mRandom.nextDouble();
+        values.put(PetEntry.COLUMN_PET_NAME, NAMES[(int) (skew * skew * NAMES.length)]);
+
+        int breed = pickBreed();
+        values.put(PetEntry.COLUMN_PET_BREED, breed == -1 ? null : BREEDS[breed]);
+
+        int gender = mRandom.nextInt(100);
+        if (gender < UNKNOWN_GENDER_PERCENT) {
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        } else {
+            values.put(PetEntry.COLUMN_PET_GENDER,
+                    gender % 2 == 0 ? PetEntry.GENDER_MALE : PetEntry.GENDER_FEMALE);
+        }
+
+        // log-normal, most pets are near the typical weight and a few are a lot heavier
+        int typical = breed == -1 ? UNKNOWN_BREED_WEIGHT : BREED_WEIGHT[breed];
+        long weight = Math.round(typical * Math.exp(0.3 * mRandom.nextGaussian()));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, (int) Math.max(weight, 1));
+    }
+
+    /** index into BREEDS by frequency, or -1 for an unknown breed */
+    private int pickBreed() {
+        if (mRandom.nextInt(100) < UNKNOWN_BREED_PERCENT) return -1;
+        int pick = mRandom.nextInt(mFrequencyTotal);
+        for (int i = 0; i < BREED_FREQUENCY.length; i++) {
+            pick -= BREED_FREQUENCY[i];
+            if (pick < 0) return i;
+        }
+        return BREEDS.length - 1;
+    }
+}
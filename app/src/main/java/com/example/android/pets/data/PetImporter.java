@@ -0,0 +1,221 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads pets in the csv or json the export uri writes and inserts them through
+ * {@link PetProvider#bulkInsert}.
+ *
+ * The input is parsed as it streams in and inserted a chunk at a time, each chunk in its own
+ * transaction, so memory stays the same however long the input is. Imported pets get new _ids,
+ * an _id in the input is ignored. A chunk with a bad pet fails as a whole and stops the import,
+ * the chunks before it stay imported.
+ */
+public class PetImporter {
+
+    /** Pets inserted per bulkInsert transaction */
+    public static final int CHUNK_SIZE = 2000;
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Callback after every chunk, on the thread running the import */
+    public interface Listener {
+        void onImportProgress(int imported, long elapsedMs);
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+
+    /** The pets parsed since the last insert, the values objects are reused for every chunk */
+    private final ContentValues[] mChunk = new ContentValues[CHUNK_SIZE];
+    private int mChunkCount;
+    private int mImported;
+    private long mStart;
+
+    /** @param listener told of the progress after every chunk, can be null */
+    public PetImporter(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+        for (int i = 0; i < mChunk.length; i++) {
+            mChunk[i] = new ContentValues();
+        }
+    }
+
+    /**
+     * Import csv with a header row naming the columns, columns other than the pet columns are
+     * ignored. An empty breed is imported as no breed, and a quoted empty one as an empty breed,
+     * which is how {@link PetExporter} tells the two apart.
+     * @return the number of pets imported
+     */
+    public int importCsv(InputStream in) throws IOException {
+        start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        List<String> fields = new ArrayList<>();
+        if (!readCsvRecord(reader, fields)) return finish();
+        String[] header = fields.toArray(new String[fields.size()]);
+
+        int line = 1;
+        while (readCsvRecord(reader, fields)) {
+            line++;
+            if (fields.size() == 1 && fields.get(0) == null) continue;
+            if (fields.size() != header.length) {
+                throw new IOException("Line " + line + " has " + fields.size() + " fields, expected "
+                        + header.length);
+            }
+            ContentValues values = nextValues();
+            for (int i = 0; i < header.length; i++) {
+                putField(values, header[i], fields.get(i), line);
+            }
+        }
+        return finish();
+    }
+
+    /**
+     * Import a json array with an object per pet. Unknown names are skipped.
+     * @return the number of pets imported
+     */
+    public int importJson(InputStream in) throws IOException {
+        start();
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ContentValues values = nextValues();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (PetEntry.COLUMN_PET_NAME.equals(name) || PetEntry.COLUMN_PET_BREED.equals(name)) {
+                    values.put(name, reader.nextString());
+                } else if (PetEntry.COLUMN_PET_GENDER.equals(name) || PetEntry.COLUMN_PET_WEIGHT.equals(name)) {
+                    values.put(name, reader.nextInt());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return finish();
+    }
+
+    private void start() {
+        mChunkCount = 0;
+        mImported = 0;
+        mStart = SystemClock.elapsedRealtime();
+    }
+
+    /** the cleared values for the next pet, inserting the chunk first if it is full */
+    private ContentValues nextValues() {
+        if (mChunkCount == mChunk.length) flush();
+        ContentValues values = mChunk[mChunkCount++];
+        values.clear();
+        return values;
+    }
+
+    private void putField(ContentValues values, String column, String field, int line) throws IOException {
+        try {
+            if (PetEntry.COLUMN_PET_NAME.equals(column)) {
+                values.put(column, field);
+            } else if (PetEntry.COLUMN_PET_BREED.equals(column)) {
+                values.put(column, field);
+            } else if (PetEntry.COLUMN_PET_GENDER.equals(column) || PetEntry.COLUMN_PET_WEIGHT.equals(column)) {
+                values.put(column, Integer.parseInt(field));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + line + " has a bad " + column + " " + field);
+        }
+    }
+
+    /** insert the chunk in one transaction */
+    private void flush() {
+        if (mChunkCount == 0) return;
+        ContentValues[] chunk = mChunk;
+        if (mChunkCount < mChunk.length) {
+            chunk = new ContentValues[mChunkCount];
+            System.arraycopy(mChunk, 0, chunk, 0, mChunkCount);
+        }
+        try {
+            mImported += mResolver.bulkInsert(PetEntry.CONTENT_URI, chunk);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Import failed after " + mImported + " pets: "
+                    + e.getMessage(), e);
+        }
+        mChunkCount = 0;
+        if (mListener != null) mListener.onImportProgress(mImported, SystemClock.elapsedRealtime() - mStart);
+    }
+
+    private int finish() {
+        flush();
+        long elapsed = SystemClock.elapsedRealtime() - mStart;
+        Log.d(LOG_TAG, "import: " + mImported + " rows in " + elapsed + "ms ("
+                + (mImported * 1000L / Math.max(elapsed, 1)) + " rows/s)");
+        return mImported;
+    }
+
+    /**
+     * Read the fields of the next csv record into fields, quoted fields can hold commas, doubled
+     * quotes and line breaks. An empty field is read as null and a quoted empty one as "".
+     * @return false at the end of the input
+     */
+    private static boolean readCsvRecord(BufferedReader reader, List<String> fields) throws IOException {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        int c = reader.read();
+        if (c == -1) return false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) throw new IOException("Unterminated quoted field");
+                if (c == '"') {
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(toField(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n') reader.reset();
+                }
+                fields.add(toField(field, wasQuoted));
+                return true;
+            } else {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    private static String toField(StringBuilder field, boolean wasQuoted) {
+        return field.length() == 0 && !wasQuoted ? null : field.toString();
+    }
+}
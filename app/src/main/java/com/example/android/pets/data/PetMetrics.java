@@ -0,0 +1,154 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and row counters for {@link PetProvider}, one set per operation and uri.
+ *
+ * Recording is a few atomic adds into arrays allocated up front, so it can stay on in release
+ * builds. Latencies go into log scale buckets - four per power of two microseconds - which keeps
+ * every percentile within 25% of the real value without storing the samples.
+ */
+class PetMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int APPLY_BATCH = 5;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete", "apply_batch"};
+
+    /** Sub-buckets per power of two, as a number of bits */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /** Enough buckets for anything up to 2^40 us, a good twelve days */
+    private static final int BUCKETS = 41 << SUB_BUCKET_BITS;
+
+    private final String[] mUriNames;
+    private final Operation[][] mOperations;
+
+    /** @param uriNames name of each uri slot the provider records against, used in the keys */
+    PetMetrics(String... uriNames) {
+        mUriNames = uriNames;
+        mOperations = new Operation[OPERATION_NAMES.length][uriNames.length];
+        for (Operation[] operations : mOperations) {
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new Operation();
+            }
+        }
+    }
+
+    /** Record one finished operation, the times are from System.nanoTime */
+    void record(int operation, int uri, long startNanos, long lockWaitNanos, int rowsRead,
+                int rowsWritten) {
+        Operation op = mOperations[operation][uri];
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        op.buckets.incrementAndGet(bucketOf(micros));
+        op.count.incrementAndGet();
+        op.rowsRead.addAndGet(rowsRead);
+        op.rowsWritten.addAndGet(rowsWritten);
+        op.lockWaitMicros.addAndGet(lockWaitNanos / 1000);
+        long max;
+        do {
+            max = op.maxMicros.get();
+        } while (micros > max && !op.maxMicros.compareAndSet(max, micros));
+    }
+
+    /** Record the cursor of a query filling a window with rows */
+    void recordWindowFill(int uri, long startNanos) {
+        Operation op = mOperations[QUERY][uri];
+        op.windowFills.incrementAndGet();
+        op.windowFillMicros.addAndGet((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Start again from nothing, operations running meanwhile may be counted either side of it */
+    void reset() {
+        for (Operation[] operations : mOperations) {
+            for (Operation op : operations) {
+                op.reset();
+            }
+        }
+    }
+
+    /** Write every operation that has run at least once into the bundle, see PetContract.METHOD_GET_METRICS */
+    void writeTo(Bundle bundle) {
+        for (int operation = 0; operation < mOperations.length; operation++) {
+            for (int uri = 0; uri < mUriNames.length; uri++) {
+                Operation op = mOperations[operation][uri];
+                long count = op.count.get();
+                if (count == 0) continue;
+                String prefix = OPERATION_NAMES[operation] + "." + mUriNames[uri] + ".";
+                bundle.putLong(prefix + "count", count);
+                bundle.putLong(prefix + "p50_us", percentile(op, count, 0.50));
+                bundle.putLong(prefix + "p95_us", percentile(op, count, 0.95));
+                bundle.putLong(prefix + "p99_us", percentile(op, count, 0.99));
+                bundle.putLong(prefix + "max_us", op.maxMicros.get());
+                bundle.putLong(prefix + "rows_read", op.rowsRead.get());
+                bundle.putLong(prefix + "rows_written", op.rowsWritten.get());
+                bundle.putLong(prefix + "lock_wait_us", op.lockWaitMicros.get());
+                if (operation == QUERY) {
+                    bundle.putLong(prefix + "window_fills", op.windowFills.get());
+                    bundle.putLong(prefix + "window_fill_us", op.windowFillMicros.get());
+                }
+            }
+        }
+    }
+
+    /** upper bound of the bucket holding the sample at the fraction, capped at the max seen */
+    private static long percentile(Operation op, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += op.buckets.get(i);
+            if (seen >= rank) return Math.min(upperBoundOf(i), op.maxMicros.get());
+        }
+        return op.maxMicros.get();
+    }
+
+    /** values below 4us get a bucket each, above that each power of two is split in four */
+    private static int bucketOf(long micros) {
+        if (micros < (1 << SUB_BUCKET_BITS)) return (int) Math.max(micros, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        int bucket = ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS)) return bucket;
+        int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        int sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((long) ((1 << SUB_BUCKET_BITS) + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /** Counters for one operation on one uri */
+    private static final class Operation {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLong rowsRead = new AtomicLong();
+        final AtomicLong rowsWritten = new AtomicLong();
+        final AtomicLong lockWaitMicros = new AtomicLong();
+        final AtomicLong windowFills = new AtomicLong();
+        final AtomicLong windowFillMicros = new AtomicLong();
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            maxMicros.set(0);
+            rowsRead.set(0);
+            rowsWritten.set(0);
+            lockWaitMicros.set(0);
+            windowFills.set(0);
+            windowFillMicros.set(0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CrossProcessCursorWrapper;
+import android.database.CursorWindow;
+
+/**
+ * Wraps a query cursor that does not fit in one window so {@link PetMetrics} sees each time it
+ * has to go back to the database for the next window of rows. Every move goes through
+ * {@link #moveToPosition(int)} so only moves that leave the current window are timed.
+ */
+class PetMetricsCursor extends CrossProcessCursorWrapper {
+
+    private final AbstractWindowedCursor mWindowedCursor;
+    private final PetMetrics mMetrics;
+    private final int mUri;
+
+    PetMetricsCursor(AbstractWindowedCursor cursor, PetMetrics metrics, int uri) {
+        super(cursor);
+        mWindowedCursor = cursor;
+        mMetrics = metrics;
+        mUri = uri;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        CursorWindow window = mWindowedCursor.getWindow();
+        boolean fills = position >= 0 && position < getCount() && (window == null
+                || position < window.getStartPosition()
+                || position >= window.getStartPosition() + window.getNumRows());
+        if (!fills) return super.moveToPosition(position);
+        long start = System.nanoTime();
+        boolean moved = super.moveToPosition(position);
+        mMetrics.recordWindowFill(mUri, start);
+        return moved;
+    }
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        long start = System.nanoTime();
+        super.fillWindow(position, window);
+        mMetrics.recordWindowFill(mUri, start);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(getPosition() + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(getCount() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(getPosition() + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(getPosition() - 1);
+    }
+}
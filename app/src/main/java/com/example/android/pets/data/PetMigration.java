@@ -0,0 +1,25 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the pets database schema. A migration takes the database from the version before
+ * {@link #getVersion()} to that version. {@link PetDbHelper} runs them in order inside the
+ * helper's upgrade transaction, and a step can also be run and checked on its own.
+ */
+public abstract class PetMigration {
+
+    private final int mVersion;
+
+    protected PetMigration(int version) {
+        mVersion = version;
+    }
+
+    /** the version of the database once this step has run */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /** apply the step, the caller takes care of the transaction */
+    public abstract void migrate(SQLiteDatabase db);
+}
@@ -0,0 +1,95 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The pet photos, kept as files in a directory of their own rather than as blobs in the pets
+ * table, so a cursor over the pets only ever carries the short file name in the photo column.
+ *
+ * Every photo written gets a new file, and the provider points the pet at it once it is complete,
+ * so a reader never sees a half written photo and a cached thumbnail never outlives its photo.
+ * Files that no pet points to any more - from deleted pets, restored snapshots or photos that
+ * were being written when their pet went - are only removed by {@link #sweep}.
+ */
+final class PetPhotoStore {
+
+    private static final String LOG_TAG = PetPhotoStore.class.getSimpleName();
+
+    private static final String DIRECTORY = "photos";
+    private static final String SUFFIX = ".jpg";
+
+    /** A file younger than this may be a photo that is still being written, the sweep skips it */
+    private static final long SWEEP_MIN_AGE_MS = 60 * 60 * 1000;
+
+    private final File mDirectory;
+
+    PetPhotoStore(File filesDir) {
+        this(filesDir, null);
+    }
+
+    /** @param tenant the tenant whose photos these are, each has a directory of its own. Null for the default */
+    PetPhotoStore(File filesDir, String tenant) {
+        mDirectory = new File(filesDir, tenant == null ? DIRECTORY : DIRECTORY + "-" + tenant);
+    }
+
+    /** The file of a name from the photo column, null if the name is null */
+    File file(String name) {
+        if (name == null) return null;
+        // the names are only ever made by newFile, but don't let one reach outside the directory
+        if (name.indexOf(File.separatorChar) >= 0) throw new IllegalArgumentException("Bad photo name " + name);
+        return new File(mDirectory, name);
+    }
+
+    /** Create an empty file, with a name no other photo has had, for a new photo of the pet */
+    File newFile(long id) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        return File.createTempFile(id + "_", SUFFIX, mDirectory);
+    }
+
+    /** Delete the photo with the name from the photo column, nothing happens for null */
+    void delete(String name) {
+        File file = file(name);
+        if (file != null && !file.delete() && file.exists()) Log.w(LOG_TAG, "Cannot delete " + file);
+    }
+
+    /**
+     * Delete every photo file that no pet points to and that is old enough not to be a photo
+     * still being written. It reads the whole photo column, so it belongs with the other idle
+     * maintenance.
+     * @return the number of files deleted
+     */
+    int sweep(SQLiteDatabase db) {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length == 0) return 0;
+
+        Set<String> used = new HashSet<>();
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_PHOTO},
+                PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                used.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long oldest = System.currentTimeMillis() - SWEEP_MIN_AGE_MS;
+        int deleted = 0;
+        for (File file : files) {
+            if (used.contains(file.getName()) || file.lastModified() > oldest) continue;
+            if (file.delete()) deleted++;
+        }
+        return deleted;
+    }
+}
@@ -1,15 +1,45 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 
 /**
@@ -17,9 +47,21 @@ import com.example.android.pets.data.PetContract.PetEntry;
  */
 public class PetProvider extends ContentProvider {
 
-    /** Member variable for the helper for the sqlite database */
+    /** The database of each tenant, opened on first use and closed once idle */
+    private PetShardPool mShards;
+
+    /** Member variable for the helper for the default database, the one used when no tenant is given */
     PetDbHelper mDbHelper;
 
+    /** Sends the change notifications once writes have committed */
+    private PetChangeNotifier mNotifier;
+
+    /** Results of recent queries, dropped as soon as a write commits */
+    private PetQueryCache mQueryCache;
+
+    /** Latency and row counts of every operation, see PetContract.METHOD_GET_METRICS */
+    private final PetMetrics mMetrics = new PetMetrics(METRICS_URI_NAMES);
+
     /** Tag for the log messages */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
@@ -29,6 +71,106 @@ public class PetProvider extends ContentProvider {
     /** Static for the Pets table 1 row to be used by UriMatcher */
     private static final int PET_ID = 101;
 
+    /** Static for the full text search of the pets to be used by UriMatcher */
+    private static final int SEARCH = 102;
+
+    /** Static for the statistics totals row to be used by UriMatcher */
+    private static final int STATS = 103;
+
+    /** Static for the most common breeds to be used by UriMatcher */
+    private static final int STATS_BREEDS = 104;
+
+    /** Static for streaming every pet out as csv or json to be used by UriMatcher */
+    private static final int EXPORT = 105;
+
+    /** Static for the photo of a single pet to be used by UriMatcher */
+    private static final int PET_PHOTO = 106;
+
+    /** Static for the change log of the pets table to be used by UriMatcher */
+    private static final int CHANGES = 107;
+
+    /** Slots the metrics are recorded against, one per uri, see {@link #metricsSlot} */
+    private static final int METRICS_PETS = 0;
+    private static final int METRICS_PET_ID = 1;
+    private static final int METRICS_SEARCH = 2;
+    private static final int METRICS_STATS = 3;
+    private static final int METRICS_STATS_BREEDS = 4;
+    /** applyBatch records against a slot of its own, batches can touch any uri */
+    private static final int METRICS_BATCH = 5;
+    private static final int METRICS_PHOTO = 6;
+    private static final int METRICS_CHANGES = 7;
+    private static final int METRICS_EXPORT = 8;
+
+    /** Names the metrics use for each slot, in slot order */
+    private static final String[] METRICS_URI_NAMES = {
+            "pets", "pet_id", "search", "stats", "stats_breeds", "batch", "photo", "changes", "export"};
+
+    /** Breeds returned when the breeds uri does not give a limit */
+    private static final int DEFAULT_BREEDS_LIMIT = 5;
+
+    /** Search results returned when the search uri does not give a limit */
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    /** Changes returned when the changes uri does not give a limit */
+    private static final int DEFAULT_CHANGES_LIMIT = 1000;
+
+    /** Insert statement compiled once per bulkInsert and re-bound for every row */
+    private static final String SQL_INSERT_PET = "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+            PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    /** The columns in PetRecord column bit order, for building the update statements */
+    private static final String[] RECORD_COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    /**
+     * Statements for the PetRecord writes, compiled on first use by each thread that writes
+     * records. The bindings live in the statement, and a lock around binding and running a shared
+     * one would deadlock against a runInTransaction that holds the connection while its writes
+     * wait for the lock. A thread that ends leaves its statements open until shutdown, at most one
+     * insert and an update for each column mask.
+     */
+    private final ThreadLocal<RecordStatements> mRecordStatements = new ThreadLocal<RecordStatements>() {
+        @Override
+        protected RecordStatements initialValue() {
+            return new RecordStatements();
+        }
+    };
+
+    /**
+     * Every statement in mRecordStatements, whichever thread compiled it, so shutdown can close
+     * them. Guarded by itself.
+     */
+    private final List<SQLiteStatement> mOpenRecordStatements = new ArrayList<>();
+
+    /** Default number of operations applyBatch runs between yield points, 0 disables it */
+    public static final int DEFAULT_BATCH_YIELD_INTERVAL = 100;
+
+    /** Number of operations applyBatch runs before yielding the database to other threads */
+    private volatile int mBatchYieldInterval = DEFAULT_BATCH_YIELD_INTERVAL;
+
+    /** Default number of changes in each sync upload and download page */
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 500;
+
+    private volatile int mSyncBatchSize = DEFAULT_SYNC_BATCH_SIZE;
+
+    /** Held by a sync while it reads or writes the sync state, never across a request */
+    private final Object mSyncLock = new Object();
+
+    /** Every column of the pets table, used when the caller passes a null projection */
+    private static final String[] ALL_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
     /** Member variable for the UriMatcher */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -38,6 +180,28 @@ public class PetProvider extends ContentProvider {
 
         /** add Uri for a specific row in the pets table */
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+
+        /** add Uri for searching the pets table */
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, SEARCH);
+
+        /** add Uris for the statistics */
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS, STATS_BREEDS);
+
+        /** add Uri for exporting the pets table */
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, EXPORT);
+
+        /** add Uri for the photo of a specific pet */
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_PHOTO, PET_PHOTO);
+
+        /** add Uri for the changes to the pets table */
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, CHANGES);
     }
 
     /**
@@ -45,28 +209,100 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        mShards = new PetShardPool(getContext());
+        mDbHelper = mShards.defaultShard().helper;
+        mNotifier = new PetChangeNotifier(getContext().getContentResolver());
+        mQueryCache = new PetQueryCache(PetQueryCache.DEFAULT_MAX_BYTES);
         return true;
     }
 
+    /**
+     * Send the notifications still waiting for their debounce window, stop the background threads
+     * and close the databases. Android never calls this, it is for the unit tests, which create a
+     * provider per test.
+     */
+    @Override
+    public void shutdown() {
+        mNotifier.quit();
+        synchronized (mOpenRecordStatements) {
+            for (SQLiteStatement statement : mOpenRecordStatements) statement.close();
+            mOpenRecordStatements.clear();
+        }
+        mShards.close();
+    }
+
+    /** the database of the tenant the uri names, to be released once the caller is done with it */
+    private PetShardPool.Shard acquire(Uri uri) {
+        return mShards.acquire(uri.getQueryParameter(PetEntry.QUERY_PARAM_TENANT));
+    }
+
+    /**
+     * Set how long in ms a tenant's database stays open once nothing uses it, the default
+     * database is never closed.
+     */
+    public void setShardIdleTimeout(long idleTimeoutMs) {
+        mShards.setIdleTimeoutMs(idleTimeoutMs);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        PetShardPool.Shard shard = acquire(uri);
+        try {
+            return mShards.hold(shard, query(shard.helper, uri, projection, selection, selectionArgs, sortOrder));
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    private Cursor query(PetDbHelper helper, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
+        long start = System.nanoTime();
         // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        SQLiteDatabase database = helper.getReadableDatabase();
+        long lockWait = System.nanoTime() - start;
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+
+        // serve repeated queries from the cache - but not from inside a batch, where this thread
+        // can see rows that have not been committed yet. The changes are asked for once each,
+        // after the seq moved on, so caching them would only take space
+        boolean cacheable = match != UriMatcher.NO_MATCH && match != CHANGES && !database.inTransaction();
+        PetQueryCache.Key cacheKey = null;
+        long generation = mQueryCache.currentGeneration();
+        if (cacheable) {
+            cacheKey = new PetQueryCache.Key(match, uri.toString(), projection, selection,
+                    selectionArgs, sortOrder);
+            cursor = mQueryCache.get(cacheKey);
+            if (cursor != null) {
+                cursor.setNotificationUri(getContext().getContentResolver(), notifyUriForQuery(match, uri));
+                mMetrics.record(PetMetrics.QUERY, metricsSlot(match), start, lockWait, cursor.getCount(), 0);
+                return cursor;
+            }
+        }
+
         switch (match) {
             case PETS:
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                List<String> filterArgs = new ArrayList<>();
+                String filter = filterSelection(uri, filterArgs);
+                if (filter != null) {
+                    selection = selection == null ? filter : "(" + selection + ") AND " + filter;
+                    selectionArgs = appendArgs(selectionArgs, filterArgs.toArray(new String[filterArgs.size()]));
+                }
+                if (isPageQuery(uri)) {
+                    cursor = queryPage(database, uri, projection, selection, selectionArgs, sortOrder);
+                } else {
+                    checkSortOrder(sortOrder);
+                    cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                            null, null, sortOrder);
+                }
                 break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
@@ -81,17 +317,348 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
+                // Cursor containing that row of the table. The sort order is checked like any
+                // other but there is only the one row to sort
+                checkSortOrder(sortOrder);
                 cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                        null, null, null);
+                break;
+            case SEARCH:
+                if (selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException("Search results cannot be filtered or sorted " + uri);
+                }
+                cursor = search(database, uri, projection);
+                break;
+            case STATS:
+                cursor = isAllTenants(uri)
+                        ? mShards.aggregateStats().toSummaryCursor()
+                        : PetStats.querySummary(database);
+                break;
+            case STATS_BREEDS:
+                String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+                int breeds = limit == null ? DEFAULT_BREEDS_LIMIT : Integer.parseInt(limit);
+                cursor = isAllTenants(uri)
+                        ? mShards.aggregateStats().toBreedsCursor(breeds)
+                        : PetStats.queryTopBreeds(database, breeds);
+                break;
+            case CHANGES:
+                if (projection != null || selection != null || sortOrder != null) {
+                    throw new IllegalArgumentException("Changes cannot be projected, filtered or sorted " + uri);
+                }
+                String since = uri.getQueryParameter(PetChangeEntry.QUERY_PARAM_SINCE);
+                String changesLimit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+                cursor = PetChangeLog.queryChanges(database, since == null ? 0 : Long.parseLong(since),
+                        changesLimit == null ? DEFAULT_CHANGES_LIMIT : Integer.parseInt(changesLimit));
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        // sqlite cursors are lazy, so count the rows here to have the query actually run (and
+        // fill its first window) inside the time measured for it
+        long fillStart = System.nanoTime();
+        int rows = cursor.getCount();
+        if (cursor instanceof AbstractWindowedCursor) {
+            mMetrics.recordWindowFill(metricsSlot(match), fillStart);
+            CursorWindow window = ((AbstractWindowedCursor) cursor).getWindow();
+            // only results that did not fit in the first window need watching for more fills
+            if (window != null && window.getNumRows() < rows) {
+                cursor = new PetMetricsCursor((AbstractWindowedCursor) cursor, mMetrics, metricsSlot(match));
+            }
+        }
+
+        if (cacheable) mQueryCache.put(cacheKey, generation, cursor);
+        cursor.setNotificationUri(getContext().getContentResolver(), notifyUriForQuery(match, uri));
+        mMetrics.record(PetMetrics.QUERY, metricsSlot(match), start, lockWait, rows, 0);
         return cursor;
     }
 
+    /**
+     * whether a stats uri asks for the totals of every tenant. The cache still serves them: its
+     * generation moves on with a write to any tenant
+     */
+    private static boolean isAllTenants(Uri uri) {
+        if (!uri.getBooleanQueryParameter(PetStatsEntry.QUERY_PARAM_ALL_TENANTS, false)) return false;
+        if (uri.getQueryParameter(PetEntry.QUERY_PARAM_TENANT) != null) {
+            throw new IllegalArgumentException("Cannot ask for one tenant and every tenant " + uri);
+        }
+        return true;
+    }
+
+    /** the metrics slot of a match code, see {@link #METRICS_URI_NAMES} */
+    private static int metricsSlot(int match) {
+        switch (match) {
+            case PETS:
+                return METRICS_PETS;
+            case PET_ID:
+                return METRICS_PET_ID;
+            case SEARCH:
+                return METRICS_SEARCH;
+            case STATS:
+                return METRICS_STATS;
+            case STATS_BREEDS:
+                return METRICS_STATS_BREEDS;
+            case EXPORT:
+                return METRICS_EXPORT;
+            case PET_PHOTO:
+                return METRICS_PHOTO;
+            case CHANGES:
+                return METRICS_CHANGES;
+            default:
+                throw new IllegalArgumentException("No metrics slot for match " + match);
+        }
+    }
+
+    /** the uri a query's cursor watches for changes */
+    private static Uri notifyUriForQuery(int match, Uri uri) {
+        // any change to the pets table can change search results and statistics, including
+        // single row changes
+        switch (match) {
+            case SEARCH:
+            case STATS:
+            case STATS_BREEDS:
+            case CHANGES:
+                return PetEntry.CONTENT_URI;
+            default:
+                return uri;
+        }
+    }
+
+    /** Query cache hits since the provider was created */
+    public long getQueryCacheHits() {
+        return mQueryCache.hitCount();
+    }
+
+    /** Query cache misses, including entries that were found but had gone stale */
+    public long getQueryCacheMisses() {
+        return mQueryCache.missCount();
+    }
+
+    /** Query cache entries evicted to stay inside the memory budget */
+    public long getQueryCacheEvictions() {
+        return mQueryCache.evictionCount();
+    }
+
+    /**
+     * Full text search of the name and breed. Every word of the query is matched as the prefix of
+     * a word, pets that match on the name come before pets that only match on the breed, and
+     * within that they are ordered by name.
+     *
+     * The two tiers are the whole ranking. A relevance score would have to be worked out of fts4's
+     * matchinfo blob by a sql function, and android's sqlite has neither bm25 nor a way to add one.
+     */
+    private Cursor search(SQLiteDatabase database, Uri uri, String[] projection) {
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        if (limit == null) limit = String.valueOf(DEFAULT_SEARCH_LIMIT);
+
+        String[] terms = toSearchTerms(uri.getQueryParameter(PetEntry.QUERY_PARAM_SEARCH));
+        if (terms.length == 0) return new MatrixCursor(projection == null ? ALL_COLUMNS : projection);
+
+        StringBuilder anyColumn = new StringBuilder();
+        StringBuilder nameOnly = new StringBuilder();
+        for (String term : terms) {
+            anyColumn.append(term).append("* ");
+            nameOnly.append(PetEntry.COLUMN_PET_NAME).append(':').append(term).append("* ");
+        }
+
+        // each match is ranked 0 when it came from the name and 1 when it only came from the breed
+        String sql = "SELECT " + searchColumns(projection) +
+                " FROM " + PetEntry.TABLE_NAME + " p JOIN (" +
+                "SELECT docid, MIN(rank) AS rank FROM (" +
+                "SELECT docid, 0 AS rank FROM " + PetEntry.SEARCH_TABLE_NAME +
+                " WHERE " + PetEntry.SEARCH_TABLE_NAME + " MATCH ?" +
+                " UNION ALL " +
+                "SELECT docid, 1 AS rank FROM " + PetEntry.SEARCH_TABLE_NAME +
+                " WHERE " + PetEntry.SEARCH_TABLE_NAME + " MATCH ?" +
+                ") GROUP BY docid) m ON p." + PetEntry._ID + " = m.docid" +
+                " ORDER BY m.rank, p." + PetEntry.COLUMN_PET_NAME +
+                " LIMIT " + Integer.parseInt(limit);
+        return database.rawQuery(sql, new String[]{nameOnly.toString().trim(), anyColumn.toString().trim()});
+    }
+
+    /**
+     * split the typed text into words for the match expression, anything that is not a letter or
+     * digit is dropped so the text cannot inject fts operators or quotes
+     */
+    static String[] toSearchTerms(String query) {
+        if (query == null) return new String[0];
+        String cleaned = query.replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim();
+        if (cleaned.isEmpty()) return new String[0];
+        String[] terms = cleaned.split(" ");
+        for (int i = 0; i < terms.length; i++) {
+            // the operators are only operators in capitals, and the tokenizer folds ascii case, so
+            // in lower case they are searched for as the words they are
+            if (isSearchOperator(terms[i])) terms[i] = terms[i].toLowerCase(Locale.US);
+        }
+        return terms;
+    }
+
+    private static boolean isSearchOperator(String term) {
+        return term.equals("AND") || term.equals("OR") || term.equals("NOT") || term.equals("NEAR");
+    }
+
+    /** the projection as columns of the pets table aliased p, only pets columns are allowed */
+    private static String searchColumns(String[] projection) {
+        if (projection == null) projection = ALL_COLUMNS;
+        StringBuilder columns = new StringBuilder();
+        for (String column : projection) {
+            if (!isPetsColumn(column)) throw new IllegalArgumentException("Cannot search for " + column);
+            if (columns.length() > 0) columns.append(", ");
+            columns.append("p.").append(column).append(" AS ").append(column);
+        }
+        return columns.toString();
+    }
+
+    private static boolean isPetsColumn(String column) {
+        for (String petsColumn : ALL_COLUMNS) {
+            if (petsColumn.equals(column)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The where clause for the filter parameters of a pets uri, adding its arguments to args, or
+     * null if the uri has none. Every filter is answered from an index - gender and breed each
+     * have an index per sort key that starts with them, and the weight range is a range of the
+     * weight index or the (gender, weight) and (breed, weight) ones when paging by weight.
+     */
+    private static String filterSelection(Uri uri, List<String> args) {
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAM_GENDER);
+        String breed = uri.getQueryParameter(PetEntry.QUERY_PARAM_BREED);
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT);
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT);
+        // there is no index that has both, so the pair is not one of the shapes on offer
+        if (gender != null && breed != null) {
+            throw new IllegalArgumentException("Cannot filter by both gender and breed " + uri);
+        }
+
+        StringBuilder where = new StringBuilder();
+        if (gender != null) {
+            checkValidGender(Integer.parseInt(gender));
+            where.append(PetEntry.COLUMN_PET_GENDER).append("=?");
+            args.add(gender);
+        }
+        if (breed != null) {
+            where.append(PetEntry.COLUMN_PET_BREED).append("=?");
+            args.add(breed);
+        }
+        if (minWeight != null) {
+            if (where.length() > 0) where.append(" AND ");
+            where.append(PetEntry.COLUMN_PET_WEIGHT).append(">=?");
+            args.add(String.valueOf(Integer.parseInt(minWeight)));
+        }
+        if (maxWeight != null) {
+            if (where.length() > 0) where.append(" AND ");
+            where.append(PetEntry.COLUMN_PET_WEIGHT).append("<=?");
+            args.add(String.valueOf(Integer.parseInt(maxWeight)));
+        }
+        return where.length() == 0 ? null : "(" + where + ")";
+    }
+
+    /**
+     * only the sort orders in the contract are run, each has an index to read the rows in order
+     * so no query ever has to sort the whole table
+     */
+    private static void checkSortOrder(String sortOrder) {
+        if (sortOrder == null
+                || PetEntry.SORT_BY_NAME.equals(sortOrder)
+                || PetEntry.SORT_BY_WEIGHT.equals(sortOrder)
+                || PetEntry.SORT_BY_NEWEST.equals(sortOrder)) return;
+        throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+    }
+
+    /**
+     * Query one page of the pets table using keyset paging. Rather than an OFFSET, which makes
+     * sqlite step over every earlier row, the page starts right after the (sort key, _id) of the
+     * last row of the previous page so every page costs the same no matter how deep it is.
+     */
+    private Cursor queryPage(SQLiteDatabase database, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Paged queries are ordered by the "
+                    + PetEntry.QUERY_PARAM_SORT_KEY + " parameter, not a sort order");
+        }
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT);
+        if (limit != null && Integer.parseInt(limit) <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive " + uri);
+        }
+
+        String sortKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_SORT_KEY);
+        if (sortKey == null) sortKey = PetEntry._ID;
+        if (!isPageSortKey(sortKey)) throw new IllegalArgumentException("Cannot page by " + sortKey);
+
+        // a descending page walks the same index backwards, so every comparison is flipped
+        boolean descending = uri.getBooleanQueryParameter(PetEntry.QUERY_PARAM_DESCENDING, false);
+        String after = descending ? "<" : ">";
+        String until = descending ? ">" : "<";
+
+        String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID);
+        if (afterId != null) {
+            String keyset;
+            String[] keysetArgs;
+            if (sortKey.equals(PetEntry._ID)) {
+                keyset = PetEntry._ID + after + "?";
+                keysetArgs = new String[]{afterId};
+            } else {
+                String afterKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_KEY);
+                if (afterKey == null) throw new IllegalArgumentException("Missing page key " + uri);
+                // the inclusive bound on the key alone is what lets sqlite start the index scan
+                // at the page, the rest only sorts out the rows that share the key
+                keyset = sortKey + after + "=? AND (" + sortKey + after + "? OR " + PetEntry._ID + after + "?)";
+                keysetArgs = new String[]{afterKey, afterKey, afterId};
+            }
+            selection = selection == null ? keyset : "(" + selection + ") AND (" + keyset + ")";
+            selectionArgs = appendArgs(selectionArgs, keysetArgs);
+        }
+
+        String untilId = uri.getQueryParameter(PetEntry.QUERY_PARAM_UNTIL_ID);
+        if (untilId != null) {
+            String keyset;
+            String[] keysetArgs;
+            if (sortKey.equals(PetEntry._ID)) {
+                keyset = PetEntry._ID + until + "=?";
+                keysetArgs = new String[]{untilId};
+            } else {
+                String untilKey = uri.getQueryParameter(PetEntry.QUERY_PARAM_UNTIL_KEY);
+                if (untilKey == null) throw new IllegalArgumentException("Missing page key " + uri);
+                keyset = sortKey + until + "=? AND (" + sortKey + until + "? OR " + PetEntry._ID + until + "=?)";
+                keysetArgs = new String[]{untilKey, untilKey, untilId};
+            }
+            selection = selection == null ? keyset : "(" + selection + ") AND (" + keyset + ")";
+            selectionArgs = appendArgs(selectionArgs, keysetArgs);
+        }
+
+        String direction = descending ? " DESC" : "";
+        String orderBy = sortKey.equals(PetEntry._ID)
+                ? PetEntry._ID + direction
+                : sortKey + direction + ", " + PetEntry._ID + direction;
+        return database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, orderBy, limit);
+    }
+
+    /** a query of the pets uri is paged when it has a limit or any keyset bound */
+    private static boolean isPageQuery(Uri uri) {
+        return uri.getQueryParameter(PetEntry.QUERY_PARAM_LIMIT) != null
+                || uri.getQueryParameter(PetEntry.QUERY_PARAM_AFTER_ID) != null
+                || uri.getQueryParameter(PetEntry.QUERY_PARAM_UNTIL_ID) != null;
+    }
+
+    /** only the NOT NULL columns can be paged by, a null key would break the keyset comparison */
+    private static boolean isPageSortKey(String column) {
+        return PetEntry._ID.equals(column)
+                || PetEntry.COLUMN_PET_NAME.equals(column)
+                || PetEntry.COLUMN_PET_GENDER.equals(column)
+                || PetEntry.COLUMN_PET_WEIGHT.equals(column);
+    }
+
+    private static String[] appendArgs(String[] args, String[] extra) {
+        if (args == null || args.length == 0) return extra;
+        String[] all = new String[args.length + extra.length];
+        System.arraycopy(args, 0, all, 0, args.length);
+        System.arraycopy(extra, 0, all, args.length, extra.length);
+        return all;
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
@@ -100,14 +667,23 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return insertPet(uri, contentValues);
+                PetShardPool.Shard shard = acquire(uri);
+                try {
+                    long start = System.nanoTime();
+                    SQLiteDatabase database = shard.helper.getWritableDatabase();
+                    long lockWait = System.nanoTime() - start;
+                    Uri petUri = insertPet(shard.helper, database, uri, contentValues);
+                    mMetrics.record(PetMetrics.INSERT, metricsSlot(match), start, lockWait, 0, petUri == null ? 0 : 1);
+                    return petUri;
+                } finally {
+                    mShards.release(shard);
+                }
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
-    private Uri insertPet(Uri uri, ContentValues contentValues){
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    private Uri insertPet(PetDbHelper helper, SQLiteDatabase database, Uri uri, ContentValues contentValues){
         if (checkValidValues(contentValues)) {
             long id = database.insert(PetEntry.TABLE_NAME, null, contentValues);
 
@@ -117,25 +693,447 @@ public class PetProvider extends ContentProvider {
             }
             // Once we know the ID of the new row in the table,
             // return the new URI with the ID appended to the end of it
-            getContext().getContentResolver().notifyChange(uri, null);
-            return ContentUris.withAppendedId(uri, id);
+            Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            onRowsChanged(helper, database, petUri);
+            // the new row's uri has to name the tenant too, or it would be looked for in the default database
+            String tenant = uri.getQueryParameter(PetEntry.QUERY_PARAM_TENANT);
+            return tenant == null ? petUri : PetEntry.buildTenantUri(petUri, tenant);
         }
         return null;
     }
 
+    /**
+     * Insert a batch of pets in a single transaction. Every row is validated before anything is
+     * written so a bad row fails the whole batch, the insert statement is compiled once and
+     * re-bound for each row, and observers get a single change notification at the end.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                PetShardPool.Shard shard = acquire(uri);
+                try {
+                    return bulkInsertPets(shard.helper, values);
+                } finally {
+                    mShards.release(shard);
+                }
+            default:
+                throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
+        }
+    }
+
+    private int bulkInsertPets(PetDbHelper helper, ContentValues[] values) {
+        // validate up front so we never open a transaction for a batch that is going to fail
+        for (ContentValues contentValues : values) {
+            checkValidValues(contentValues);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        long startNanos = System.nanoTime();
+        SQLiteDatabase database = helper.getWritableDatabase();
+        SQLiteStatement statement = database.compileStatement(SQL_INSERT_PET);
+        int inserted = 0;
+        long lockStart = System.nanoTime();
+        database.beginTransaction();
+        long lockWait = System.nanoTime() - lockStart;
+        try {
+            for (ContentValues contentValues : values) {
+                bindPet(statement, contentValues);
+                // executeInsert throws rather than returning -1, which rolls the whole batch back
+                statement.executeInsert();
+                inserted++;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            statement.close();
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "bulkInsert: " + inserted + " rows in " + elapsed + "ms ("
+                + (inserted * 1000L / Math.max(elapsed, 1)) + " rows/s)");
+
+        if (inserted > 0) onRowsChanged(helper, database, PetEntry.CONTENT_URI);
+        mMetrics.record(PetMetrics.BULK_INSERT, metricsSlot(PETS), startNanos, lockWait, 0, inserted);
+        return inserted;
+    }
+
+    /** bind the values of one pet to the compiled {@link #SQL_INSERT_PET} statement */
+    private static void bindPet(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        statement.bindString(1, values.getAsString(PetEntry.COLUMN_PET_NAME));
+        String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, breed);
+        }
+        statement.bindLong(3, values.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+        statement.bindLong(4, values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+    }
+
+    /**
+     * Insert the pet into the default database through a precompiled statement, nothing is
+     * allocated for the write itself. Observers of the new pet's uri are notified, which includes
+     * observers of the whole table.
+     * @return the new _id, also set as the record's id, or -1 if the insert failed
+     */
+    public long insert(PetRecord pet) {
+        return insert(null, pet);
+    }
+
+    /**
+     * Insert the pet into the tenant's database. Only the default database keeps its statements
+     * compiled, a tenant's comes and goes with the pool so its writes compile one each time.
+     * @param tenant null for the default database
+     * @return the new _id, also set as the record's id, or -1 if the insert failed
+     */
+    public long insert(String tenant, PetRecord pet) {
+        checkValidRecord(pet, PetRecord.ALL_COLUMNS);
+        long start = System.nanoTime();
+        PetShardPool.Shard shard = mShards.acquire(tenant);
+        SQLiteStatement statement = null;
+        try {
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            long lockWait = System.nanoTime() - start;
+            if (tenant != null) {
+                statement = database.compileStatement(SQL_INSERT_PET);
+            } else {
+                RecordStatements statements = mRecordStatements.get();
+                if (statements.insert == null) statements.insert = compileRecordStatement(database, SQL_INSERT_PET);
+                statement = statements.insert;
+            }
+            bindRecord(statement, pet, PetRecord.ALL_COLUMNS);
+            long id = statement.executeInsert();
+            pet.id = id;
+            if (id != -1) onRowsChanged(shard.helper, database, ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+            mMetrics.record(PetMetrics.INSERT, metricsSlot(PETS), start, lockWait, 0, id == -1 ? 0 : 1);
+            return id;
+        } finally {
+            if (tenant != null && statement != null) statement.close();
+            mShards.release(shard);
+        }
+    }
+
+    /**
+     * Write every field of the record over the pet with the record's id, through a precompiled
+     * statement like {@link #insert(PetRecord)}.
+     * @return the number of rows changed
+     */
+    public int update(PetRecord pet) {
+        return update(pet, PetRecord.ALL_COLUMNS);
+    }
+
+    /**
+     * Write only the fields of the record in the columns mask over the pet with the record's id,
+     * the other columns are neither checked nor written and their triggers do not run.
+     * @param columns PetRecord column bits, 0 writes nothing
+     * @return the number of rows changed
+     */
+    public int update(PetRecord pet, int columns) {
+        return update(null, pet, columns);
+    }
+
+    /**
+     * Write only the fields of the record in the columns mask over the pet with the record's id
+     * in the tenant's database, see {@link #insert(String, PetRecord)}.
+     * @param tenant null for the default database
+     * @param columns PetRecord column bits, 0 writes nothing
+     * @return the number of rows changed
+     */
+    public int update(String tenant, PetRecord pet, int columns) {
+        columns &= PetRecord.ALL_COLUMNS;
+        if (columns == 0) return 0;
+        checkValidRecord(pet, columns);
+        long start = System.nanoTime();
+        PetShardPool.Shard shard = mShards.acquire(tenant);
+        SQLiteStatement statement = null;
+        try {
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            long lockWait = System.nanoTime() - start;
+            if (tenant != null) {
+                statement = database.compileStatement(buildUpdateSql(columns));
+            } else {
+                RecordStatements statements = mRecordStatements.get();
+                statement = statements.updates[columns];
+                if (statement == null) {
+                    statement = compileRecordStatement(database, buildUpdateSql(columns));
+                    statements.updates[columns] = statement;
+                }
+            }
+            int index = bindRecord(statement, pet, columns);
+            statement.bindLong(index, pet.id);
+            int rows = statement.executeUpdateDelete();
+            if (rows > 0) onRowsChanged(shard.helper, database, ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.id));
+            mMetrics.record(PetMetrics.UPDATE, metricsSlot(PET_ID), start, lockWait, 0, rows);
+            return rows;
+        } finally {
+            if (tenant != null && statement != null) statement.close();
+            mShards.release(shard);
+        }
+    }
+
+    /** compile a statement for mRecordStatements, closed by shutdown */
+    private SQLiteStatement compileRecordStatement(SQLiteDatabase database, String sql) {
+        SQLiteStatement statement = database.compileStatement(sql);
+        synchronized (mOpenRecordStatements) {
+            mOpenRecordStatements.add(statement);
+        }
+        return statement;
+    }
+
+    /** One thread's statements for the PetRecord writes */
+    private static final class RecordStatements {
+        SQLiteStatement insert;
+        /** An update statement for each mask of PetRecord column bits, indexed by the mask */
+        final SQLiteStatement[] updates = new SQLiteStatement[PetRecord.ALL_COLUMNS + 1];
+    }
+
+    /** UPDATE setting the masked columns, in bit order, of the pet whose _id is the last parameter */
+    private static String buildUpdateSql(int columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME).append(" SET ");
+        boolean first = true;
+        for (int i = 0; i < RECORD_COLUMNS.length; i++) {
+            if ((columns & (1 << i)) == 0) continue;
+            if (!first) sql.append(", ");
+            sql.append(RECORD_COLUMNS[i]).append(" = ?");
+            first = false;
+        }
+        return sql.append(" WHERE ").append(PetEntry._ID).append(" = ?").toString();
+    }
+
+    /**
+     * bind the masked fields of the record in bit order from parameter 1
+     * @return the index of the next parameter
+     */
+    private static int bindRecord(SQLiteStatement statement, PetRecord pet, int columns) {
+        int index = 1;
+        if ((columns & PetRecord.NAME) != 0) statement.bindString(index++, pet.name);
+        if ((columns & PetRecord.BREED) != 0) {
+            if (pet.breed == null) {
+                statement.bindNull(index++);
+            } else {
+                statement.bindString(index++, pet.breed);
+            }
+        }
+        if ((columns & PetRecord.GENDER) != 0) statement.bindLong(index++, pet.gender);
+        if ((columns & PetRecord.WEIGHT) != 0) statement.bindLong(index++, pet.weight);
+        return index;
+    }
+
+    /**
+     * Set how many operations {@link #applyBatch(ArrayList)} runs between calls to
+     * yieldIfContendedSafely, 0 only yields on operations built with withYieldAllowed.
+     */
+    public void setBatchYieldInterval(int interval) {
+        if (interval < 0) throw new IllegalArgumentException("Yield interval cannot be negative");
+        mBatchYieldInterval = interval;
+    }
+
+    /**
+     * Apply all the operations in a single transaction. Back references are resolved by
+     * {@link ContentProviderOperation#apply}, the transaction yields to waiting readers every
+     * {@link #mBatchYieldInterval} operations (or when the operation allows it), and each changed
+     * uri is notified only once after the whole batch has committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        PetShardPool.Shard shard = mShards.acquire(batchTenant(operations));
+        try {
+            return applyBatch(shard.helper, operations);
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    /**
+     * the tenant every operation of the batch writes to. The batch is one transaction, which can't
+     * span two databases
+     */
+    private static String batchTenant(List<ContentProviderOperation> operations) {
+        String tenant = null;
+        for (int i = 0; i < operations.size(); i++) {
+            String operationTenant = operations.get(i).getUri().getQueryParameter(PetEntry.QUERY_PARAM_TENANT);
+            if (i == 0) {
+                tenant = operationTenant;
+            } else if (!TextUtils.equals(tenant, operationTenant)) {
+                throw new IllegalArgumentException("A batch cannot write to more than one tenant, "
+                        + operations.get(i).getUri());
+            }
+        }
+        return tenant;
+    }
+
+    private ContentProviderResult[] applyBatch(PetDbHelper helper, ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        SQLiteDatabase database = helper.getWritableDatabase();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        int yieldInterval = mBatchYieldInterval;
+        boolean committed = false;
+        int written = 0;
+
+        mNotifier.beginTransaction();
+        database.beginTransaction();
+        // time spent getting the database and waiting to get it back after yielding it
+        long lockWait = System.nanoTime() - start;
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && (operation.isYieldAllowed()
+                        || (yieldInterval > 0 && i % yieldInterval == 0))) {
+                    long yieldStart = System.nanoTime();
+                    database.yieldIfContendedSafely();
+                    lockWait += System.nanoTime() - yieldStart;
+                }
+                results[i] = operation.apply(this, results, i);
+                if (results[i].count != null) {
+                    written += results[i].count;
+                } else if (results[i].uri != null) {
+                    written++;
+                }
+            }
+            database.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            database.endTransaction();
+            // a failed batch notifies nobody
+            mNotifier.endTransaction(committed);
+        }
+        onCommitted(helper, database);
+        mMetrics.record(PetMetrics.APPLY_BATCH, METRICS_BATCH, start, lockWait, 0, written);
+        return results;
+    }
+
+    /**
+     * Run the writes in one transaction of the default database, like {@link #applyBatch} but for
+     * the record writes.
+     * Observers are notified and the cached query results made stale once, after it commits. If
+     * the writes throw the transaction rolls back and the exception is passed on; a single write
+     * that fails can be caught inside without losing the others.
+     */
+    public void runInTransaction(Runnable writes) {
+        runInTransaction(null, writes);
+    }
+
+    /**
+     * Run the writes in one transaction of the tenant's database. Only the record writes to the
+     * same tenant are part of it, a write to another database commits on its own.
+     * @param tenant null for the default database
+     */
+    public void runInTransaction(String tenant, Runnable writes) {
+        PetShardPool.Shard shard = mShards.acquire(tenant);
+        try {
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            boolean committed = false;
+            mNotifier.beginTransaction();
+            database.beginTransaction();
+            try {
+                writes.run();
+                database.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                database.endTransaction();
+                mNotifier.endTransaction(committed);
+            }
+            onCommitted(shard.helper, database);
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    /**
+     * Bookkeeping after a write that changed rows: notify observers, and once the write has
+     * committed count it towards the next checkpoint and make the cached query results stale.
+     * Inside a batch both wait for the whole batch to commit, see {@link #onCommitted}.
+     */
+    private void onRowsChanged(PetDbHelper helper, SQLiteDatabase database, Uri notifyUri) {
+        // the notifications are per uri and not per tenant, so observers of every tenant hear of
+        // the write - they reload for nothing now and then, but never miss a change
+        mNotifier.notifyChange(notifyUri);
+        if (!database.inTransaction()) onCommitted(helper, database);
+    }
+
+    /**
+     * Bookkeeping after a batch or transaction of writes committed, it counts as one write towards
+     * the next checkpoint. Nested in a transaction that is still open nothing has committed yet,
+     * so it is left to the outermost one.
+     */
+    private void onCommitted(PetDbHelper helper, SQLiteDatabase database) {
+        if (database.inTransaction()) return;
+        helper.onWriteCommitted();
+        mQueryCache.invalidate();
+    }
+
+    /**
+     * Set how long in ms change notifications are held to merge bursts of writes, 0 sends them
+     * as soon as the write commits. The tests turn it off to see each notification as it is sent.
+     */
+    void setNotificationDebounce(long debounceMs) {
+        mNotifier.setDebounceMs(debounceMs);
+    }
+
+    /** check a whole pet for an insert, every column but the breed is required */
     private boolean checkValidValues(ContentValues values){
-        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        checkNoPhoto(values);
+        checkValidName(values.getAsString(PetEntry.COLUMN_PET_NAME));
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        if (gender == null) throw new IllegalArgumentException("Not a valid gender");
+        checkValidGender(gender);
+        // a missing weight fails the same way as a negative one
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        checkValidWeight(weight == null ? -1 : weight);
+        return true;
+    }
+
+    /**
+     * check only the columns an update sets, a column that is left out keeps its value but one
+     * that is there has to be valid
+     */
+    private static void checkValidUpdate(ContentValues values) {
+        checkNoPhoto(values);
+        if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
+            checkValidName(values.getAsString(PetEntry.COLUMN_PET_NAME));
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
+            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            if (gender == null) throw new IllegalArgumentException("Not a valid gender");
+            checkValidGender(gender);
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            checkValidWeight(weight == null ? -1 : weight);
+        }
+    }
+
+    /** check the columns of the record that are in the mask of PetRecord column bits */
+    private static void checkValidRecord(PetRecord pet, int columns) {
+        if ((columns & PetRecord.NAME) != 0) checkValidName(pet.name);
+        if ((columns & PetRecord.GENDER) != 0) checkValidGender(pet.gender);
+        if ((columns & PetRecord.WEIGHT) != 0) checkValidWeight(pet.weight);
+    }
+
+    /** the photo column only ever names a file the provider wrote, so it can't be set directly */
+    private static void checkNoPhoto(ContentValues values) {
+        if (values.containsKey(PetEntry.COLUMN_PET_PHOTO)) {
+            throw new IllegalArgumentException("The photo is set by writing the pet's photo uri");
+        }
+    }
+
+    private static void checkValidName(String name) {
         if(name == null || name.isEmpty()) throw new IllegalArgumentException("Pet requires a name");
+    }
 
-        int gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+    private static void checkValidGender(int gender) {
         if (gender != PetEntry.GENDER_FEMALE
                 && gender != PetEntry.GENDER_MALE
                 && gender != PetEntry.GENDER_UNKNOWN) throw new IllegalArgumentException("Not a valid gender") ;
+    }
 
-        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (weight == null || weight < 0) throw new IllegalArgumentException("Pet weight cannot be negative");
-
-        return true;
+    private static void checkValidWeight(int weight) {
+        if (weight < 0) throw new IllegalArgumentException("Pet weight cannot be negative");
     }
 
     /**
@@ -143,29 +1141,45 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
-        if (checkValidValues(contentValues)) {
-            final int match = sUriMatcher.match(uri);
+        // only the columns in the values are written, the rest of the row is left as it is
+        checkValidUpdate(contentValues);
+        // nothing to write, and sqlite would reject an update with no columns
+        if (contentValues.size() == 0) return 0;
+        final int match = sUriMatcher.match(uri);
+        PetShardPool.Shard shard = acquire(uri);
+        try {
+            long start = System.nanoTime();
+            SQLiteDatabase database = shard.helper.getWritableDatabase();
+            long lockWait = System.nanoTime() - start;
+            int rows;
             switch (match) {
                 case PETS:
-                    return updatePet(uri, contentValues, selection, selectionArgs);
+                    rows = updatePet(shard.helper, database, uri, contentValues, selection, selectionArgs);
+                    break;
                 case PET_ID:
                     // we are only updating one row so set selection to the id field
                     selection = PetEntry._ID + "=?";
                     // get the id from the uri
                     selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                     //update the pet using the updated selection and selectionArgs
-                    return updatePet(uri, contentValues, selection, selectionArgs);
+                    rows = updatePet(shard.helper, database, uri, contentValues, selection, selectionArgs);
+                    break;
                 default:
                     throw new IllegalArgumentException("update not supported for " + uri);
             }
+            mMetrics.record(PetMetrics.UPDATE, metricsSlot(match), start, lockWait, 0, rows);
+            return rows;
+        } finally {
+            mShards.release(shard);
         }
-        return 0;
     }
 
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs){
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        getContext().getContentResolver().notifyChange(uri, null);
-        return database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+    private int updatePet(PetDbHelper helper, SQLiteDatabase database, Uri uri, ContentValues values,
+                          String selection, String[] selectionArgs){
+        int rows = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        // only notify once the update has run, and only if it actually changed something
+        if (rows > 0) onRowsChanged(helper, database, notifyUriFor(uri));
+        return rows;
     }
 
     /**
@@ -173,20 +1187,491 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        PetShardPool.Shard shard = acquire(uri);
+        try {
+            return delete(shard, uri, selection, selectionArgs);
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    private int delete(PetShardPool.Shard shard, Uri uri, String selection, String[] selectionArgs) {
+        if (sUriMatcher.match(uri) == PET_PHOTO) return setPhoto(shard, photoPetId(uri), null);
+        long start = System.nanoTime();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        long lockWait = System.nanoTime() - start;
         final int match = sUriMatcher.match(uri);
         switch (match){
             case PETS:
-                getContext().getContentResolver().notifyChange(uri, null);
-                return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                // passing "1" rather than null makes sqlite report how many rows were deleted
+                if (selection == null) selection = "1";
+                break;
             case PET_ID:
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
-                getContext().getContentResolver().notifyChange(uri, null);
-                return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Delete not allowed for " + uri);
         }
+        int rows = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+        if (rows > 0) onRowsChanged(shard.helper, database, notifyUriFor(uri));
+        mMetrics.record(PetMetrics.DELETE, metricsSlot(match), start, lockWait, 0, rows);
+        return rows;
+    }
+
+    /**
+     * The uri to notify for a write to the given uri - the row uri for a single pet so observers
+     * of other rows are left alone, otherwise the whole table.
+     */
+    private Uri notifyUriFor(Uri uri) {
+        if (sUriMatcher.match(uri) == PET_ID) {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, ContentUris.parseId(uri));
+        }
+        return PetEntry.CONTENT_URI;
+    }
+
+    /**
+     * Open the export uri for reading, in the format given by its format parameter, or a pet's
+     * photo uri for reading or writing.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        switch (sUriMatcher.match(uri)) {
+            case EXPORT:
+                if (!"r".equals(mode)) throw new FileNotFoundException("Export can only be read " + uri);
+                return openExport(uri, exportTypeOf(uri), null);
+            case PET_PHOTO:
+                if ("r".equals(mode)) return openPhoto(uri, photoPetId(uri));
+                if ("w".equals(mode) || "wt".equals(mode)) return openPhotoForWrite(uri, photoPetId(uri));
+                throw new FileNotFoundException("Photos can only be read or written whole " + uri);
+            default:
+                throw new FileNotFoundException("Cannot open " + uri);
+        }
+    }
+
+    /** the _id of the pet in a photo uri, pets/#/photo */
+    private static long photoPetId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    private ParcelFileDescriptor openPhoto(Uri uri, long id) throws FileNotFoundException {
+        String name = null;
+        PetShardPool.Shard shard = acquire(uri);
+        try {
+            Cursor cursor = shard.helper.getReadableDatabase().query(PetEntry.TABLE_NAME,
+                    new String[]{PetEntry.COLUMN_PET_PHOTO}, PetEntry._ID + "=?",
+                    new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) name = cursor.getString(0);
+            } finally {
+                cursor.close();
+            }
+            File file = shard.photos.file(name);
+            if (file == null) throw new FileNotFoundException("No photo for pet " + id);
+            // a photo file never changes once the pet points to it, a new photo is a new file
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    /**
+     * Hand out the write end of a pipe and copy what comes through it into a new file on a
+     * background thread. Only when the writer closes its end is the pet pointed at the new file,
+     * so readers keep getting the old photo until the new one is complete.
+     */
+    private ParcelFileDescriptor openPhotoForWrite(Uri uri, final long id) throws FileNotFoundException {
+        final File file;
+        final ParcelFileDescriptor[] pipe;
+        // held until the photo has been received, the database has to stay open for setPhoto
+        final PetShardPool.Shard shard = acquire(uri);
+        try {
+            file = shard.photos.newFile(id);
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            mShards.release(shard);
+            throw new FileNotFoundException("Cannot write a photo for pet " + id + ": " + e.getMessage());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receivePhoto(shard, id, pipe[0], file);
+                } finally {
+                    mShards.release(shard);
+                }
+            }
+        });
+        return pipe[1];
+    }
+
+    private void receivePhoto(PetShardPool.Shard shard, long id, ParcelFileDescriptor input, File file) {
+        long start = SystemClock.elapsedRealtime();
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "photo: failed to write the photo of pet " + id, e);
+            file.delete();
+            return;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "photo: failed to close the pipe for pet " + id, e);
+            }
+        }
+        // nothing was written, the writer gave up before it started
+        if (file.length() == 0) {
+            file.delete();
+            return;
+        }
+        if (setPhoto(shard, id, file) == 0) file.delete();
+        Log.d(LOG_TAG, "photo: " + file.length() + " bytes for pet " + id + " in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Point the pet at the photo file, or at no photo for null, and delete the photo it had. Inside
+     * a batch the old file is only deleted once the batch commits, a batch that rolls back leaves
+     * the pet pointing at it.
+     * @return 1, or 0 if there is no pet with the id
+     */
+    private int setPhoto(PetShardPool.Shard shard, long id, File file) {
+        long start = System.nanoTime();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        long lockWait = System.nanoTime() - start;
+        String[] args = {String.valueOf(id)};
+        String oldName = null;
+        int rows;
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_PHOTO},
+                    PetEntry._ID + "=?", args, null, null, null);
+            try {
+                if (cursor.moveToFirst()) oldName = cursor.getString(0);
+            } finally {
+                cursor.close();
+            }
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_PHOTO, file == null ? null : file.getName());
+            rows = database.update(PetEntry.TABLE_NAME, values, PetEntry._ID + "=?", args);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (rows > 0) {
+            // readers that already opened the old photo keep reading it until they close it
+            final PetPhotoStore photos = shard.photos;
+            final String name = oldName;
+            mNotifier.afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    photos.delete(name);
+                }
+            });
+            onRowsChanged(shard.helper, database, ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+        }
+        mMetrics.record(PetMetrics.UPDATE, metricsSlot(PET_ID), start, lockWait, 0, rows);
+        return rows;
+    }
+
+    /**
+     * Open the export uri in whichever export format matches the mime type filter, csv if both do.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != EXPORT) return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) throw new FileNotFoundException("Cannot export " + uri + " as " + mimeTypeFilter);
+        return new AssetFileDescriptor(openExport(uri, types[0], opts),
+                0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) == PET_PHOTO) {
+            return ClipDescription.compareMimeTypes(PetEntry.PHOTO_TYPE, mimeTypeFilter)
+                    ? new String[]{PetEntry.PHOTO_TYPE} : null;
+        }
+        if (sUriMatcher.match(uri) != EXPORT) return null;
+        List<String> types = new ArrayList<>();
+        if (ClipDescription.compareMimeTypes(PetEntry.EXPORT_CSV_TYPE, mimeTypeFilter)) {
+            types.add(PetEntry.EXPORT_CSV_TYPE);
+        }
+        if (ClipDescription.compareMimeTypes(PetEntry.EXPORT_JSON_TYPE, mimeTypeFilter)) {
+            types.add(PetEntry.EXPORT_JSON_TYPE);
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    private static String exportTypeOf(Uri uri) {
+        String format = uri.getQueryParameter(PetEntry.QUERY_PARAM_FORMAT);
+        if (format == null || PetEntry.FORMAT_CSV.equals(format)) return PetEntry.EXPORT_CSV_TYPE;
+        if (PetEntry.FORMAT_JSON.equals(format)) return PetEntry.EXPORT_JSON_TYPE;
+        throw new IllegalArgumentException("Unknown export format " + format);
+    }
+
+    /** open the export pipe, the tenant's database is held until the export has been written */
+    private ParcelFileDescriptor openExport(Uri uri, String mimeType, Bundle opts) throws FileNotFoundException {
+        PetShardPool.Shard shard = acquire(uri);
+        try {
+            return openPipeHelper(uri, mimeType, opts, shard, mExportWriter);
+        } catch (FileNotFoundException | RuntimeException e) {
+            mShards.release(shard);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the export into the pipe on a background thread while the reader consumes it from
+     * the other end, so the export is never held in memory.
+     */
+    private final PipeDataWriter<PetShardPool.Shard> mExportWriter = new PipeDataWriter<PetShardPool.Shard>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                    Bundle opts, PetShardPool.Shard shard) {
+            long start = SystemClock.elapsedRealtime();
+            long startNanos = System.nanoTime();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output.getFileDescriptor()), Charset.forName("UTF-8")));
+            try {
+                PetExporter exporter = new PetExporter(shard.helper.getReadableDatabase());
+                int rows = PetEntry.EXPORT_JSON_TYPE.equals(mimeType)
+                        ? exporter.writeJson(writer)
+                        : exporter.writeCsv(writer);
+                writer.flush();
+                // an export is one long read of the whole table
+                mMetrics.record(PetMetrics.QUERY, metricsSlot(EXPORT), startNanos, 0, rows, 0);
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                Log.d(LOG_TAG, "export: " + rows + " rows in " + elapsed + "ms ("
+                        + (rows * 1000L / Math.max(elapsed, 1)) + " rows/s)");
+            } catch (IOException e) {
+                // most likely the reader closed its end early
+                Log.w(LOG_TAG, "export: stopped writing " + uri, e);
+            } finally {
+                mShards.release(shard);
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "export: failed to close " + uri, e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Run one of the PetContract METHOD_ commands.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_GET_METRICS.equals(method)) {
+            Bundle result = new Bundle();
+            mMetrics.writeTo(result);
+            result.putLong(PetContract.KEY_CACHE_HITS, mQueryCache.hitCount());
+            result.putLong(PetContract.KEY_CACHE_MISSES, mQueryCache.missCount());
+            result.putLong(PetContract.KEY_CACHE_EVICTIONS, mQueryCache.evictionCount());
+            result.putLong(PetContract.KEY_CACHE_STALE, mQueryCache.staleCount());
+            result.putLong(PetContract.KEY_CACHE_BYTES, mQueryCache.sizeBytes());
+            result.putLong(PetContract.KEY_SHARDS_OPEN, mShards.openCount());
+            return result;
+        }
+        if (PetContract.METHOD_RESET_METRICS.equals(method)) {
+            mMetrics.reset();
+            return null;
+        }
+        if (PetContract.METHOD_GET_TENANTS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putStringArrayList(PetContract.KEY_TENANTS, new ArrayList<>(mShards.tenants()));
+            return result;
+        }
+        // the rest run against one tenant's database
+        PetShardPool.Shard shard = mShards.acquire(extras == null ? null : extras.getString(PetContract.KEY_TENANT));
+        try {
+            return call(shard, method, arg, extras);
+        } finally {
+            mShards.release(shard);
+        }
+    }
+
+    private Bundle call(PetShardPool.Shard shard, String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_REBUILD_STATS.equals(method)) {
+            boolean consistent = PetStats.rebuild(shard.helper.getWritableDatabase());
+            if (!consistent) {
+                Log.w(LOG_TAG, "call: statistics had drifted from the pets table and were rebuilt");
+                mQueryCache.invalidate();
+                mNotifier.notifyChange(PetStatsEntry.CONTENT_URI);
+            }
+            Bundle result = new Bundle();
+            result.putBoolean(PetContract.KEY_STATS_CONSISTENT, consistent);
+            return result;
+        }
+        if (PetContract.METHOD_SAVE_SNAPSHOT.equals(method)
+                || PetContract.METHOD_RESTORE_SNAPSHOT.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing snapshot path for " + method);
+            return snapshot(shard, PetContract.METHOD_RESTORE_SNAPSHOT.equals(method), new File(arg));
+        }
+        if (PetContract.METHOD_SYNC.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing registry url for " + method);
+            return sync(shard, arg);
+        }
+        if (PetContract.METHOD_DELETE_CHUNK.equals(method)) {
+            int limit = arg == null ? PetContract.DEFAULT_DELETE_CHUNK : Integer.parseInt(arg);
+            Bundle result = new Bundle();
+            result.putInt(PetContract.KEY_DELETED_ROWS, deleteChunk(shard, limit));
+            return result;
+        }
+        if (PetContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return runMaintenance(shard);
+        }
+        if (PetContract.METHOD_ACK_CHANGES.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing consumer name for " + method);
+            Long seq = extras == null || !extras.containsKey(PetContract.KEY_CHANGE_SEQ)
+                    ? null : extras.getLong(PetContract.KEY_CHANGE_SEQ);
+            Bundle result = new Bundle();
+            result.putLong(PetContract.KEY_CHANGE_SEQ, PetChangeLog.ack(shard.helper.getWritableDatabase(), arg, seq));
+            return result;
+        }
+        if (PetContract.METHOD_REMOVE_CHANGE_CONSUMER.equals(method)) {
+            if (arg == null) throw new IllegalArgumentException("Missing consumer name for " + method);
+            PetChangeLog.remove(shard.helper.getWritableDatabase(), arg);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /** delete the limit pets with the lowest _ids, one transaction so the lock is held briefly */
+    private int deleteChunk(PetShardPool.Shard shard, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("Delete chunk must be positive " + limit);
+        long start = System.nanoTime();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        long lockWait = System.nanoTime() - start;
+        // walks the primary key from the start, which only ever holds the rows not deleted yet
+        int rows = database.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (SELECT " + PetEntry._ID +
+                " FROM " + PetEntry.TABLE_NAME + " ORDER BY " + PetEntry._ID + " LIMIT ?)",
+                new String[]{String.valueOf(limit)});
+        if (rows > 0) onRowsChanged(shard.helper, database, PetEntry.CONTENT_URI);
+        mMetrics.record(PetMetrics.DELETE, metricsSlot(PETS), start, lockWait, 0, rows);
+        return rows;
+    }
+
+    private Bundle runMaintenance(PetShardPool.Shard shard) {
+        long start = SystemClock.elapsedRealtime();
+        long before = shard.helper.databaseBytes();
+        shard.helper.maintain();
+        long after = shard.helper.databaseBytes();
+        int photos = shard.photos.sweep(shard.helper.getReadableDatabase());
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "maintenance: reclaimed " + (before - after) + " bytes (" + before + " to "
+                + after + ") and " + photos + " unused photos in " + elapsed + "ms");
+
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_MAINTENANCE_BYTES_BEFORE, before);
+        result.putLong(PetContract.KEY_MAINTENANCE_BYTES_AFTER, after);
+        result.putLong(PetContract.KEY_MAINTENANCE_RECLAIMED_BYTES, before - after);
+        result.putLong(PetContract.KEY_MAINTENANCE_ELAPSED_MS, elapsed);
+        result.putInt(PetContract.KEY_MAINTENANCE_PHOTOS_DELETED, photos);
+        return result;
+    }
+
+    /** save a snapshot of the pets table to the file, or restore every pet from it */
+    private Bundle snapshot(PetShardPool.Shard shard, boolean restore, File file) {
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        int rows;
+        try {
+            rows = restore ? PetSnapshot.restore(database, file) : PetSnapshot.write(database, file);
+        } catch (IOException e) {
+            throw new IllegalStateException((restore ? "Restore from " : "Snapshot to ") + file + " failed", e);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, (restore ? "restore: " : "snapshot: ") + rows + " rows in " + elapsed + "ms ("
+                + (rows * 1000L / Math.max(elapsed, 1)) + " rows/s)");
+        if (restore) onRowsChanged(shard.helper, database, PetEntry.CONTENT_URI);
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_SNAPSHOT_ROWS, rows);
+        result.putLong(PetContract.KEY_SNAPSHOT_ELAPSED_MS, elapsed);
+        return result;
+    }
+
+    /**
+     * Upload every local change in batches, then download and apply the registry's changes a page
+     * at a time. Nothing holds the database while the network is used: each batch is marked sent
+     * and each page applied in a short transaction of its own, so a sync that fails part way
+     * keeps what it got done and the next one carries on from there.
+     *
+     * Two syncs can overlap. Both may send the same changes, which the registry takes twice
+     * without harm, but a page is only applied while the saved cursor is still the one it was
+     * downloaded from; once another sync has moved it on this one stops downloading.
+     */
+    private Bundle sync(PetShardPool.Shard shard, String registry) {
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase database = shard.helper.getWritableDatabase();
+        PetSyncClient client = new PetSyncClient(registry);
+        List<PetSyncChange> changes = new ArrayList<>(mSyncBatchSize);
+        int uploaded = 0;
+        int downloaded = 0;
+        String device = PetSyncStore.deviceId(database);
+        try {
+            // local changes go first, so the registry has them before its pages are weighed
+            // against them here
+            while (true) {
+                synchronized (mSyncLock) {
+                    if (PetSyncStore.readDirty(database, device, mSyncBatchSize, changes) == 0) break;
+                }
+                client.upload(device, changes);
+                synchronized (mSyncLock) {
+                    PetSyncStore.markUploaded(database, changes);
+                }
+                uploaded += changes.size();
+            }
+            String cursor;
+            synchronized (mSyncLock) {
+                cursor = PetSyncStore.getCursor(database, registry);
+            }
+            int page;
+            do {
+                String next = client.download(cursor, device, mSyncBatchSize, changes);
+                page = changes.size();
+                int rows;
+                synchronized (mSyncLock) {
+                    rows = PetSyncStore.apply(database, device, changes, registry, cursor, next);
+                }
+                // another sync got there first and carries on from its own cursor
+                if (rows < 0) break;
+                if (rows > 0) onRowsChanged(shard.helper, database, PetEntry.CONTENT_URI);
+                downloaded += page;
+                cursor = next;
+            } while (page >= mSyncBatchSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Sync with " + registry + " failed after " + uploaded +
+                    " uploaded and " + downloaded + " downloaded", e);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(LOG_TAG, "sync: " + uploaded + " uploaded and " + downloaded + " downloaded in " + elapsed + "ms");
+
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_SYNC_UPLOADED, uploaded);
+        result.putInt(PetContract.KEY_SYNC_DOWNLOADED, downloaded);
+        result.putLong(PetContract.KEY_SYNC_ELAPSED_MS, elapsed);
+        return result;
+    }
+
+    /** Set the number of changes uploaded in each request and downloaded in each page */
+    public void setSyncBatchSize(int syncBatchSize) {
+        if (syncBatchSize <= 0) throw new IllegalArgumentException("Sync batch size must be positive");
+        mSyncBatchSize = syncBatchSize;
     }
 
     /**
@@ -200,6 +1685,18 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case STATS:
+                return PetStatsEntry.CONTENT_ITEM_TYPE;
+            case STATS_BREEDS:
+                return PetStatsEntry.CONTENT_BREEDS_TYPE;
+            case EXPORT:
+                return exportTypeOf(uri);
+            case PET_PHOTO:
+                return PetEntry.PHOTO_TYPE;
+            case CHANGES:
+                return PetChangeEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalArgumentException("Unkown Uri " + uri + "with match" + match);
         }
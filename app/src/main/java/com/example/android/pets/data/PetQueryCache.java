@@ -0,0 +1,164 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of {@link PetProvider} query results.
+ *
+ * Entries are keyed by everything that shapes a query and evicted least recently used once the
+ * cache holds more than its byte budget. Every committed write to the pets table bumps a
+ * generation counter and an entry is only served while its generation is still current, so a
+ * write never has to find the entries it made stale.
+ *
+ * Results are held as {@link PetColumnarCursor.Rows}, so a hit opens a new cursor over the same
+ * arrays instead of copying the rows - the catalog reloading a page that has not changed shares
+ * the rows the last load cached.
+ */
+class PetQueryCache {
+
+    /** Default memory budget for cached results */
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /** Results with more rows than this are not cached, copying them costs more than it saves */
+    private static final int MAX_CACHED_ROWS = 1000;
+
+    /** Generation of the pets table, bumped after every committed write */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mStale = new AtomicLong();
+
+    private final LruCache<Key, Entry> mEntries;
+
+    PetQueryCache(int maxBytes) {
+        mEntries = new LruCache<Key, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Entry entry) {
+                return entry.bytes;
+            }
+        };
+    }
+
+    /** Read before running a query, the result is stored against this generation */
+    long currentGeneration() {
+        return mGeneration.get();
+    }
+
+    /** Called once a write to the pets table has committed */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /** Get a fresh cursor over the cached result, or null if there is no current entry */
+    Cursor get(Key key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (entry.generation != mGeneration.get()) {
+            mEntries.remove(key);
+            mStale.incrementAndGet();
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.rows.newCursor();
+    }
+
+    /**
+     * Copy the result into the cache if it is small enough. The cursor is left at position -1 so
+     * the caller can still hand it out.
+     */
+    void put(Key key, long generation, Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) return;
+        PetColumnarCursor.Rows rows = PetColumnarCursor.Rows.read(cursor);
+        if (rows.sizeBytes() > mEntries.maxSize() / 4) return;
+        mEntries.put(key, new Entry(generation, rows));
+    }
+
+    long hitCount() {
+        return mHits.get();
+    }
+
+    long missCount() {
+        return mMisses.get();
+    }
+
+    long evictionCount() {
+        return mEntries.evictionCount();
+    }
+
+    /** Entries dropped because a write made them stale */
+    long staleCount() {
+        return mStale.get();
+    }
+
+    /** Bytes currently held */
+    int sizeBytes() {
+        return mEntries.size();
+    }
+
+    /** Everything that decides what a query returns */
+    static final class Key {
+        private final int mMatch;
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mHash;
+
+        Key(int match, String uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+            mMatch = match;
+            mUri = uri;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mHash = Arrays.hashCode(new Object[]{match, uri, Arrays.hashCode(projection), selection,
+                    Arrays.hashCode(selectionArgs), sortOrder});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mMatch == other.mMatch
+                    && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /** One cached result and the generation it was read at */
+    private static final class Entry {
+        final long generation;
+        final PetColumnarCursor.Rows rows;
+        final int bytes;
+
+        Entry(long generation, PetColumnarCursor.Rows rows) {
+            this.generation = generation;
+            this.rows = rows;
+            this.bytes = rows.sizeBytes();
+        }
+    }
+}
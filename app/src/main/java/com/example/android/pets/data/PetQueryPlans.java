@@ -0,0 +1,77 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the hot queries against the pets table are answered from
+ * the index meant for them rather than by scanning the whole table.
+ */
+public final class PetQueryPlans {
+
+    /** the hot queries and the index each one is expected to use */
+    private static final String[][] HOT_QUERIES = {
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " = 'x'",
+                    PetDbHelper.INDEX_BREED},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_WEIGHT + " BETWEEN 1 AND 5",
+                    PetDbHelper.INDEX_WEIGHT},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " ORDER BY " + PetEntry.COLUMN_PET_WEIGHT,
+                    PetDbHelper.INDEX_WEIGHT},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = 1" +
+                    " ORDER BY " + PetEntry.COLUMN_PET_NAME, PetDbHelper.INDEX_GENDER_NAME},
+            // the catalog's filter and sort shapes, see PetProvider.filterSelection
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " ORDER BY " + PetEntry.SORT_BY_NAME,
+                    PetDbHelper.INDEX_NAME},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = 1" +
+                    " ORDER BY " + PetEntry.SORT_BY_WEIGHT, PetDbHelper.INDEX_GENDER_WEIGHT},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = 1" +
+                    " ORDER BY " + PetEntry.SORT_BY_NEWEST, PetDbHelper.INDEX_GENDER},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " = 'x'" +
+                    " ORDER BY " + PetEntry.SORT_BY_NAME, PetDbHelper.INDEX_BREED_NAME},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " = 'x'" +
+                    " ORDER BY " + PetEntry.SORT_BY_WEIGHT, PetDbHelper.INDEX_BREED_WEIGHT},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " = 'x'" +
+                    " ORDER BY " + PetEntry.SORT_BY_NEWEST, PetDbHelper.INDEX_BREED},
+            {"SELECT * FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_WEIGHT + " BETWEEN 1 AND 5" +
+                    " ORDER BY " + PetEntry.SORT_BY_WEIGHT, PetDbHelper.INDEX_WEIGHT},
+    };
+
+    private PetQueryPlans() {
+    }
+
+    /**
+     * Explain every hot query.
+     * @return a description of each query that does not use its index, empty when all of them do
+     */
+    public static List<String> verify(SQLiteDatabase db) {
+        List<String> problems = new ArrayList<>();
+        for (String[] query : HOT_QUERIES) {
+            String plan = explain(db, query[0]);
+            if (!plan.contains(query[1])) {
+                problems.add(query[0] + " does not use " + query[1] + ": " + plan);
+            }
+        }
+        return problems;
+    }
+
+    /** the detail column of every step of the query plan joined together */
+    public static String explain(SQLiteDatabase db, String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) plan.append("; ");
+                plan.append(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
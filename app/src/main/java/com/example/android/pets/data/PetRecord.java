@@ -0,0 +1,53 @@
+package com.example.android.pets.data;
+
+import android.text.TextUtils;
+
+/**
+ * One pet as plain fields, for writing through {@link PetWriter} without a ContentValues map
+ * and boxed numbers for every save. A record is meant to be filled in and reused for each write.
+ */
+public class PetRecord {
+
+    /** Column bits, or'd together to say which fields a partial update writes */
+    public static final int NAME = 1;
+    public static final int BREED = 1 << 1;
+    public static final int GENDER = 1 << 2;
+    public static final int WEIGHT = 1 << 3;
+    public static final int ALL_COLUMNS = NAME | BREED | GENDER | WEIGHT;
+
+    /** _id of the pet, set by an insert and used by an update */
+    public long id = -1;
+    public String name;
+    /** null when the breed is not known */
+    public String breed;
+    public int gender;
+    public int weight;
+
+    /** Fill in every field but the id, returns this record */
+    public PetRecord set(String name, String breed, int gender, int weight) {
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+        return this;
+    }
+
+    /** Copy every field, the id included, from the other record, returns this record */
+    public PetRecord set(PetRecord other) {
+        id = other.id;
+        return set(other.name, other.breed, other.gender, other.weight);
+    }
+
+    /**
+     * The column bits of the fields that differ from the other record, 0 if they are all the same.
+     * The ids are not compared.
+     */
+    public int diff(PetRecord other) {
+        int columns = 0;
+        if (!TextUtils.equals(name, other.name)) columns |= NAME;
+        if (!TextUtils.equals(breed, other.breed)) columns |= BREED;
+        if (gender != other.gender) columns |= GENDER;
+        if (weight != other.weight) columns |= WEIGHT;
+        return columns;
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The databases behind {@link PetProvider}, one file per tenant so a tenant's queries only ever
+ * walk its own pets, however many the other tenants have.
+ *
+ * A tenant's database is opened the first time a uri names it and stays open while anything holds
+ * it - a call running against it or a cursor that has not been closed yet. Once nothing has held
+ * it for the idle timeout it is closed, so a device that has switched through many caseloads
+ * only keeps the connections and page caches of the ones in use. The default database, used when
+ * no tenant is given, is never closed.
+ */
+final class PetShardPool {
+
+    private static final String LOG_TAG = PetShardPool.class.getSimpleName();
+
+    /** Default time in ms a tenant's database stays open after it was last used */
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+
+    /** Databases attached to the stats connection at once, sqlite's default SQLITE_MAX_ATTACHED */
+    private static final int MAX_ATTACHED = 10;
+
+    /** tenant names end up in file names, so they are kept to characters that are safe in one */
+    private static final Pattern TENANT = Pattern.compile("[A-Za-z0-9_]{1,64}");
+
+    /** A tenant's database and photos */
+    static final class Shard {
+
+        /** null for the default database */
+        final String tenant;
+        final PetDbHelper helper;
+        final PetPhotoStore photos;
+
+        // guarded by the pool
+        private int mLeases;
+        private long mLastUsed;
+        /** the sweep is closing it, it stays in the pool until it is closed */
+        private boolean mClosing;
+
+        private Shard(Context context, String tenant) {
+            this.tenant = tenant;
+            helper = new PetDbHelper(context, PetDbTuning.DEFAULT, tenant);
+            photos = new PetPhotoStore(context.getFilesDir(), tenant);
+        }
+    }
+
+    private final Context mContext;
+
+    private final Shard mDefault;
+
+    /** The open tenant databases by tenant, and the ones being closed, guarded by this */
+    private final Map<String, Shard> mShards = new HashMap<>();
+
+    /** true while a sweep is posted to the handler, guarded by this */
+    private boolean mSweepScheduled;
+
+    /** Handler on a background thread that closes the idle databases */
+    private final Handler mHandler;
+
+    private volatile long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    /** In-memory connection the databases are attached to for the stats of every tenant, guarded by itself */
+    private final Object mAttachLock = new Object();
+    private SQLiteDatabase mAttachDb;
+    private int mAttached;
+
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    PetShardPool(Context context) {
+        mContext = context;
+        mDefault = new Shard(context, null);
+        HandlerThread thread = new HandlerThread("PetShardPool");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** The default database, it is never closed so it needs no releasing */
+    Shard defaultShard() {
+        return mDefault;
+    }
+
+    /** Set how long in ms a tenant's database stays open once nothing holds it */
+    void setIdleTimeoutMs(long idleTimeoutMs) {
+        if (idleTimeoutMs < 0) throw new IllegalArgumentException("Idle timeout cannot be negative");
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * The tenant's database, opening it if it is not open. It stays open until it is given back
+     * with {@link #release}.
+     * @param tenant null for the default database
+     */
+    Shard acquire(String tenant) {
+        if (tenant == null) return mDefault;
+        checkTenant(tenant);
+        synchronized (this) {
+            Shard shard = mShards.get(tenant);
+            // a second helper must never open the file while the first is still closing it
+            while (shard != null && shard.mClosing) {
+                waitForClose();
+                shard = mShards.get(tenant);
+            }
+            if (shard == null) {
+                shard = new Shard(mContext, tenant);
+                mShards.put(tenant, shard);
+                scheduleSweep();
+            }
+            shard.mLeases++;
+            shard.mLastUsed = SystemClock.uptimeMillis();
+            return shard;
+        }
+    }
+
+    /** Give back a database from {@link #acquire}, its idle time starts once every holder has */
+    void release(Shard shard) {
+        if (shard == mDefault) return;
+        synchronized (this) {
+            if (shard.mLeases <= 0) throw new IllegalStateException("Released more than acquired " + shard.tenant);
+            shard.mLeases--;
+            shard.mLastUsed = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Keep the database open for as long as the cursor is, a query cursor reads its rows a
+     * window at a time long after the query returned. The cursor given back releases it on close.
+     */
+    Cursor hold(Shard shard, Cursor cursor) {
+        if (shard == mDefault) return cursor;
+        synchronized (this) {
+            shard.mLeases++;
+        }
+        return new HeldCursor(cursor, shard);
+    }
+
+    /** Number of tenant databases open right now, counting any the sweep is still closing */
+    synchronized int openCount() {
+        return mShards.size();
+    }
+
+    /** Every tenant that has a database, open or not, in name order */
+    List<String> tenants() {
+        List<String> tenants = new ArrayList<>();
+        for (String name : mContext.databaseList()) {
+            if (!name.startsWith(PetDbHelper.TENANT_DATABASE_PREFIX)) continue;
+            // the -wal, -shm and -journal files have a dash the tenant names can't have
+            String tenant = name.substring(PetDbHelper.TENANT_DATABASE_PREFIX.length());
+            if (TENANT.matcher(tenant).matches()) tenants.add(tenant);
+        }
+        Collections.sort(tenants);
+        return tenants;
+    }
+
+    /**
+     * Close every database, the default one too, and stop the sweep thread. The pool can't be
+     * used afterwards.
+     */
+    void close() {
+        List<Shard> open;
+        synchronized (this) {
+            while (isSweepClosing()) {
+                waitForClose();
+            }
+            open = new ArrayList<>(mShards.values());
+            mShards.clear();
+            mHandler.removeCallbacks(mSweepRunnable);
+            mSweepScheduled = false;
+        }
+        mHandler.getLooper().quit();
+        for (Shard shard : open) {
+            shard.helper.closeAfterCheckpoints();
+        }
+        mDefault.helper.closeAfterCheckpoints();
+        synchronized (mAttachLock) {
+            if (mAttachDb != null) {
+                mAttachDb.close();
+                mAttachDb = null;
+            }
+        }
+    }
+
+    static void checkTenant(String tenant) {
+        if (!TENANT.matcher(tenant).matches()) throw new IllegalArgumentException("Not a valid tenant " + tenant);
+    }
+
+    private void scheduleSweep() {
+        if (mSweepScheduled) return;
+        mSweepScheduled = true;
+        mHandler.postDelayed(mSweepRunnable, mIdleTimeoutMs);
+    }
+
+    /** Close every tenant database nothing has held for the idle timeout */
+    private void sweep() {
+        List<Shard> idle = new ArrayList<>();
+        long now = SystemClock.uptimeMillis();
+        long timeout = mIdleTimeoutMs;
+        synchronized (this) {
+            mSweepScheduled = false;
+            for (Shard shard : mShards.values()) {
+                if (shard.mLeases == 0 && now - shard.mLastUsed >= timeout) {
+                    // from here an acquire of the tenant waits for the close
+                    shard.mClosing = true;
+                    idle.add(shard);
+                }
+            }
+        }
+        try {
+            for (Shard shard : idle) {
+                shard.helper.closeAfterCheckpoints();
+            }
+        } finally {
+            synchronized (this) {
+                for (Shard shard : idle) {
+                    // and from here it opens a new helper
+                    mShards.remove(shard.tenant);
+                }
+                notifyAll();
+                if (!mShards.isEmpty()) scheduleSweep();
+            }
+        }
+        if (!idle.isEmpty()) Log.d(LOG_TAG, "sweep: closed " + idle.size() + " idle tenant databases");
+    }
+
+    /** true while a sweep is closing any database, call holding the lock */
+    private boolean isSweepClosing() {
+        for (Shard shard : mShards.values()) {
+            if (shard.mClosing) return true;
+        }
+        return false;
+    }
+
+    /** wait for the sweep to finish closing, call holding the lock */
+    private void waitForClose() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a tenant database to close", e);
+        }
+    }
+
+    /**
+     * Add up the statistics of the default database and every tenant's. Rather than opening a
+     * helper for each tenant, their files are ATTACHed to one connection MAX_ATTACHED at a time
+     * and each group is summed by a single query, so the tenants that are not open stay closed.
+     *
+     * The connection is an in-memory database of its own: android turns write-ahead logging off
+     * on a database an ATTACH runs on, which must not happen to the tenants' own connections.
+     */
+    PetStats.Totals aggregateStats() {
+        List<String> all = new ArrayList<>();
+        // null for the default database
+        all.add(null);
+        all.addAll(tenants());
+        PetStats.Totals totals = new PetStats.Totals();
+        synchronized (mAttachLock) {
+            if (mAttachDb == null) mAttachDb = SQLiteDatabase.create(null);
+            for (int from = 0; from < all.size(); from += MAX_ATTACHED) {
+                List<String> group = all.subList(from, Math.min(from + MAX_ATTACHED, all.size()));
+                try {
+                    attach(group);
+                    List<String> stale = staleTenants(group);
+                    if (!stale.isEmpty()) {
+                        // a database made before the last migration, or one that is gone, has to
+                        // be brought up to date by its helper before its stats can be read
+                        detachAll();
+                        for (String tenant : stale) {
+                            upgrade(tenant);
+                        }
+                        attach(group);
+                    }
+                    totals.add(mAttachDb, mAttached);
+                } finally {
+                    detachAll();
+                }
+            }
+        }
+        return totals;
+    }
+
+    private void attach(List<String> tenants) {
+        for (String tenant : tenants) {
+            String path = mContext.getDatabasePath(PetDbHelper.databaseName(tenant)).getPath();
+            mAttachDb.execSQL("ATTACH DATABASE ? AS " + PetStats.schemaName(mAttached), new Object[]{path});
+            mAttached++;
+        }
+    }
+
+    private void detachAll() {
+        while (mAttached > 0) {
+            mAttachDb.execSQL("DETACH DATABASE " + PetStats.schemaName(--mAttached));
+        }
+    }
+
+    /** the attached tenants whose schema is older than the helper's */
+    private List<String> staleTenants(List<String> tenants) {
+        List<String> stale = new ArrayList<>();
+        for (int i = 0; i < tenants.size(); i++) {
+            long version = DatabaseUtils.longForQuery(mAttachDb,
+                    "PRAGMA " + PetStats.schemaName(i) + ".user_version", null);
+            if (version < PetDbHelper.schemaVersion()) stale.add(tenants.get(i));
+        }
+        return stale;
+    }
+
+    /** open the tenant's database through its helper, which runs any migrations it is missing */
+    private void upgrade(String tenant) {
+        Shard shard = acquire(tenant);
+        try {
+            shard.helper.getWritableDatabase();
+        } finally {
+            release(shard);
+        }
+    }
+
+    /** A query cursor that holds its tenant's database open until it is closed */
+    private final class HeldCursor extends CrossProcessCursorWrapper {
+
+        private final Shard mShard;
+        private boolean mReleased;
+
+        HeldCursor(Cursor cursor, Shard shard) {
+            super(cursor);
+            mShard = shard;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (mReleased) return;
+            mReleased = true;
+            release(mShard);
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshots of the pets table for backup and restore.
+ *
+ * The file is the magic "PETS", a version byte and then blocks of up to {@link #BLOCK_ROWS}
+ * rows, ended by an empty block and the crc32 of everything before it. Each block stores its
+ * rows a column at a time: the _ids as varint deltas from the previous _id, the names as length
+ * prefixed utf-8, the breeds as varint indexes into a dictionary (0 for no breed) that each
+ * block extends with the breeds it is the first to use, the genders as a byte each, the
+ * weights as varints and the photo file names as length prefixed utf-8 with the length plus
+ * one, so 0 is no photo. Then comes the sync state of each pet, see {@link PetSyncStore}: its
+ * sync id like a photo name, when it was last written as a varint, the device that wrote it as
+ * an index into a dictionary of devices kept like the breeds' and whether it is still to be
+ * uploaded as a byte.
+ *
+ * The photos themselves are not in the snapshot, only which file each pet points at. Version 1
+ * files have no photo column; restoring one keeps the photo each _id had before, so the next
+ * {@link PetPhotoStore#sweep} does not take the photos of every restored pet. Files older than
+ * version 3 have no sync state, and their pets are restored as new writes on this device.
+ *
+ * A snapshot is read inside one transaction, so it holds the pets exactly as they were when it
+ * started. Android only opens a transaction on the primary connection, which the writes need as
+ * well, so writes wait for a save to finish; queries on the other connections carry on. The rows
+ * are still read in _id keyset chunks so no single cursor holds the whole table.
+ */
+final class PetSnapshot {
+
+    private static final int MAGIC = 0x50455453; // "PETS"
+    private static final int VERSION = 3;
+
+    /** The last version without the sync state, still restored */
+    private static final int VERSION_NO_SYNC = 2;
+
+    /** The last version without the photo column, still restored */
+    private static final int VERSION_NO_PHOTOS = 1;
+
+    /** Rows per block, and per query while writing */
+    private static final int BLOCK_ROWS = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
+    /** A chunk of the COLUMNS with the sync state after them */
+    private static final String SQL_READ_CHUNK = PetSyncStore.sqlSnapshotChunk(COLUMNS);
+
+    private static final String SQL_RESTORE_PET = "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+            PetEntry._ID + ", " +
+            PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ", " +
+            PetEntry.COLUMN_PET_PHOTO + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    private PetSnapshot() {
+    }
+
+    /**
+     * Write a snapshot of the pets table to the file, replacing it. Writes to the database wait
+     * until it is done.
+     * @return the number of pets written
+     */
+    static int write(SQLiteDatabase db, File file) throws IOException {
+        // a write made here has no device in its sync row, the file names this device instead.
+        // It is asked for outside the transaction, which never commits, as the first ask saves it
+        String device = PetSyncStore.deviceId(db);
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 64 * 1024), crc));
+        // nothing is written, so it is never marked successful and just ends
+        db.beginTransactionNonExclusive();
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            Map<String, Integer> breeds = new HashMap<>();
+            Map<String, Integer> devices = new HashMap<>();
+            Block block = new Block();
+            long lastId = 0;
+            int rows = 0;
+            while (true) {
+                Cursor cursor = db.rawQuery(SQL_READ_CHUNK,
+                        new String[]{String.valueOf(lastId), String.valueOf(BLOCK_ROWS)});
+                try {
+                    if (cursor.getCount() == 0) break;
+                    block.clear();
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        writeVarint(block.ids, id - lastId);
+                        lastId = id;
+
+                        byte[] name = cursor.getString(1).getBytes(UTF_8);
+                        writeVarint(block.names, name.length);
+                        block.names.write(name);
+
+                        if (cursor.isNull(2)) {
+                            writeVarint(block.breeds, 0);
+                        } else {
+                            String breed = cursor.getString(2);
+                            Integer index = breeds.get(breed);
+                            if (index == null) {
+                                index = breeds.size() + 1;
+                                breeds.put(breed, index);
+                                block.newBreeds.add(breed);
+                            }
+                            writeVarint(block.breeds, index);
+                        }
+
+                        block.genders.write(cursor.getInt(3));
+                        writeVarint(block.weights, cursor.getInt(4));
+
+                        if (cursor.isNull(5)) {
+                            writeVarint(block.photos, 0);
+                        } else {
+                            byte[] photo = cursor.getString(5).getBytes(UTF_8);
+                            writeVarint(block.photos, photo.length + 1);
+                            block.photos.write(photo);
+                        }
+
+                        if (cursor.isNull(6)) {
+                            // no sync row, the restore leaves it a new write
+                            writeVarint(block.syncIds, 0);
+                            writeVarint(block.modified, 0);
+                            writeVarint(block.devices, 0);
+                            block.dirty.write(1);
+                        } else {
+                            byte[] syncId = cursor.getString(6).getBytes(UTF_8);
+                            writeVarint(block.syncIds, syncId.length + 1);
+                            block.syncIds.write(syncId);
+                            writeVarint(block.modified, cursor.getLong(7));
+                            String writer = cursor.isNull(8) ? device : cursor.getString(8);
+                            Integer index = devices.get(writer);
+                            if (index == null) {
+                                index = devices.size() + 1;
+                                devices.put(writer, index);
+                                block.newDevices.add(writer);
+                            }
+                            writeVarint(block.devices, index);
+                            block.dirty.write(cursor.getInt(9));
+                        }
+                        block.rows++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                block.writeTo(out);
+                rows += block.rows;
+            }
+            // the empty block ends the file
+            writeVarint(out, 0);
+            // the checksum covers everything written before it
+            out.writeInt((int) crc.getValue());
+            return rows;
+        } finally {
+            db.endTransaction();
+            out.close();
+        }
+    }
+
+    /**
+     * Replace every pet with the pets in the snapshot, _ids included, in one transaction. The
+     * file is checked against its checksum before anything is deleted, and a file that is still
+     * not what it should be rolls the transaction back with the pets as they were.
+     * @return the number of pets restored
+     */
+    static int restore(SQLiteDatabase db, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            verify(buffer);
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a pets snapshot " + file);
+            int version = buffer.get();
+            if (version != VERSION && version != VERSION_NO_SYNC && version != VERSION_NO_PHOTOS) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+
+            SQLiteStatement statement = db.compileStatement(SQL_RESTORE_PET);
+            PetSyncStore.Restorer sync = null;
+            db.beginTransaction();
+            try {
+                Map<Long, String> photos = version == VERSION_NO_PHOTOS ? readPhotos(db) : null;
+                if (version == VERSION) sync = new PetSyncStore.Restorer(db);
+                db.delete(PetEntry.TABLE_NAME, null, null);
+                int rows = restoreBlocks(buffer, statement, photos, sync);
+                if (sync != null) sync.finish();
+                db.setTransactionSuccessful();
+                return rows;
+            } catch (BufferUnderflowException e) {
+                // the checksum matched, so the file was written this way rather than cut short
+                throw new IOException("Corrupt snapshot ends inside a block " + file, e);
+            } finally {
+                db.endTransaction();
+                statement.close();
+                if (sync != null) sync.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param photos the photo of each _id to restore with, or null when the file has the photo
+     *               column
+     * @param sync puts back the sync state of each pet, null when the file has none
+     */
+    private static int restoreBlocks(ByteBuffer buffer, SQLiteStatement statement, Map<Long, String> photos,
+                                     PetSyncStore.Restorer sync) throws IOException {
+        List<String> breeds = new ArrayList<>();
+        breeds.add(null);
+        List<String> devices = new ArrayList<>();
+        devices.add(null);
+        long[] ids = new long[BLOCK_ROWS];
+        String[] names = new String[BLOCK_ROWS];
+        int[] breedIndexes = new int[BLOCK_ROWS];
+        byte[] genders = new byte[BLOCK_ROWS];
+        long[] weights = new long[BLOCK_ROWS];
+        String[] photoNames = new String[BLOCK_ROWS];
+        String[] syncIds = new String[BLOCK_ROWS];
+        long[] modified = new long[BLOCK_ROWS];
+        int[] deviceIndexes = new int[BLOCK_ROWS];
+        byte[] dirty = new byte[BLOCK_ROWS];
+        byte[] bytes = new byte[256];
+        long lastId = 0;
+        int rows = 0;
+        while (true) {
+            int count = (int) readVarint(buffer);
+            if (count == 0) return rows;
+            if (count > BLOCK_ROWS) throw new IOException("Corrupt snapshot block of " + count + " rows");
+
+            int newBreeds = (int) readVarint(buffer);
+            for (int i = 0; i < newBreeds; i++) {
+                int length = (int) readVarint(buffer);
+                if (length > bytes.length) bytes = new byte[length];
+                buffer.get(bytes, 0, length);
+                breeds.add(new String(bytes, 0, length, UTF_8));
+            }
+            if (sync != null) {
+                int newDevices = (int) readVarint(buffer);
+                for (int i = 0; i < newDevices; i++) {
+                    int length = (int) readVarint(buffer);
+                    if (length > bytes.length) bytes = new byte[length];
+                    buffer.get(bytes, 0, length);
+                    devices.add(new String(bytes, 0, length, UTF_8));
+                }
+            }
+
+            // the columns follow each other, so each is decoded into its array before the rows
+            // can be put back together
+            for (int i = 0; i < count; i++) {
+                lastId += readVarint(buffer);
+                ids[i] = lastId;
+            }
+            for (int i = 0; i < count; i++) {
+                int length = (int) readVarint(buffer);
+                if (length > bytes.length) bytes = new byte[length];
+                buffer.get(bytes, 0, length);
+                names[i] = new String(bytes, 0, length, UTF_8);
+            }
+            for (int i = 0; i < count; i++) {
+                breedIndexes[i] = (int) readVarint(buffer);
+                if (breedIndexes[i] >= breeds.size()) {
+                    throw new IOException("Corrupt snapshot breed " + breedIndexes[i]);
+                }
+            }
+            buffer.get(genders, 0, count);
+            for (int i = 0; i < count; i++) {
+                weights[i] = readVarint(buffer);
+            }
+            for (int i = 0; i < count; i++) {
+                if (photos != null) {
+                    photoNames[i] = photos.get(ids[i]);
+                    continue;
+                }
+                int length = (int) readVarint(buffer) - 1;
+                if (length < 0) {
+                    photoNames[i] = null;
+                    continue;
+                }
+                if (length > bytes.length) bytes = new byte[length];
+                buffer.get(bytes, 0, length);
+                photoNames[i] = new String(bytes, 0, length, UTF_8);
+            }
+            if (sync != null) {
+                for (int i = 0; i < count; i++) {
+                    int length = (int) readVarint(buffer) - 1;
+                    if (length < 0) {
+                        syncIds[i] = null;
+                        continue;
+                    }
+                    if (length > bytes.length) bytes = new byte[length];
+                    buffer.get(bytes, 0, length);
+                    syncIds[i] = new String(bytes, 0, length, UTF_8);
+                }
+                for (int i = 0; i < count; i++) {
+                    modified[i] = readVarint(buffer);
+                }
+                for (int i = 0; i < count; i++) {
+                    deviceIndexes[i] = (int) readVarint(buffer);
+                    if (deviceIndexes[i] >= devices.size() || (deviceIndexes[i] == 0 && syncIds[i] != null)) {
+                        throw new IOException("Corrupt snapshot device " + deviceIndexes[i]);
+                    }
+                }
+                buffer.get(dirty, 0, count);
+            }
+
+            for (int i = 0; i < count; i++) {
+                int breed = breedIndexes[i];
+                statement.clearBindings();
+                statement.bindLong(1, ids[i]);
+                statement.bindString(2, names[i]);
+                if (breed == 0) {
+                    statement.bindNull(3);
+                } else {
+                    statement.bindString(3, breeds.get(breed));
+                }
+                statement.bindLong(4, genders[i]);
+                statement.bindLong(5, weights[i]);
+                if (photoNames[i] == null) {
+                    statement.bindNull(6);
+                } else {
+                    statement.bindString(6, photoNames[i]);
+                }
+                statement.executeInsert();
+                // the insert went through the sync triggers as a new write, which this replaces
+                if (sync != null && syncIds[i] != null) {
+                    sync.restore(ids[i], syncIds[i], modified[i], devices.get(deviceIndexes[i]), dirty[i] != 0);
+                }
+            }
+            rows += count;
+        }
+    }
+
+    /** check the crc32 at the end of the file against everything before it */
+    private static void verify(ByteBuffer buffer) throws IOException {
+        int length = buffer.limit() - 4;
+        if (length < 5) throw new IOException("Snapshot is too short");
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        buffer.position(0);
+        while (buffer.position() < length) {
+            int size = Math.min(chunk.length, length - buffer.position());
+            buffer.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+        }
+        if (buffer.getInt() != (int) crc.getValue()) throw new IOException("Snapshot checksum does not match");
+        buffer.position(0);
+    }
+
+    /** the photo of every pet that has one, by _id */
+    private static Map<Long, String> readPhotos(SQLiteDatabase db) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_PHOTO},
+                PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null, null, null, null);
+        try {
+            Map<Long, String> photos = new HashMap<>();
+            while (cursor.moveToNext()) {
+                photos.put(cursor.getLong(0), cursor.getString(1));
+            }
+            return photos;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** unsigned LEB128, 7 bits a byte with the high bit set on every byte but the last */
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Corrupt snapshot varint");
+    }
+
+    /** The columns of one block being written */
+    private static final class Block {
+        final ByteArrayBuilder ids = new ByteArrayBuilder();
+        final ByteArrayBuilder names = new ByteArrayBuilder();
+        final ByteArrayBuilder breeds = new ByteArrayBuilder();
+        final ByteArrayBuilder genders = new ByteArrayBuilder();
+        final ByteArrayBuilder weights = new ByteArrayBuilder();
+        final ByteArrayBuilder photos = new ByteArrayBuilder();
+        final ByteArrayBuilder syncIds = new ByteArrayBuilder();
+        final ByteArrayBuilder modified = new ByteArrayBuilder();
+        final ByteArrayBuilder devices = new ByteArrayBuilder();
+        final ByteArrayBuilder dirty = new ByteArrayBuilder();
+        final List<String> newBreeds = new ArrayList<>();
+        final List<String> newDevices = new ArrayList<>();
+        int rows;
+
+        void clear() {
+            ids.reset();
+            names.reset();
+            breeds.reset();
+            genders.reset();
+            weights.reset();
+            photos.reset();
+            syncIds.reset();
+            modified.reset();
+            devices.reset();
+            dirty.reset();
+            newBreeds.clear();
+            newDevices.clear();
+            rows = 0;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeVarint(out, rows);
+            writeVarint(out, newBreeds.size());
+            writeStrings(out, newBreeds);
+            writeStrings(out, newDevices);
+            ids.writeTo(out);
+            names.writeTo(out);
+            breeds.writeTo(out);
+            genders.writeTo(out);
+            weights.writeTo(out);
+            photos.writeTo(out);
+            syncIds.writeTo(out);
+            modified.writeTo(out);
+            devices.writeTo(out);
+            dirty.writeTo(out);
+        }
+
+        private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+            writeVarint(out, strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /** ByteArrayOutputStream without the synchronized methods, reused for every block */
+    private static final class ByteArrayBuilder extends OutputStream {
+        private byte[] mBytes = new byte[BLOCK_ROWS * 2];
+        private int mSize;
+
+        @Override
+        public void write(int b) {
+            if (mSize == mBytes.length) grow(1);
+            mBytes[mSize++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mSize + len > mBytes.length) grow(len);
+            System.arraycopy(b, off, mBytes, mSize, len);
+            mSize += len;
+        }
+
+        void reset() {
+            mSize = 0;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(mBytes, 0, mSize);
+        }
+
+        private void grow(int extra) {
+            byte[] bytes = new byte[Math.max(mBytes.length * 2, mSize + extra)];
+            System.arraycopy(mBytes, 0, bytes, 0, mSize);
+            mBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The statistics tables behind {@link PetStatsEntry}.
+ *
+ * A row per gender holds the number of pets and their total weight, and a row per breed holds
+ * the number of pets of that breed. Triggers on the pets table keep both up to date on every
+ * insert, update and delete, so a stats read only touches a handful of rows. The max weight is
+ * read off the end of the weight index, which is a single lookup as well.
+ */
+final class PetStats {
+
+    private static final String PETS = PetEntry.TABLE_NAME;
+    private static final String GENDERS = PetStatsEntry.GENDER_TABLE_NAME;
+    private static final String BREEDS = PetStatsEntry.BREED_TABLE_NAME;
+    private static final String GENDER = PetStatsEntry.COLUMN_GENDER;
+    private static final String BREED = PetStatsEntry.COLUMN_BREED;
+    private static final String COUNT = PetStatsEntry.COLUMN_COUNT;
+    private static final String TOTAL_WEIGHT = PetStatsEntry.COLUMN_TOTAL_WEIGHT;
+
+    /** pets with no breed are counted under the empty breed */
+    private static final String BREED_KEY = "COALESCE(%s." + PetEntry.COLUMN_PET_BREED + ", '')";
+
+    private static final String SQL_CREATE_GENDERS = "CREATE TABLE " + GENDERS + " (" +
+            GENDER + " INTEGER PRIMARY KEY, " +
+            COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0)";
+
+    private static final String SQL_CREATE_BREEDS = "CREATE TABLE " + BREEDS + " (" +
+            BREED + " TEXT PRIMARY KEY, " +
+            COUNT + " INTEGER NOT NULL DEFAULT 0)";
+
+    // lets the top breeds be read in count order without sorting every breed
+    private static final String SQL_CREATE_BREEDS_INDEX = "CREATE INDEX pet_breed_stats_count_index ON " +
+            BREEDS + " (" + COUNT + ")";
+
+    // a row for each gender the provider accepts, so the triggers only ever have to update them
+    private static final String SQL_SEED_GENDERS = "INSERT INTO " + GENDERS + " (" + GENDER + ")" +
+            " SELECT " + PetEntry.GENDER_UNKNOWN +
+            " UNION ALL SELECT " + PetEntry.GENDER_MALE +
+            " UNION ALL SELECT " + PetEntry.GENDER_FEMALE;
+
+    private static final String SQL_FILL_GENDERS = "UPDATE " + GENDERS + " SET " +
+            COUNT + " = (SELECT COUNT(*) FROM " + PETS + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = " + GENDERS + "." + GENDER + "), " +
+            TOTAL_WEIGHT + " = (SELECT COALESCE(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0) FROM " + PETS +
+            " WHERE " + PetEntry.COLUMN_PET_GENDER + " = " + GENDERS + "." + GENDER + ")";
+
+    private static final String SQL_FILL_BREEDS = "INSERT INTO " + BREEDS + " (" + BREED + ", " + COUNT + ")" +
+            " SELECT " + String.format(BREED_KEY, PETS) + ", COUNT(*) FROM " + PETS + " GROUP BY 1";
+
+    /** add the pet in the row called row (new or old) to the totals */
+    private static String addPet(String row) {
+        return "UPDATE " + GENDERS + " SET " + COUNT + " = " + COUNT + " + 1, " +
+                TOTAL_WEIGHT + " = " + TOTAL_WEIGHT + " + " + row + "." + PetEntry.COLUMN_PET_WEIGHT +
+                " WHERE " + GENDER + " = " + row + "." + PetEntry.COLUMN_PET_GENDER + "; " +
+                "INSERT OR IGNORE INTO " + BREEDS + " (" + BREED + ") VALUES (" + String.format(BREED_KEY, row) + "); " +
+                "UPDATE " + BREEDS + " SET " + COUNT + " = " + COUNT + " + 1" +
+                " WHERE " + BREED + " = " + String.format(BREED_KEY, row) + "; ";
+    }
+
+    /** take the pet in the row called row (new or old) out of the totals */
+    private static String removePet(String row) {
+        return "UPDATE " + GENDERS + " SET " + COUNT + " = " + COUNT + " - 1, " +
+                TOTAL_WEIGHT + " = " + TOTAL_WEIGHT + " - " + row + "." + PetEntry.COLUMN_PET_WEIGHT +
+                " WHERE " + GENDER + " = " + row + "." + PetEntry.COLUMN_PET_GENDER + "; " +
+                "UPDATE " + BREEDS + " SET " + COUNT + " = " + COUNT + " - 1" +
+                " WHERE " + BREED + " = " + String.format(BREED_KEY, row) + "; " +
+                "DELETE FROM " + BREEDS + " WHERE " + BREED + " = " + String.format(BREED_KEY, row) +
+                " AND " + COUNT + " <= 0; ";
+    }
+
+    private static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER pet_stats_insert AFTER INSERT ON " + PETS + " BEGIN " + addPet("new") + "END",
+            "CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + PETS + " BEGIN " + removePet("old") + "END",
+            "CREATE TRIGGER pet_stats_update AFTER UPDATE OF " + PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_WEIGHT + " ON " + PETS +
+                    " BEGIN " + removePet("old") + addPet("new") + "END"};
+
+    private static final String SQL_QUERY_SUMMARY = "SELECT 1 AS " + PetStatsEntry._ID + ", " +
+            "COALESCE(SUM(" + COUNT + "), 0) AS " + PetStatsEntry.COLUMN_COUNT + ", " +
+            "COALESCE(SUM(CASE WHEN " + GENDER + " = " + PetEntry.GENDER_MALE + " THEN " + COUNT + " END), 0) AS " + PetStatsEntry.COLUMN_MALE_COUNT + ", " +
+            "COALESCE(SUM(CASE WHEN " + GENDER + " = " + PetEntry.GENDER_FEMALE + " THEN " + COUNT + " END), 0) AS " + PetStatsEntry.COLUMN_FEMALE_COUNT + ", " +
+            "COALESCE(SUM(CASE WHEN " + GENDER + " = " + PetEntry.GENDER_UNKNOWN + " THEN " + COUNT + " END), 0) AS " + PetStatsEntry.COLUMN_UNKNOWN_COUNT + ", " +
+            "CAST(SUM(" + TOTAL_WEIGHT + ") AS REAL) / NULLIF(SUM(" + COUNT + "), 0) AS " + PetStatsEntry.COLUMN_AVERAGE_WEIGHT + ", " +
+            "(SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " + PETS + ") AS " + PetStatsEntry.COLUMN_MAX_WEIGHT +
+            " FROM " + GENDERS;
+
+    private static final String SQL_QUERY_BREEDS = "SELECT rowid AS " + PetStatsEntry._ID + ", " +
+            BREED + ", " + COUNT + " FROM " + BREEDS + " ORDER BY " + COUNT + " DESC LIMIT ?";
+
+    // the totals of each attached database, %s is the schema prefixed table
+    private static final String SQL_SCHEMA_GENDERS = "SELECT " + GENDER + ", " + COUNT + ", " + TOTAL_WEIGHT + " FROM %s";
+    private static final String SQL_SCHEMA_BREEDS = "SELECT " + BREED + ", " + COUNT + " FROM %s";
+    private static final String SQL_SCHEMA_MAX_WEIGHT = "SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") AS m FROM %s";
+
+    /** columns of the totals row, in the order SQL_QUERY_SUMMARY gives them */
+    private static final String[] SUMMARY_COLUMNS = {
+            PetStatsEntry._ID,
+            PetStatsEntry.COLUMN_COUNT,
+            PetStatsEntry.COLUMN_MALE_COUNT,
+            PetStatsEntry.COLUMN_FEMALE_COUNT,
+            PetStatsEntry.COLUMN_UNKNOWN_COUNT,
+            PetStatsEntry.COLUMN_AVERAGE_WEIGHT,
+            PetStatsEntry.COLUMN_MAX_WEIGHT};
+
+    private static final String[] BREEDS_COLUMNS = {PetStatsEntry._ID, BREED, COUNT};
+
+    private PetStats() {
+    }
+
+    /** create the tables and triggers and fill them from the pets already in the table */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_GENDERS);
+        db.execSQL(SQL_CREATE_BREEDS);
+        db.execSQL(SQL_CREATE_BREEDS_INDEX);
+        db.execSQL(SQL_SEED_GENDERS);
+        db.execSQL(SQL_FILL_GENDERS);
+        db.execSQL(SQL_FILL_BREEDS);
+        for (String trigger : SQL_CREATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /** the totals row, see {@link PetStatsEntry#CONTENT_URI} */
+    static Cursor querySummary(SQLiteDatabase db) {
+        return db.rawQuery(SQL_QUERY_SUMMARY, null);
+    }
+
+    /** the most common breeds, see {@link PetStatsEntry#BREEDS_URI} */
+    static Cursor queryTopBreeds(SQLiteDatabase db, int limit) {
+        return db.rawQuery(SQL_QUERY_BREEDS, new String[]{String.valueOf(limit)});
+    }
+
+    /**
+     * Recompute the statistics from scratch with full table aggregates, in one transaction.
+     * @return true if the running totals already matched, false if the rebuild fixed them
+     */
+    static boolean rebuild(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            Map<String, Long> before = snapshot(db);
+            db.execSQL("DELETE FROM " + GENDERS);
+            db.execSQL("DELETE FROM " + BREEDS);
+            db.execSQL(SQL_SEED_GENDERS);
+            db.execSQL(SQL_FILL_GENDERS);
+            db.execSQL(SQL_FILL_BREEDS);
+            boolean consistent = before.equals(snapshot(db));
+            db.setTransactionSuccessful();
+            return consistent;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** every value in both tables keyed by table, key and column */
+    private static Map<String, Long> snapshot(SQLiteDatabase db) {
+        Map<String, Long> values = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT " + GENDER + ", " + COUNT + ", " + TOTAL_WEIGHT + " FROM " + GENDERS, null);
+        try {
+            while (cursor.moveToNext()) {
+                values.put("gender " + cursor.getLong(0) + " count", cursor.getLong(1));
+                values.put("gender " + cursor.getLong(0) + " weight", cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.rawQuery("SELECT " + BREED + ", " + COUNT + " FROM " + BREEDS, null);
+        try {
+            while (cursor.moveToNext()) {
+                values.put("breed " + cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    /** the name the database at index is attached as for {@link Totals#add} */
+    static String schemaName(int index) {
+        return "s" + index;
+    }
+
+    /** the select over the table of every attached schema, run once per schema and joined with UNION ALL */
+    private static String unionAll(String select, String table, int schemas) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < schemas; i++) {
+            if (i > 0) sql.append(" UNION ALL ");
+            sql.append(String.format(select, schemaName(i) + "." + table));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * The statistics of several databases added together, for the totals of every tenant at once.
+     * Each database only gives up its running totals and the end of its weight index, so adding
+     * one costs the same handful of lookups as reading its own stats.
+     */
+    static final class Totals {
+
+        private long mMale;
+        private long mFemale;
+        private long mUnknown;
+        private long mTotalWeight;
+        private Long mMaxWeight;
+        private final Map<String, Long> mBreeds = new HashMap<>();
+
+        /** add the totals of the databases attached to db as schemaName(0) up to schemaName(schemas - 1) */
+        void add(SQLiteDatabase db, int schemas) {
+            if (schemas == 0) return;
+            Cursor cursor = db.rawQuery("SELECT " + GENDER + ", SUM(" + COUNT + "), SUM(" + TOTAL_WEIGHT + ") FROM (" +
+                    unionAll(SQL_SCHEMA_GENDERS, GENDERS, schemas) + ") GROUP BY " + GENDER, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long count = cursor.getLong(1);
+                    switch (cursor.getInt(0)) {
+                        case PetEntry.GENDER_MALE:
+                            mMale += count;
+                            break;
+                        case PetEntry.GENDER_FEMALE:
+                            mFemale += count;
+                            break;
+                        default:
+                            mUnknown += count;
+                    }
+                    mTotalWeight += cursor.getLong(2);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            cursor = db.rawQuery("SELECT " + BREED + ", SUM(" + COUNT + ") FROM (" +
+                    unionAll(SQL_SCHEMA_BREEDS, BREEDS, schemas) + ") GROUP BY " + BREED, null);
+            try {
+                while (cursor.moveToNext()) {
+                    Long count = mBreeds.get(cursor.getString(0));
+                    mBreeds.put(cursor.getString(0), (count == null ? 0 : count) + cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            cursor = db.rawQuery("SELECT MAX(m) FROM (" + unionAll(SQL_SCHEMA_MAX_WEIGHT, PETS, schemas) + ")", null);
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    long max = cursor.getLong(0);
+                    if (mMaxWeight == null || max > mMaxWeight) mMaxWeight = max;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /** the totals row, with the same columns as {@link #querySummary} */
+        Cursor toSummaryCursor() {
+            long count = mMale + mFemale + mUnknown;
+            MatrixCursor cursor = new MatrixCursor(SUMMARY_COLUMNS, 1);
+            cursor.addRow(new Object[]{1, count, mMale, mFemale, mUnknown,
+                    count == 0 ? null : (double) mTotalWeight / count, mMaxWeight});
+            return cursor;
+        }
+
+        /** the most common breeds, with the same columns and order as {@link #queryTopBreeds} */
+        Cursor toBreedsCursor(int limit) {
+            List<Map.Entry<String, Long>> breeds = new ArrayList<>(mBreeds.entrySet());
+            Collections.sort(breeds, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    int byCount = b.getValue().compareTo(a.getValue());
+                    return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+                }
+            });
+            // a negative limit is no limit, as it is to sqlite
+            int rows = limit < 0 ? breeds.size() : Math.min(limit, breeds.size());
+            MatrixCursor cursor = new MatrixCursor(BREEDS_COLUMNS, rows);
+            for (int i = 0; i < rows; i++) {
+                cursor.addRow(new Object[]{i + 1, breeds.get(i).getKey(), breeds.get(i).getValue()});
+            }
+            return cursor;
+        }
+    }
+}
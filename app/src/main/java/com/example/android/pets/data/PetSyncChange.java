@@ -0,0 +1,39 @@
+package com.example.android.pets.data;
+
+/**
+ * One pet as it travels to and from the registry: its sync id, when and on which device it was
+ * last written, and either its fields or that it was deleted. Like {@link PetRecord} it is plain
+ * fields so a batch of them can be filled in and reused.
+ */
+final class PetSyncChange {
+
+    /** id of the pet on every device, the _id is only ever local */
+    String syncId;
+    /** wall clock ms of the write, the newest write of a pet wins */
+    long modified;
+    /** device that made the write, breaks the tie between two writes in the same ms */
+    String device;
+    boolean deleted;
+
+    // the pet, not set for a delete
+    String name;
+    String breed;
+    int gender;
+    int weight;
+
+    /** local bookkeeping of an upload - the _id, and the version that is marked clean once it is sent */
+    long id;
+    long version;
+
+    /**
+     * Whether this write wins over the other one: the later write does, and of two in the same
+     * ms the one from the device that sorts last. Every device and the registry pick the same one.
+     * A device's writes always arrive in the order it made them, so a write from the device that
+     * made the other one wins even in the same ms.
+     */
+    boolean winsOver(long otherModified, String otherDevice) {
+        if (device.equals(otherDevice)) return true;
+        if (modified != otherModified) return modified > otherModified;
+        return device.compareTo(otherDevice) > 0;
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Talks to the clinic registry over http. Both directions are gzipped json, streamed a change at
+ * a time so a batch is never held as a string or a json tree.
+ *
+ * POST {registry}/pets/changes uploads {"device": ..., "changes": [...]}, which the registry
+ * merges by the same last writer wins rule as {@link PetSyncChange#winsOver}. GET
+ * {registry}/pets/changes?cursor=...&limit=...&device=... answers {"cursor": ..., "changes": [...]}
+ * with the changes after the cursor, leaving out the device's own. A change is
+ * {"id", "modified", "device", "deleted"} and, unless it is a delete, "name", "breed", "gender"
+ * and "weight".
+ */
+final class PetSyncClient {
+
+    private static final String PATH_CHANGES = "pets/changes";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final Uri mChangesUri;
+
+    /** @param registry base url of the registry */
+    PetSyncClient(String registry) {
+        mChangesUri = Uri.parse(registry).buildUpon().appendEncodedPath(PATH_CHANGES).build();
+    }
+
+    /** Send a batch of local changes, returns once the registry has stored them */
+    void upload(String device, List<PetSyncChange> changes) throws IOException {
+        HttpURLConnection connection = open(mChangesUri);
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setChunkedStreamingMode(0);
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new BufferedOutputStream(connection.getOutputStream())), "UTF-8"));
+            try {
+                writer.beginObject();
+                writer.name("device").value(device);
+                writer.name("changes").beginArray();
+                for (PetSyncChange change : changes) {
+                    writeChange(writer, change);
+                }
+                writer.endArray();
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+            checkResponse(connection);
+            // read to the end so the connection can be reused
+            drain(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Fetch the next page of remote changes into the changes list, which is cleared first.
+     * @param cursor where the last page ended, null for the first
+     * @return the cursor to ask for the page after this one from
+     */
+    String download(String cursor, String device, int limit, List<PetSyncChange> changes) throws IOException {
+        Uri.Builder uri = mChangesUri.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(limit))
+                .appendQueryParameter("device", device);
+        if (cursor != null) uri.appendQueryParameter("cursor", cursor);
+        HttpURLConnection connection = open(uri.build());
+        try {
+            // asking for gzip ourselves means decompressing it ourselves too
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            checkResponse(connection);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) in = new GZIPInputStream(in);
+            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            try {
+                changes.clear();
+                String next = cursor;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("cursor")) {
+                        next = reader.nextString();
+                    } else if (name.equals("changes")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            changes.add(readChange(reader));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return next;
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(Uri uri) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection;
+    }
+
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code / 100 != 2) {
+            throw new IOException(connection.getRequestMethod() + " " + connection.getURL() + " failed: " + code);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // nothing to keep
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeChange(JsonWriter writer, PetSyncChange change) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(change.syncId);
+        writer.name("modified").value(change.modified);
+        writer.name("device").value(change.device);
+        writer.name("deleted").value(change.deleted);
+        if (!change.deleted) {
+            writer.name("name").value(change.name);
+            writer.name("breed").value(change.breed);
+            writer.name("gender").value(change.gender);
+            writer.name("weight").value(change.weight);
+        }
+        writer.endObject();
+    }
+
+    /** read a change, checking it is a pet the provider would have accepted */
+    private static PetSyncChange readChange(JsonReader reader) throws IOException {
+        PetSyncChange change = new PetSyncChange();
+        change.gender = -1;
+        change.weight = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    change.syncId = reader.nextString();
+                    break;
+                case "modified":
+                    change.modified = reader.nextLong();
+                    break;
+                case "device":
+                    change.device = reader.nextString();
+                    break;
+                case "deleted":
+                    change.deleted = reader.nextBoolean();
+                    break;
+                case "name":
+                    change.name = reader.nextString();
+                    break;
+                case "breed":
+                    change.breed = reader.nextString();
+                    break;
+                case "gender":
+                    change.gender = reader.nextInt();
+                    break;
+                case "weight":
+                    change.weight = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (change.syncId == null || change.device == null) throw new IOException("Change without an id or device");
+        if (change.deleted) return change;
+        boolean validGender = change.gender == PetEntry.GENDER_UNKNOWN
+                || change.gender == PetEntry.GENDER_MALE
+                || change.gender == PetEntry.GENDER_FEMALE;
+        if (TextUtils.isEmpty(change.name) || !validGender || change.weight < 0) {
+            throw new IOException("Not a valid pet " + change.syncId);
+        }
+        return change;
+    }
+}
@@ -0,0 +1,433 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The sync state of every pet, kept in a table beside the pets table so the pets table and the
+ * queries on it stay as they are.
+ *
+ * Each pet has a row with its sync id, the time and device of its last write, a version and a
+ * dirty flag. Triggers on the pets table bump the version and set the flag on every local write,
+ * and a delete leaves the row behind as a tombstone until it has been uploaded. An upload marks
+ * a row clean only if its version is still the one that was sent, so a write made while the
+ * upload was in flight is sent the next time. Writes from the registry are applied through the
+ * same triggers and then marked clean with the registry's time and device, so they are never
+ * sent back.
+ *
+ * The table also holds the device's own id and, per registry, the cursor of the last page of
+ * remote changes applied - written in the same transaction as the page, so a sync that is cut
+ * off carries on from exactly where it stopped.
+ *
+ * A snapshot saves each pet's sync state with it and a restore puts it back, so a restored pet
+ * is the write it was when it was saved rather than a new one, and a pet nobody has written
+ * since is not sent again. One that has been written since, here or elsewhere, is sent again
+ * with its old time: the registry keeps whichever write is newer, and a rollback of this
+ * device's own write wins as the device's latest. The restore also drops the cursors, so the
+ * next sync downloads the registry's newer writes of the restored pets again to weigh them.
+ */
+final class PetSyncStore {
+
+    private static final String PETS = PetEntry.TABLE_NAME;
+    private static final String ROWS = "pet_sync_rows";
+    private static final String STATE = "pet_sync_state";
+
+    private static final String ID = "_id";
+    private static final String SYNC_ID = "sync_id";
+    private static final String MODIFIED = "modified";
+    private static final String DEVICE = "device";
+    private static final String VERSION = "version";
+    private static final String DIRTY = "dirty";
+    private static final String DELETED = "deleted";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_CURSOR_PREFIX = "cursor ";
+
+    // wall clock ms, julianday('now') has ms precision
+    private static final String NOW_MS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    private static final String NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+
+    private static final String SQL_CREATE_ROWS = "CREATE TABLE " + ROWS + " (" +
+            ID + " INTEGER PRIMARY KEY, " +
+            SYNC_ID + " TEXT NOT NULL, " +
+            MODIFIED + " INTEGER NOT NULL, " +
+            DEVICE + " TEXT, " +
+            VERSION + " INTEGER NOT NULL, " +
+            DIRTY + " INTEGER NOT NULL, " +
+            DELETED + " INTEGER NOT NULL)";
+
+    private static final String SQL_CREATE_STATE = "CREATE TABLE " + STATE + " (" +
+            KEY + " TEXT PRIMARY KEY, " +
+            VALUE + " TEXT)";
+
+    // a write from the registry is found by its sync id, an upload reads the dirty rows
+    private static final String[] SQL_CREATE_INDEXES = {
+            "CREATE UNIQUE INDEX pet_sync_rows_sync_id_index ON " + ROWS + " (" + SYNC_ID + ")",
+            "CREATE INDEX pet_sync_rows_dirty_index ON " + ROWS + " (" + DIRTY + ")"};
+
+    /**
+     * a local write of the pet with the _id - a new row if the pet has none, and a pet restored
+     * over its own tombstone keeps its sync id. A null device is this device
+     */
+    private static String markWritten(String id, String deleted) {
+        return "INSERT OR REPLACE INTO " + ROWS + " (" + ID + ", " + SYNC_ID + ", " + MODIFIED + ", " +
+                DEVICE + ", " + VERSION + ", " + DIRTY + ", " + DELETED + ") SELECT " + id + ", " +
+                "COALESCE((SELECT " + SYNC_ID + " FROM " + ROWS + " WHERE " + ID + " = " + id + "), " + NEW_SYNC_ID + "), " +
+                NOW_MS + ", NULL, " +
+                "COALESCE((SELECT " + VERSION + " FROM " + ROWS + " WHERE " + ID + " = " + id + "), 0) + 1, " +
+                "1, " + deleted + "; ";
+    }
+
+    // a photo is not synced, so changing it alone does not make the pet dirty
+    private static final String[] SQL_CREATE_TRIGGERS = {
+            "CREATE TRIGGER pet_sync_insert AFTER INSERT ON " + PETS +
+                    " BEGIN " + markWritten("new." + PetEntry._ID, "0") + "END",
+            "CREATE TRIGGER pet_sync_update AFTER UPDATE OF " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + " ON " + PETS +
+                    " BEGIN " + markWritten("new." + PetEntry._ID, "0") + "END",
+            "CREATE TRIGGER pet_sync_delete AFTER DELETE ON " + PETS +
+                    " BEGIN " + markWritten("old." + PetEntry._ID, "1") + "END"};
+
+    // every pet there is before sync is turned on is a local write that has not been sent
+    private static final String SQL_FILL_ROWS = "INSERT INTO " + ROWS + " (" + ID + ", " + SYNC_ID + ", " +
+            MODIFIED + ", " + DEVICE + ", " + VERSION + ", " + DIRTY + ", " + DELETED + ") SELECT " +
+            PetEntry._ID + ", " + NEW_SYNC_ID + ", " + NOW_MS + ", NULL, 1, 1, 0 FROM " + PETS;
+
+    // the dirty rows in _id order, which the dirty index gives without sorting
+    private static final String SQL_READ_DIRTY = "SELECT s." + ID + ", s." + SYNC_ID + ", s." + MODIFIED + ", s." +
+            VERSION + ", s." + DELETED + ", p." + PetEntry.COLUMN_PET_NAME + ", p." + PetEntry.COLUMN_PET_BREED +
+            ", p." + PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT +
+            " FROM " + ROWS + " s LEFT JOIN " + PETS + " p ON p." + PetEntry._ID + " = s." + ID +
+            " WHERE s." + DIRTY + " = 1 ORDER BY s." + ID + " LIMIT ?";
+
+    private static final String SQL_FIND = "SELECT " + ID + ", " + MODIFIED + ", " + DEVICE + ", " + DELETED +
+            " FROM " + ROWS + " WHERE " + SYNC_ID + " = ?";
+
+    private static final String SQL_INSERT_PET = "INSERT INTO " + PETS + " (" +
+            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE_PET = "UPDATE " + PETS + " SET " +
+            PetEntry.COLUMN_PET_NAME + " = ?, " + PetEntry.COLUMN_PET_BREED + " = ?, " +
+            PetEntry.COLUMN_PET_GENDER + " = ?, " + PetEntry.COLUMN_PET_WEIGHT + " = ? WHERE " + PetEntry._ID + " = ?";
+
+    private static final String SQL_DELETE_PET = "DELETE FROM " + PETS + " WHERE " + PetEntry._ID + " = ?";
+
+    // the registry's write replaces the one the triggers just recorded
+    private static final String SQL_MARK_REMOTE = "UPDATE " + ROWS + " SET " + SYNC_ID + " = ?, " + MODIFIED + " = ?, " +
+            DEVICE + " = ?, " + DIRTY + " = 0 WHERE " + ID + " = ?";
+
+    private static final String SQL_DELETE_ROW = "DELETE FROM " + ROWS + " WHERE " + ID + " = ?";
+
+    private static final String SQL_MARK_CLEAN = "UPDATE " + ROWS + " SET " + DIRTY + " = 0 WHERE " +
+            ID + " = ? AND " + VERSION + " = ?";
+
+    private static final String SQL_DELETE_SENT_TOMBSTONE = "DELETE FROM " + ROWS + " WHERE " +
+            ID + " = ? AND " + VERSION + " = ? AND " + DELETED + " = 1";
+
+    // the sync id of a restored pet may be held by the tombstone of the _id it was synced to later
+    private static final String SQL_DROP_OTHER_ROW = "DELETE FROM " + ROWS + " WHERE " + SYNC_ID + " = ? AND " +
+            ID + " <> ?";
+
+    private static final String SQL_RESTORE_ROW = "UPDATE " + ROWS + " SET " + SYNC_ID + " = ?, " + MODIFIED + " = ?, " +
+            DEVICE + " = ?, " + DIRTY + " = ? WHERE " + ID + " = ?";
+
+    // the last write of every pet there was before a restore, with this device bound for null
+    private static final String BEFORE_RESTORE = "pet_sync_before_restore";
+
+    private static final String SQL_SAVE_BEFORE_RESTORE = "CREATE TEMP TABLE " + BEFORE_RESTORE + " AS SELECT " +
+            SYNC_ID + ", " + MODIFIED + ", COALESCE(" + DEVICE + ", ?) AS " + DEVICE + " FROM " + ROWS +
+            " WHERE " + DELETED + " = 0";
+
+    private static final String SQL_INDEX_BEFORE_RESTORE = "CREATE UNIQUE INDEX pet_sync_before_restore_index ON " +
+            BEFORE_RESTORE + " (" + SYNC_ID + ")";
+
+    // a restored pet whose last write is not the one it had before the restore was written since
+    private static final String SQL_MARK_WRITTEN_SINCE = "UPDATE " + ROWS + " SET " + DIRTY + " = 1 WHERE " +
+            DIRTY + " = 0 AND NOT EXISTS (SELECT 1 FROM " + BEFORE_RESTORE + " b WHERE b." + SYNC_ID + " = " +
+            ROWS + "." + SYNC_ID + " AND b." + MODIFIED + " = " + ROWS + "." + MODIFIED + " AND b." + DEVICE +
+            " = " + ROWS + "." + DEVICE + ")";
+
+    private PetSyncStore() {
+    }
+
+    /**
+     * SELECT of the pets after the _id bound to the first parameter, in _id order and up to the
+     * limit bound to the second, each with the pet columns and then its sync id, modified, device
+     * and dirty flag, which are null for a pet that has no sync row
+     */
+    static String sqlSnapshotChunk(String[] petColumns) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (String column : petColumns) {
+            sql.append("p.").append(column).append(", ");
+        }
+        return sql.append("s.").append(SYNC_ID).append(", s.").append(MODIFIED).append(", s.")
+                .append(DEVICE).append(", s.").append(DIRTY)
+                .append(" FROM ").append(PETS).append(" p LEFT JOIN ").append(ROWS).append(" s ON s.")
+                .append(ID).append(" = p.").append(PetEntry._ID)
+                .append(" WHERE p.").append(PetEntry._ID).append(" > ? ORDER BY p.").append(PetEntry._ID)
+                .append(" LIMIT ?").toString();
+    }
+
+    /** create the tables and triggers, every pet already there is dirty */
+    static void create(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ROWS);
+        db.execSQL(SQL_CREATE_STATE);
+        for (String index : SQL_CREATE_INDEXES) {
+            db.execSQL(index);
+        }
+        db.execSQL(SQL_FILL_ROWS);
+        for (String trigger : SQL_CREATE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /** the id of this device, made up the first time it is asked for */
+    static String deviceId(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            String device = getState(db, KEY_DEVICE);
+            if (device == null) {
+                device = UUID.randomUUID().toString();
+                setState(db, KEY_DEVICE, device);
+            }
+            db.setTransactionSuccessful();
+            return device;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** forget the cursor of every registry, so the next sync with each downloads everything */
+    static void resetCursors(SQLiteDatabase db) {
+        db.delete(STATE, KEY + " LIKE ?", new String[]{KEY_CURSOR_PREFIX + "%"});
+    }
+
+    /** the cursor of the last page applied from the registry, null before the first one */
+    static String getCursor(SQLiteDatabase db, String registry) {
+        return getState(db, KEY_CURSOR_PREFIX + registry);
+    }
+
+    private static String getState(SQLiteDatabase db, String key) {
+        Cursor cursor = db.query(STATE, new String[]{VALUE}, KEY + "=?", new String[]{key}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void setState(SQLiteDatabase db, String key, String value) {
+        db.execSQL("INSERT OR REPLACE INTO " + STATE + " (" + KEY + ", " + VALUE + ") VALUES (?, ?)",
+                new Object[]{key, value});
+    }
+
+    /**
+     * Read up to limit local writes that have not been sent yet into the changes, which are
+     * reused from the list where there are enough of them.
+     * @return the number read, the list is cut down to it
+     */
+    static int readDirty(SQLiteDatabase db, String device, int limit, List<PetSyncChange> changes) {
+        Cursor cursor = db.rawQuery(SQL_READ_DIRTY, new String[]{String.valueOf(limit)});
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                PetSyncChange change;
+                if (count < changes.size()) {
+                    change = changes.get(count);
+                } else {
+                    change = new PetSyncChange();
+                    changes.add(change);
+                }
+                count++;
+                change.id = cursor.getLong(0);
+                change.syncId = cursor.getString(1);
+                change.modified = cursor.getLong(2);
+                change.version = cursor.getLong(3);
+                change.device = device;
+                change.deleted = cursor.getInt(4) != 0;
+                change.name = cursor.getString(5);
+                change.breed = cursor.getString(6);
+                change.gender = cursor.getInt(7);
+                change.weight = cursor.getInt(8);
+            }
+            changes.subList(count, changes.size()).clear();
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The changes have reached the registry. Mark each row clean, or drop its tombstone, unless
+     * it has been written again since it was read.
+     */
+    static void markUploaded(SQLiteDatabase db, List<PetSyncChange> changes) {
+        SQLiteStatement clean = db.compileStatement(SQL_MARK_CLEAN);
+        SQLiteStatement dropTombstone = db.compileStatement(SQL_DELETE_SENT_TOMBSTONE);
+        db.beginTransaction();
+        try {
+            for (PetSyncChange change : changes) {
+                SQLiteStatement statement = change.deleted ? dropTombstone : clean;
+                statement.bindLong(1, change.id);
+                statement.bindLong(2, change.version);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            clean.close();
+            dropTombstone.close();
+        }
+    }
+
+    /**
+     * Apply a page of changes from the registry in one transaction, each only if it wins over
+     * the pet's last write here, and save the cursor to carry on from with it. Nothing is applied
+     * if the saved cursor is no longer the one the page was downloaded from.
+     * @param device this device, the last writer of a pet whose row has no device
+     * @param from the cursor the page was downloaded from
+     * @param cursor the cursor after the page
+     * @return the number of pets inserted, updated or deleted, -1 if the saved cursor had moved
+     */
+    static int apply(SQLiteDatabase db, String device, List<PetSyncChange> changes,
+                     String registry, String from, String cursor) {
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_PET);
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_PET);
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_PET);
+        SQLiteStatement markRemote = db.compileStatement(SQL_MARK_REMOTE);
+        SQLiteStatement deleteRow = db.compileStatement(SQL_DELETE_ROW);
+        int rows = 0;
+        db.beginTransaction();
+        try {
+            String saved = getState(db, KEY_CURSOR_PREFIX + registry);
+            if (from == null ? saved != null : !from.equals(saved)) return -1;
+            for (PetSyncChange change : changes) {
+                long id = -1;
+                boolean localDeleted = false;
+                Cursor local = db.rawQuery(SQL_FIND, new String[]{change.syncId});
+                try {
+                    if (local.moveToFirst()) {
+                        // a write that loses stays dirty here and goes to the registry instead
+                        if (!change.winsOver(local.getLong(1), local.isNull(2) ? device : local.getString(2))) {
+                            continue;
+                        }
+                        id = local.getLong(0);
+                        localDeleted = local.getInt(3) != 0;
+                    }
+                } finally {
+                    local.close();
+                }
+
+                if (change.deleted) {
+                    if (id == -1) continue;
+                    if (!localDeleted) {
+                        delete.bindLong(1, id);
+                        rows += delete.executeUpdateDelete();
+                    }
+                    // both sides have the delete, there is nothing left to send
+                    deleteRow.bindLong(1, id);
+                    deleteRow.executeUpdateDelete();
+                    continue;
+                }
+
+                if (id != -1 && !localDeleted) {
+                    bindPet(update, change);
+                    update.bindLong(5, id);
+                    update.executeUpdateDelete();
+                } else {
+                    // new here, or deleted here before the registry's newer write - the
+                    // tombstone goes so the pet can take its sync id again
+                    if (id != -1) {
+                        deleteRow.bindLong(1, id);
+                        deleteRow.executeUpdateDelete();
+                    }
+                    bindPet(insert, change);
+                    id = insert.executeInsert();
+                }
+                markRemote.bindString(1, change.syncId);
+                markRemote.bindLong(2, change.modified);
+                markRemote.bindString(3, change.device);
+                markRemote.bindLong(4, id);
+                markRemote.executeUpdateDelete();
+                rows++;
+            }
+            setState(db, KEY_CURSOR_PREFIX + registry, cursor);
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+            insert.close();
+            update.close();
+            delete.close();
+            markRemote.close();
+            deleteRow.close();
+        }
+    }
+
+    private static void bindPet(SQLiteStatement statement, PetSyncChange change) {
+        statement.bindString(1, change.name);
+        if (change.breed == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, change.breed);
+        }
+        statement.bindLong(3, change.gender);
+        statement.bindLong(4, change.weight);
+    }
+
+    /**
+     * Puts back the sync state a snapshot saved, over the local write the triggers recorded
+     * when the pet was restored
+     */
+    static final class Restorer {
+
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mDropOther;
+        private final SQLiteStatement mRestore;
+
+        /** make in the restore's transaction before the pets are deleted, it saves their state */
+        Restorer(SQLiteDatabase db) {
+            mDb = db;
+            db.execSQL(SQL_SAVE_BEFORE_RESTORE, new Object[]{deviceId(db)});
+            db.execSQL(SQL_INDEX_BEFORE_RESTORE);
+            mDropOther = db.compileStatement(SQL_DROP_OTHER_ROW);
+            mRestore = db.compileStatement(SQL_RESTORE_ROW);
+        }
+
+        /** @param device the device of the pet's last write, never null */
+        void restore(long id, String syncId, long modified, String device, boolean dirty) {
+            mDropOther.bindString(1, syncId);
+            mDropOther.bindLong(2, id);
+            mDropOther.executeUpdateDelete();
+            mRestore.bindString(1, syncId);
+            mRestore.bindLong(2, modified);
+            mRestore.bindString(3, device);
+            mRestore.bindLong(4, dirty ? 1 : 0);
+            mRestore.bindLong(5, id);
+            mRestore.executeUpdateDelete();
+        }
+
+        /** once every pet is restored, in the same transaction */
+        void finish() {
+            mDb.execSQL(SQL_MARK_WRITTEN_SINCE);
+            mDb.execSQL("DROP TABLE " + BEFORE_RESTORE);
+            resetCursors(mDb);
+        }
+
+        void close() {
+            mDropOther.close();
+            mRestore.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes {@link PetRecord}s on a background thread so a save never waits on the database lock on
+ * the main thread. Writes queued within the group window of each other share one transaction,
+ * and each one's result comes back to its callback on the main thread once that transaction has
+ * committed.
+ *
+ * There is one queue for the whole process and it keeps running after the activity that queued a
+ * write has gone, so callbacks must not hold on to an activity.
+ */
+public class PetWriteQueue {
+
+    /** Results of a queued write, called on the main thread */
+    public interface Callback {
+        /**
+         * @param pet the record as it was queued, with its id set for an insert
+         * @param result the new _id for an insert, the number of rows changed for an update
+         */
+        void onWriteFinished(PetRecord pet, long result);
+
+        /** The write did not happen, the pet is as it was before it was queued */
+        void onWriteFailed(PetRecord pet, Exception error);
+    }
+
+    /** Default time in ms a write waits for others to share its transaction */
+    public static final long DEFAULT_GROUP_WINDOW_MS = 20;
+
+    private static PetWriteQueue sInstance;
+
+    private final PetWriter mWriter;
+
+    /** Handler on the background thread that runs the writes */
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Writes waiting for the group window to end, guarded by this */
+    private final List<Write> mPending = new ArrayList<>();
+
+    /** true while a drain is posted to the handler, guarded by this */
+    private boolean mDrainScheduled;
+
+    private volatile long mGroupWindowMs = DEFAULT_GROUP_WINDOW_MS;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /** The queue for the process */
+    public static synchronized PetWriteQueue get(Context context) {
+        if (sInstance == null) sInstance = new PetWriteQueue(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private PetWriteQueue(Context context) {
+        mWriter = new PetWriter(context);
+        HandlerThread thread = new HandlerThread("PetWriteQueue");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** Set the group window in ms, 0 writes each one as soon as the background thread gets to it */
+    public void setGroupWindowMs(long groupWindowMs) {
+        if (groupWindowMs < 0) throw new IllegalArgumentException("Group window cannot be negative");
+        mGroupWindowMs = groupWindowMs;
+    }
+
+    /**
+     * Queue an insert of the pet. The record is copied, so the caller can reuse it straight away.
+     * @param callback told the new _id, or null if nobody needs to know
+     */
+    public void insert(PetRecord pet, Callback callback) {
+        enqueue(new Write(pet, true, PetRecord.ALL_COLUMNS, callback));
+    }
+
+    /**
+     * Queue an update of the fields in the columns mask of the pet with the record's id. The
+     * record is copied, so the caller can reuse it straight away.
+     * @param columns PetRecord column bits
+     * @param callback told the number of rows changed, or null if nobody needs to know
+     */
+    public void update(PetRecord pet, int columns, Callback callback) {
+        enqueue(new Write(pet, false, columns, callback));
+    }
+
+    private void enqueue(Write write) {
+        long groupWindowMs = mGroupWindowMs;
+        synchronized (this) {
+            mPending.add(write);
+            if (mDrainScheduled) return;
+            mDrainScheduled = true;
+        }
+        mHandler.postDelayed(mDrainRunnable, groupWindowMs);
+    }
+
+    /** Write everything that is pending in one transaction, on the background thread */
+    private void drain() {
+        final List<Write> writes;
+        synchronized (this) {
+            mDrainScheduled = false;
+            if (mPending.isEmpty()) return;
+            writes = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        try {
+            // a write that fails is caught inside so it does not roll back the others
+            mWriter.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (Write write : writes) {
+                        write.apply(mWriter);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // the transaction itself failed, so none of the writes happened
+            for (Write write : writes) {
+                write.error = e;
+            }
+        }
+        for (final Write write : writes) {
+            if (write.callback == null) continue;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (write.error != null) {
+                        write.callback.onWriteFailed(write.pet, write.error);
+                    } else {
+                        write.callback.onWriteFinished(write.pet, write.result);
+                    }
+                }
+            });
+        }
+    }
+
+    /** One queued write and, once it has run, its result */
+    private static final class Write {
+        final PetRecord pet = new PetRecord();
+        final boolean insert;
+        final int columns;
+        final Callback callback;
+
+        long result;
+        Exception error;
+
+        Write(PetRecord pet, boolean insert, int columns, Callback callback) {
+            this.pet.set(pet);
+            this.insert = insert;
+            this.columns = columns;
+            this.callback = callback;
+        }
+
+        void apply(PetWriter writer) {
+            try {
+                if (insert) {
+                    result = writer.insert(pet);
+                    if (result == -1) error = new SQLException("Failed to insert pet " + pet.name);
+                } else {
+                    result = writer.update(pet, columns);
+                }
+            } catch (RuntimeException | RemoteException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Writes {@link PetRecord}s. In the app's own process the records go straight to the provider's
+ * precompiled statements with nothing allocated per write; if the provider ever runs in another
+ * process they fall back to ContentValues through the provider client. A writer made for a tenant
+ * writes to that tenant's database.
+ */
+public class PetWriter {
+
+    private final ContentProviderClient mClient;
+
+    /** The provider in this process, null if it is in another one */
+    private final PetProvider mProvider;
+
+    /** null for the default database */
+    private final String mTenant;
+
+    /** the pets uri of the writer's tenant */
+    private final Uri mPetsUri;
+
+    public PetWriter(Context context) {
+        this(context, null);
+    }
+
+    /** @param tenant the tenant whose database the writes go to, null for the default one */
+    public PetWriter(Context context, String tenant) {
+        if (tenant != null) PetShardPool.checkTenant(tenant);
+        mClient = context.getContentResolver().acquireContentProviderClient(PetContract.CONTENT_AUTHORITY);
+        mProvider = (PetProvider) mClient.getLocalContentProvider();
+        mTenant = tenant;
+        mPetsUri = tenant == null ? PetEntry.CONTENT_URI : PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant);
+    }
+
+    /**
+     * Insert the pet and set the record's id.
+     * @return the new _id, or -1 if the insert failed
+     */
+    public long insert(PetRecord pet) throws RemoteException {
+        if (mProvider != null) return mProvider.insert(mTenant, pet);
+        Uri uri = mClient.insert(mPetsUri, toValues(pet, PetRecord.ALL_COLUMNS));
+        pet.id = uri == null ? -1 : ContentUris.parseId(uri);
+        return pet.id;
+    }
+
+    /**
+     * Write every field of the record over the pet with the record's id.
+     * @return the number of rows changed, 0 if there is no pet with the id
+     */
+    public int update(PetRecord pet) throws RemoteException {
+        return update(pet, PetRecord.ALL_COLUMNS);
+    }
+
+    /**
+     * Write only the fields in the columns mask over the pet with the record's id.
+     * @param columns PetRecord column bits, 0 writes nothing
+     * @return the number of rows changed
+     */
+    public int update(PetRecord pet, int columns) throws RemoteException {
+        if (mProvider != null) return mProvider.update(mTenant, pet, columns);
+        ContentValues values = toValues(pet, columns);
+        if (values.size() == 0) return 0;
+        return mClient.update(ContentUris.withAppendedId(mPetsUri, pet.id), values, null, null);
+    }
+
+    /**
+     * Run the writes in one transaction. A provider in another process can't hold a transaction
+     * open across calls, so there each write commits on its own.
+     */
+    public void runInTransaction(Runnable writes) {
+        if (mProvider != null) {
+            mProvider.runInTransaction(mTenant, writes);
+        } else {
+            writes.run();
+        }
+    }
+
+    /** Let go of the provider, the writer cannot be used after this */
+    public void close() {
+        mClient.release();
+    }
+
+    private static ContentValues toValues(PetRecord pet, int columns) {
+        ContentValues values = new ContentValues();
+        if ((columns & PetRecord.NAME) != 0) values.put(PetEntry.COLUMN_PET_NAME, pet.name);
+        if ((columns & PetRecord.BREED) != 0) values.put(PetEntry.COLUMN_PET_BREED, pet.breed);
+        if ((columns & PetRecord.GENDER) != 0) values.put(PetEntry.COLUMN_PET_GENDER, pet.gender);
+        if ((columns & PetRecord.WEIGHT) != 0) values.put(PetEntry.COLUMN_PET_WEIGHT, pet.weight);
+        return values;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.pets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The committed baselines the benchmarks are compared against, and the results of this run.
+ *
+ * Baselines live in benchmark_baselines.properties next to this class, one cost per benchmark.
+ * A result more than {@link #TOLERANCE} times its baseline is a regression. A benchmark with no
+ * baseline only has its result recorded - a baseline is only committed once it was measured on
+ * the reference machine, a guessed one would fail or pass at random. Every result is written to
+ * the file named by the pets.benchmark.results property, which is where the baselines are copied
+ * from. Until the first baselines are committed the file has none, and the gate is off.
+ */
+final class PetBenchmarkBaselines {
+
+    /** How much slower than the baseline a result can be before it fails the run */
+    static final double TOLERANCE = 1.5;
+
+    private static final String BASELINES = "benchmark_baselines.properties";
+
+    private final Properties mBaselines = new Properties();
+    private final Properties mResults = new Properties();
+
+    PetBenchmarkBaselines() throws IOException {
+        InputStream in = PetBenchmarkBaselines.class.getResourceAsStream(BASELINES);
+        if (in == null) throw new IOException("Missing " + BASELINES);
+        try {
+            mBaselines.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Record a result and compare it with its baseline.
+     * @return a description of the regression, or null if the result is within the baseline or
+     * the benchmark has no baseline yet
+     */
+    String check(String name, double value) {
+        mResults.setProperty(name, String.format("%.2f", value));
+        String baseline = mBaselines.getProperty(name);
+        if (baseline == null) return null;
+        double limit = Double.parseDouble(baseline) * TOLERANCE;
+        if (value <= limit) return null;
+        return String.format("%s took %.2f, baseline %s allows up to %.2f", name, value, baseline, limit);
+    }
+
+    /** Record a result that is only reported, never compared - a figure to read beside the checked ones */
+    void record(String name, double value) {
+        mResults.setProperty(name, String.format("%.2f", value));
+    }
+
+    /** Write the results of the run so far, merged with what earlier test classes wrote */
+    void save() throws IOException {
+        String path = System.getProperty("pets.benchmark.results");
+        if (path == null) return;
+        File file = new File(path);
+        Properties merged = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                merged.load(in);
+            } finally {
+                in.close();
+            }
+        } else {
+            file.getParentFile().mkdirs();
+        }
+        merged.putAll(mResults);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            merged.store(out, "pets benchmark results");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.example.android.pets;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.widget.FrameLayout;
+
+import com.example.android.pets.data.PetColumnarCursor;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+import com.example.android.pets.data.PetGenerator;
+import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.PetRecord;
+import com.example.android.pets.data.PetSyncTestServer;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks for the data layer, run on the JVM against Robolectric's real sqlite.
+ *
+ * Only run with -Ppets.benchmark (./gradlew testDebugUnitTest -Ppets.benchmark), and the 1M row
+ * catalog only with -Ppets.benchmark.full as well. Every result is written to
+ * build/benchmark/results.properties, and a result that has a committed baseline fails its test
+ * when it regresses, see {@link PetBenchmarkBaselines} - none is committed yet, so for now the
+ * results are only recorded and no timing fails a run. The correctness of what is measured here
+ * is covered by the tests in the data package, which run every time.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetBenchmarks {
+
+    private static final String[] CATALOG_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED};
+
+    /** Rows every lookup, update, delete and binding benchmark starts with */
+    private static final int TABLE_ROWS = 10000;
+
+    /** Operations timed by the per row and per lookup benchmarks */
+    private static final int OPERATIONS = 2000;
+
+    /** Rows inserted per bulkInsert call when filling the table */
+    private static final int CHUNK = 10000;
+
+    /** Writes per transaction in the grouped update benchmark */
+    private static final int WRITE_GROUP = 8;
+
+    /** Rows the catalog shapes are read from, and the pages of each shape that are read */
+    private static final int SHAPE_ROWS = 500000;
+    private static final int SHAPE_PAGES = 20;
+    private static final int SHAPE_PAGE_SIZE = 50;
+
+    /** Tenants beside the default database in the tenant benchmark, and the pets each one has */
+    private static final int TENANTS = 20;
+    private static final int TENANT_ROWS = 2000;
+
+    private static PetBenchmarkBaselines sBaselines;
+
+    /** Where the cursor reads leave their sum, so the jit can't drop them as unused */
+    private static volatile long sSink;
+
+    private PetProvider mProvider;
+    private PetGenerator mGenerator;
+    private Random mRandom;
+
+    @BeforeClass
+    public static void loadBaselines() throws Exception {
+        sBaselines = new PetBenchmarkBaselines();
+    }
+
+    @AfterClass
+    public static void saveResults() throws Exception {
+        if (Boolean.getBoolean("pets.benchmark")) sBaselines.save();
+    }
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("pets.benchmark"));
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        mGenerator = new PetGenerator(42);
+        mRandom = new Random(42);
+    }
+
+    @Test
+    public void singleInsert() {
+        for (int i = 0; i < OPERATIONS / 10; i++) {
+            mProvider.insert(PetEntry.CONTENT_URI, randomPet());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            mProvider.insert(PetEntry.CONTENT_URI, randomPet());
+        }
+        check("insert.single.us_per_row", micros(start) / OPERATIONS);
+    }
+
+    @Test
+    public void singleInsertRecord() {
+        // the same record is filled in for every insert, as the editor does
+        PetRecord record = new PetRecord();
+        for (int i = 0; i < OPERATIONS / 10; i++) {
+            mProvider.insert(fillRecord(record));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            mProvider.insert(fillRecord(record));
+        }
+        check("insert.record.us_per_row", micros(start) / OPERATIONS);
+    }
+
+    @Test
+    public void bulkInsert() {
+        fill(CHUNK);
+        int rows = 5 * CHUNK;
+        long start = System.nanoTime();
+        fill(rows);
+        check("insert.bulk.us_per_row", micros(start) / rows);
+    }
+
+    @Test
+    public void petIdLookup() {
+        fill(TABLE_ROWS);
+        long[] ids = randomIds(TABLE_ROWS);
+        long start = System.nanoTime();
+        for (long id : ids) {
+            Cursor cursor = mProvider.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                    null, null, null, null);
+            try {
+                cursor.moveToFirst();
+                cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
+            } finally {
+                cursor.close();
+            }
+        }
+        check("lookup.pet_id.us", micros(start) / ids.length);
+    }
+
+    @Test
+    public void catalogQuery() {
+        List<Integer> sizes = new ArrayList<>();
+        sizes.add(10000);
+        sizes.add(100000);
+        if (Boolean.getBoolean("pets.benchmark.full")) sizes.add(1000000);
+
+        int rows = 0;
+        for (int size : sizes) {
+            fill(size - rows);
+            rows = size;
+            // best of three, the fastest run is the one least disturbed by gc and the jit
+            double best = Double.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                long start = System.nanoTime();
+                assertEquals(size, readCatalog());
+                best = Math.min(best, micros(start) / 1000);
+            }
+            check("catalog.query." + size + ".ms", best);
+        }
+    }
+
+    @Test
+    public void catalogShapes() {
+        fill(SHAPE_ROWS);
+        // every filter the catalog offers with every sort, newest first being the descending _id
+        String[] filters = {"all", "gender", "breed", "weight"};
+        String[] sortNames = {"name", "weight", "newest"};
+        String[] sortKeys = {PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT, PetEntry._ID};
+
+        for (String filter : filters) {
+            boolean weightRange = filter.equals("weight");
+            for (int i = 0; i < sortKeys.length; i++) {
+                Uri base = PetEntry.buildFilterUri(
+                        filter.equals("gender") ? PetEntry.GENDER_FEMALE : null,
+                        filter.equals("breed") ? "Labrador" : null,
+                        weightRange ? 10 : null, weightRange ? 20 : null, i == 2);
+                double best = Double.MAX_VALUE;
+                for (int run = 0; run < 3; run++) {
+                    long start = System.nanoTime();
+                    readPages(base, sortKeys[i], SHAPE_PAGES);
+                    best = Math.min(best, micros(start) / 1000);
+                }
+                check("shape." + filter + "." + sortNames[i] + ".ms", best);
+            }
+        }
+    }
+
+    @Test
+    public void update() {
+        fill(TABLE_ROWS);
+        long[] ids = randomIds(TABLE_ROWS);
+        long start = System.nanoTime();
+        for (long id : ids) {
+            mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), randomPet(), null, null);
+        }
+        check("update.pet_id.us", micros(start) / ids.length);
+    }
+
+    @Test
+    public void groupedUpdate() {
+        fill(TABLE_ROWS);
+        final long[] ids = randomIds(TABLE_ROWS);
+        final PetRecord record = new PetRecord();
+        long start = System.nanoTime();
+        // the write queue commits the writes that arrive together as one transaction
+        for (int i = 0; i < ids.length; i += WRITE_GROUP) {
+            final int first = i;
+            mProvider.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = first; j < Math.min(first + WRITE_GROUP, ids.length); j++) {
+                        fillRecord(record).id = ids[j];
+                        mProvider.update(record);
+                    }
+                }
+            });
+        }
+        check("update.grouped.us_per_row", micros(start) / ids.length);
+    }
+
+    @Test
+    public void delete() {
+        fill(TABLE_ROWS);
+        long[] ids = randomIds(TABLE_ROWS);
+        long start = System.nanoTime();
+        for (long id : ids) {
+            mProvider.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null, null);
+        }
+        check("delete.pet_id.us", micros(start) / ids.length);
+    }
+
+    @Test
+    public void changes() {
+        fill(TABLE_ROWS);
+        long seq = mProvider.call(PetContract.METHOD_ACK_CHANGES, "benchmark", null)
+                .getLong(PetContract.KEY_CHANGE_SEQ);
+        long[] ids = randomIds(TABLE_ROWS);
+        for (long id : ids) {
+            mProvider.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), randomPet(), null, null);
+        }
+        // read the changes a page of the catalog at a time, acknowledging each delta as the
+        // page loader does
+        int changes = 0;
+        long start = System.nanoTime();
+        while (true) {
+            Cursor cursor = mProvider.query(PetChangeEntry.buildChangesUri(seq, SHAPE_PAGE_SIZE), null, null, null, null);
+            try {
+                if (!cursor.moveToLast()) break;
+                assertTrue(cursor.getInt(cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_OP)) != PetChangeEntry.OP_RESET);
+                seq = cursor.getLong(cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_SEQ));
+                changes += cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            Bundle extras = new Bundle();
+            extras.putLong(PetContract.KEY_CHANGE_SEQ, seq);
+            mProvider.call(PetContract.METHOD_ACK_CHANGES, "benchmark", extras);
+        }
+        check("changes.read.us_per_row", micros(start) / changes);
+        assertEquals(ids.length, changes);
+    }
+
+    @Test
+    public void syncUpload() throws Exception {
+        fill(TABLE_ROWS);
+        PetSyncTestServer server = PetSyncTestServer.start();
+        try {
+            long start = System.nanoTime();
+            Bundle result = mProvider.call(PetContract.METHOD_SYNC, server.getUrl(), null);
+            // us per row is ms per thousand rows
+            check("sync.upload.ms_per_1k_rows", micros(start) / TABLE_ROWS);
+            assertEquals(TABLE_ROWS, result.getInt(PetContract.KEY_SYNC_UPLOADED));
+            assertEquals(TABLE_ROWS, server.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void syncDownload() throws Exception {
+        PetSyncTestServer server = PetSyncTestServer.start();
+        try {
+            server.seed(TABLE_ROWS, mGenerator);
+            long start = System.nanoTime();
+            Bundle result = mProvider.call(PetContract.METHOD_SYNC, server.getUrl(), null);
+            check("sync.download.ms_per_1k_rows", micros(start) / TABLE_ROWS);
+            assertEquals(TABLE_ROWS, result.getInt(PetContract.KEY_SYNC_DOWNLOADED));
+
+            // the pets that came from the registry are not sent back, and the cursor was saved
+            result = mProvider.call(PetContract.METHOD_SYNC, server.getUrl(), null);
+            assertEquals(0, result.getInt(PetContract.KEY_SYNC_UPLOADED));
+            assertEquals(0, result.getInt(PetContract.KEY_SYNC_DOWNLOADED));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        int rows = 100000;
+        fill(rows);
+        File file = File.createTempFile("pets", ".snapshot");
+        try {
+            long start = System.nanoTime();
+            mProvider.call(PetContract.METHOD_SAVE_SNAPSHOT, file.getAbsolutePath(), null);
+            check("snapshot.save.us_per_row", micros(start) / rows);
+
+            start = System.nanoTime();
+            Bundle result = mProvider.call(PetContract.METHOD_RESTORE_SNAPSHOT, file.getAbsolutePath(), null);
+            check("snapshot.restore.us_per_row", micros(start) / rows);
+            assertEquals(rows, result.getInt(PetContract.KEY_SNAPSHOT_ROWS));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void tenants() {
+        // one big caseload in the default database and a small one in each tenant's
+        int defaultRows = SHAPE_ROWS / 5;
+        fill(defaultRows);
+        for (int i = 0; i < TENANTS; i++) {
+            fill(PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant(i)), TENANT_ROWS);
+        }
+        assertEquals(TENANTS, mProvider.call(PetContract.METHOD_GET_TENANTS, null, null)
+                .getStringArrayList(PetContract.KEY_TENANTS).size());
+
+        // a tenant's pages should cost what they would if its pets were the only ones
+        readPages(PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant(0)), PetEntry.COLUMN_PET_WEIGHT, SHAPE_PAGES);
+        long start = System.nanoTime();
+        for (int i = 0; i < TENANTS; i++) {
+            readPages(PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant(i)), PetEntry.COLUMN_PET_NAME, SHAPE_PAGES);
+        }
+        check("tenant.pages.ms", micros(start) / 1000 / TENANTS);
+
+        Uri allTenants = PetStatsEntry.buildAllTenantsUri(PetStatsEntry.CONTENT_URI);
+        int queries = 20;
+        long elapsed = 0;
+        for (int i = 0; i < queries; i++) {
+            // a write to any tenant makes the cached totals stale, so each query adds them up again
+            mProvider.insert(PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant(i % TENANTS)), randomPet());
+            start = System.nanoTime();
+            Cursor cursor = mProvider.query(allTenants, null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals(defaultRows + TENANTS * TENANT_ROWS + i + 1,
+                        cursor.getLong(cursor.getColumnIndexOrThrow(PetStatsEntry.COLUMN_COUNT)));
+            } finally {
+                cursor.close();
+            }
+            elapsed += System.nanoTime() - start;
+        }
+        check("tenants.stats.all.ms", elapsed / 1e6 / queries);
+    }
+
+    @Test
+    public void cachedCursor() {
+        fill(TABLE_ROWS);
+        String[] projection = {PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT};
+        Cursor source = mProvider.query(PetEntry.CONTENT_URI, projection, null, null, null);
+        try {
+            int rows = source.getCount();
+            // a few copies of each so the heap difference is well above the noise
+            int copies = 5;
+
+            long before = usedHeap();
+            MatrixCursor[] matrices = new MatrixCursor[copies];
+            for (int i = 0; i < copies; i++) {
+                matrices[i] = toMatrixCursor(source);
+            }
+            double matrixBytes = (usedHeap() - before) / (double) (copies * rows);
+
+            before = usedHeap();
+            PetColumnarCursor.Rows[] columnar = new PetColumnarCursor.Rows[copies];
+            for (int i = 0; i < copies; i++) {
+                columnar[i] = PetColumnarCursor.Rows.read(source);
+            }
+            double columnarBytes = (usedHeap() - before) / (double) (copies * rows);
+
+            double windowNanos = readNanosPerRow(source);
+            double matrixNanos = readNanosPerRow(matrices[0]);
+            double columnarNanos = readNanosPerRow(columnar[0].newCursor());
+            // what the columnar rows are weighed against
+            sBaselines.record("cursor.matrix.bytes_per_row", matrixBytes);
+            sBaselines.record("cursor.window.read.ns_per_row", windowNanos);
+            sBaselines.record("cursor.matrix.read.ns_per_row", matrixNanos);
+
+            check("cursor.columnar.bytes_per_row", columnarBytes);
+            check("cursor.columnar.read.ns_per_row", columnarNanos);
+            // read times on a shared machine are recorded and checked against their baseline, but
+            // not raced against each other
+            assertTrue("columnar rows should take less memory than a MatrixCursor",
+                    columnarBytes < matrixBytes);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void cursorBinding() {
+        fill(TABLE_ROWS);
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, CATALOG_PROJECTION, null, null, null);
+        long start = System.nanoTime();
+        PetRows rows;
+        try {
+            rows = PetRows.from(cursor);
+        } finally {
+            cursor.close();
+        }
+        check("rows.copy.us_per_row", micros(start) / rows.getCount());
+
+        PetAdapter adapter = new PetAdapter(null, PetThumbnails.get(RuntimeEnvironment.application));
+        adapter.setSource(rows);
+        PetAdapter.PetViewHolder holder = adapter.onCreateViewHolder(
+                new FrameLayout(RuntimeEnvironment.application), 0);
+        for (int i = 0; i < rows.getCount() / 10; i++) {
+            adapter.onBindViewHolder(holder, i);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < rows.getCount(); i++) {
+            adapter.onBindViewHolder(holder, i);
+        }
+        check("bind.us_per_row", micros(start) / rows.getCount());
+    }
+
+    /** Query the whole table the way the catalog does and read every row, returns the row count */
+    private int readCatalog() {
+        Cursor cursor = mProvider.query(PetEntry.CONTENT_URI, CATALOG_PROJECTION, null, null, null);
+        try {
+            int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            int nameIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            int breedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(idIndex);
+                cursor.getString(nameIndex);
+                cursor.getString(breedIndex);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Read the pages of a catalog shape one after another the way the page loader does */
+    private void readPages(Uri base, String sortKey, int pages) {
+        String[] projection = {PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_WEIGHT};
+        Uri uri = PetEntry.buildFirstPageUri(base, SHAPE_PAGE_SIZE, sortKey);
+        for (int page = 0; page < pages; page++) {
+            Cursor cursor = mProvider.query(uri, projection, null, null, null);
+            try {
+                if (!cursor.moveToLast()) return;
+                String lastKey = cursor.getString(cursor.getColumnIndexOrThrow(sortKey));
+                long lastId = cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID));
+                uri = PetEntry.buildNextPageUri(base, SHAPE_PAGE_SIZE, sortKey, lastKey, lastId);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Copy the cursor the way a cache without PetColumnarCursor would */
+    private static MatrixCursor toMatrixCursor(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        MatrixCursor matrix = new MatrixCursor(columns, cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[columns.length];
+            row[0] = cursor.getLong(0);
+            row[1] = cursor.getString(1);
+            row[2] = cursor.getString(2);
+            row[3] = cursor.getLong(3);
+            row[4] = cursor.getLong(4);
+            matrix.addRow(row);
+        }
+        return matrix;
+    }
+
+    /** Best of three passes reading every column of every row */
+    private static double readNanosPerRow(Cursor cursor) {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long sum = 0;
+            long start = System.nanoTime();
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                sum += cursor.getLong(0) + cursor.getInt(3) + cursor.getInt(4);
+                String breed = cursor.getString(2);
+                sum += cursor.getString(1).length() + (breed == null ? 0 : breed.length());
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) cursor.getCount());
+            // keeps the reads from being optimised away
+            sSink += sum;
+        }
+        return best;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Add rows to the table with bulkInsert, CHUNK rows at a time */
+    private void fill(int rows) {
+        fill(PetEntry.CONTENT_URI, rows);
+    }
+
+    /** Add rows to the pets uri, which may name a tenant, with bulkInsert */
+    private void fill(Uri uri, int rows) {
+        while (rows > 0) {
+            ContentValues[] values = new ContentValues[Math.min(rows, CHUNK)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = randomPet();
+            }
+            assertEquals(values.length, mProvider.bulkInsert(uri, values));
+            rows -= values.length;
+        }
+    }
+
+    private ContentValues randomPet() {
+        return mGenerator.next();
+    }
+
+    private PetRecord fillRecord(PetRecord record) {
+        ContentValues values = randomPet();
+        return record.set(values.getAsString(PetEntry.COLUMN_PET_NAME),
+                values.getAsString(PetEntry.COLUMN_PET_BREED),
+                values.getAsInteger(PetEntry.COLUMN_PET_GENDER),
+                values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+    }
+
+    /** OPERATIONS distinct ids of rows in a table filled with rows pets */
+    private long[] randomIds(int rows) {
+        long[] ids = new long[OPERATIONS];
+        int step = rows / OPERATIONS;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + i * step + mRandom.nextInt(step);
+        }
+        // shuffle so the lookups jump around the table
+        for (int i = ids.length - 1; i > 0; i--) {
+            int j = mRandom.nextInt(i + 1);
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+        return ids;
+    }
+
+    /** Name of the tenant benchmark's tenant at index */
+    private static String tenant(int index) {
+        return "clinic_" + index;
+    }
+
+    private static double micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000.0;
+    }
+
+    private static void check(String name, double value) {
+        String regression = sBaselines.check(name, value);
+        if (regression != null) fail(regression);
+    }
+}
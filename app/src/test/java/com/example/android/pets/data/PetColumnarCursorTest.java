@@ -0,0 +1,165 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.MatrixCursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A {@link PetColumnarCursor} reads back exactly what the cursor it was copied from held, in the
+ * pets columns it packs and in any other column.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetColumnarCursorTest {
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO,
+            "score",
+            "thumbnail"};
+
+    @Test
+    public void readsWhatTheSourceHeld() {
+        MatrixCursor source = new MatrixCursor(COLUMNS);
+        source.addRow(new Object[]{1L, "Toto", "Terrier", PetEntry.GENDER_MALE, 7, "toto.jpg", 2.5, new byte[]{1, 2}});
+        source.addRow(new Object[]{2L, "Tom", null, PetEntry.GENDER_UNKNOWN, 0, null, null, null});
+        source.addRow(new Object[]{Long.MAX_VALUE, "Zoë 🐶", "Terrier", PetEntry.GENDER_FEMALE, 42, null, 12L, "text"});
+
+        PetColumnarCursor.Rows rows = PetColumnarCursor.Rows.read(source);
+        assertEquals(-1, source.getPosition());
+        assertEquals(3, rows.getCount());
+
+        Cursor cursor = rows.newCursor();
+        assertArrayEquals(COLUMNS, cursor.getColumnNames());
+        assertEquals(source.getCount(), cursor.getCount());
+        while (source.moveToNext()) {
+            assertTrue(cursor.moveToNext());
+            for (int column = 0; column < COLUMNS.length; column++) {
+                String at = COLUMNS[column] + " of row " + source.getPosition();
+                int type = source.getType(column);
+                // MatrixCursor calls any Number other than a float or double an integer
+                assertEquals(at, type, cursor.getType(column));
+                assertEquals(at, type == Cursor.FIELD_TYPE_NULL, cursor.isNull(column));
+                switch (type) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        assertEquals(at, source.getLong(column), cursor.getLong(column));
+                        assertEquals(at, source.getInt(column), cursor.getInt(column));
+                        assertEquals(at, source.getString(column), cursor.getString(column));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        assertEquals(at, source.getDouble(column), cursor.getDouble(column), 0);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        assertArrayEquals(at, source.getBlob(column), cursor.getBlob(column));
+                        break;
+                    default:
+                        assertEquals(at, source.getString(column), cursor.getString(column));
+                }
+            }
+        }
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void nullsReadAsZero() {
+        MatrixCursor source = new MatrixCursor(COLUMNS);
+        source.addRow(new Object[]{1L, "Toto", null, PetEntry.GENDER_MALE, 7, null, null, null});
+        Cursor cursor = PetColumnarCursor.Rows.read(source).newCursor();
+        assertTrue(cursor.moveToFirst());
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (!cursor.isNull(column)) continue;
+            assertNull(COLUMNS[column], cursor.getString(column));
+            assertEquals(COLUMNS[column], 0, cursor.getLong(column));
+            assertEquals(COLUMNS[column], 0, cursor.getDouble(column), 0);
+        }
+        assertTrue(cursor.isNull(cursor.getColumnIndexOrThrow("thumbnail")));
+        assertNull(cursor.getBlob(cursor.getColumnIndexOrThrow("thumbnail")));
+    }
+
+    @Test
+    public void cursorsKeepTheirOwnPosition() {
+        MatrixCursor source = new MatrixCursor(COLUMNS);
+        for (int i = 1; i <= 3; i++) {
+            source.addRow(new Object[]{(long) i, "Pet " + i, null, PetEntry.GENDER_MALE, i, null, null, null});
+        }
+        PetColumnarCursor.Rows rows = PetColumnarCursor.Rows.read(source);
+        Cursor first = rows.newCursor();
+        Cursor second = rows.newCursor();
+        assertTrue(first.moveToLast());
+        assertTrue(second.moveToFirst());
+        assertEquals(3, first.getLong(0));
+        assertEquals(1, second.getLong(0));
+    }
+
+    @Test
+    public void readingOffTheRowsThrows() {
+        MatrixCursor source = new MatrixCursor(COLUMNS);
+        source.addRow(new Object[]{1L, "Toto", null, PetEntry.GENDER_MALE, 7, null, null, null});
+        Cursor cursor = PetColumnarCursor.Rows.read(source).newCursor();
+        assertOffTheRows(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getLong(0));
+        assertFalse(cursor.moveToNext());
+        assertOffTheRows(cursor);
+
+        assertOffTheRows(PetColumnarCursor.Rows.read(new MatrixCursor(COLUMNS)).newCursor());
+    }
+
+    @Test
+    public void sharedStringsAreCountedOnce() {
+        MatrixCursor shared = new MatrixCursor(COLUMNS);
+        MatrixCursor distinct = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < 1000; i++) {
+            shared.addRow(new Object[]{(long) i, "Bella", "Labrador", PetEntry.GENDER_FEMALE, 30, null, null, null});
+            distinct.addRow(new Object[]{(long) i, "Bella " + i, "Labrador", PetEntry.GENDER_FEMALE, 30, null, null, null});
+        }
+        int sharedBytes = PetColumnarCursor.Rows.read(shared).sizeBytes();
+        int distinctBytes = PetColumnarCursor.Rows.read(distinct).sizeBytes();
+
+        // the arrays themselves, a long, two ints and three string references and two objects a row
+        assertTrue("rows took " + sharedBytes, sharedBytes >= 1000 * (8 + 4 + 4 + 3 * 4 + 2 * 4));
+        // a distinct name a row costs at least its characters on top of that
+        assertTrue(sharedBytes + " against " + distinctBytes, distinctBytes - sharedBytes >= 1000 * 2 * "Bella 0".length());
+        assertTrue(PetColumnarCursor.Rows.read(new MatrixCursor(COLUMNS)).sizeBytes() < sharedBytes / 100);
+    }
+
+    /** every getter throws with the cursor where it is */
+    private static void assertOffTheRows(Cursor cursor) {
+        for (int getter = 0; getter < 9; getter++) {
+            try {
+                switch (getter) {
+                    case 0: cursor.getType(0); break;
+                    case 1: cursor.getString(1); break;
+                    case 2: cursor.getShort(3); break;
+                    case 3: cursor.getInt(4); break;
+                    case 4: cursor.getLong(0); break;
+                    case 5: cursor.getFloat(6); break;
+                    case 6: cursor.getDouble(6); break;
+                    case 7: cursor.getBlob(7); break;
+                    default: cursor.isNull(2); break;
+                }
+                fail("Getter " + getter + " read at position " + cursor.getPosition());
+            } catch (CursorIndexOutOfBoundsException expected) {
+                // there is no row there
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.android.pets.data.PetProviderTest.pet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * What the export uri writes, {@link PetImporter} reads back to the same pets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetImportTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Names that need quoting in csv or escaping in json */
+    private static final String[] AWKWARD_NAMES = {
+            "Toto",
+            "Rex, the Second",
+            "\"Bubbles\"",
+            "Mr \"Whiskers\", Esq.",
+            "Two\r\nLines",
+            "Line\nfeed",
+            "Carriage\rreturn",
+            "trailing,",
+            "\"",
+            "Zoë 🐶",
+            " spaced "};
+
+    private PetProvider mProvider;
+    private PetImporter mImporter;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        mImporter = new PetImporter(RuntimeEnvironment.application.getContentResolver(), null);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void csvRoundTrip() throws IOException {
+        List<String> pets = insertAwkwardPets();
+        StringWriter csv = new StringWriter();
+        assertEquals(pets.size(), new PetExporter(database()).writeCsv(csv));
+
+        deleteAll();
+        assertEquals(pets.size(), mImporter.importCsv(stream(csv.toString())));
+        assertEquals(pets, readPets());
+    }
+
+    @Test
+    public void jsonRoundTrip() throws IOException {
+        List<String> pets = insertAwkwardPets();
+        StringWriter json = new StringWriter();
+        assertEquals(pets.size(), new PetExporter(database()).writeJson(json));
+
+        deleteAll();
+        assertEquals(pets.size(), mImporter.importJson(stream(json.toString())));
+        assertEquals(pets, readPets());
+    }
+
+    @Test
+    public void csvColumnsAreFoundByTheHeader() throws IOException {
+        String csv = "weight,notes,name,gender,breed\n" +
+                "7,\"likes, walks\",Toto,1,Terrier\n" +
+                "\n" +
+                "3,,\"Tom \"\"the cat\"\"\",2,\n" +
+                "9,,Rex,1,\"\"\n";
+        assertEquals(3, mImporter.importCsv(stream(csv)));
+        assertEquals(Arrays.asList(
+                "Toto|Terrier|1|7",
+                "Tom \"the cat\"|null|2|3",
+                "Rex||1|9"), readPets());
+    }
+
+    @Test
+    public void csvWithoutTrailingLineBreak() throws IOException {
+        assertEquals(1, mImporter.importCsv(stream("name,breed,gender,weight\r\n\"Toto\",Terrier,1,7")));
+        assertEquals(Arrays.asList("Toto|Terrier|1|7"), readPets());
+    }
+
+    @Test
+    public void raggedCsvRowFails() {
+        assertCsvFails("name,breed,gender,weight\nToto,Terrier,1,7\nRex,Terrier,1\n", "Line 3");
+        assertCsvFails("name,breed,gender,weight\nToto,Terrier,1,7,extra\n", "Line 2");
+        // the comma inside the quotes is not a separator, so this row is one field short
+        assertCsvFails("name,breed,gender,weight\n\"Toto,Terrier\",1,7\n", "Line 2");
+        assertCsvFails("name,breed,gender,weight\nToto,Terrier,one,7\n", "Line 2");
+        assertCsvFails("name,breed,gender,weight\n\"Toto,Terrier,1,7\n", "Unterminated");
+        assertEquals(0, readPets().size());
+    }
+
+    @Test
+    public void jsonSkipsUnknownNamesAndIgnoresIds() throws IOException {
+        String json = "[{\"_id\": 42, \"name\": \"Toto\", \"notes\": {\"walks\": [1, 2]}, " +
+                "\"breed\": null, \"gender\": 1, \"weight\": 7}]";
+        assertEquals(1, mImporter.importJson(stream(json)));
+        assertEquals(Arrays.asList("Toto|null|1|7"), readPets());
+        assertEquals(1, firstId());
+    }
+
+    /**
+     * insert a pet of each awkward name, every third one with no breed and the second with an
+     * empty one, and return them as readPets would
+     */
+    private List<String> insertAwkwardPets() {
+        ContentValues[] values = new ContentValues[AWKWARD_NAMES.length];
+        for (int i = 0; i < values.length; i++) {
+            String breed = i % 3 == 0 ? null : i == 1 ? "" : AWKWARD_NAMES[AWKWARD_NAMES.length - 1 - i];
+            values[i] = pet(AWKWARD_NAMES[i], breed, i % 3, i * 11);
+        }
+        mProvider.bulkInsert(PetEntry.CONTENT_URI, values);
+        return readPets();
+    }
+
+    private void deleteAll() {
+        mProvider.delete(PetEntry.CONTENT_URI, null, null);
+        assertEquals(0, readPets().size());
+    }
+
+    private void assertCsvFails(String csv, String message) {
+        try {
+            mImporter.importCsv(stream(csv));
+            fail("Imported " + csv);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+        }
+    }
+
+    /** every pet in _id order as name|breed|gender|weight */
+    private List<String> readPets() {
+        Cursor cursor = database().query(PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT},
+                null, null, null, null, PetEntry._ID);
+        try {
+            List<String> pets = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                pets.add(cursor.getString(0) + "|" + cursor.getString(1) + "|" + cursor.getInt(2) + "|" + cursor.getInt(3));
+            }
+            return pets;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long firstId() {
+        Cursor cursor = database().query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                null, null, null, null, PetEntry._ID);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private SQLiteDatabase database() {
+        return mProvider.mDbHelper.getReadableDatabase();
+    }
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every way of reaching the newest schema has to end up with the same one: a new install runs
+ * onCreate, an installed app runs onUpgrade from whatever version it had, and each migration
+ * can also be run on its own.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetMigrationTest {
+
+    /** The pets table as version 1 of the app created it */
+    private static final String SQL_CREATE_V1 = "CREATE TABLE pets (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "name TEXT NOT NULL, " +
+            "breed TEXT, " +
+            "gender INTEGER NOT NULL, " +
+            "weight INTEGER NOT NULL DEFAULT 0)";
+
+    /** Pets written to the version 1 database before it is upgraded */
+    private static final int V1_ROWS = 50;
+
+    private Context mContext;
+    private final List<PetDbHelper> mHelpers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        for (PetDbHelper helper : mHelpers) {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersionOneMatchesCreate() {
+        createVersionOne(PetDbHelper.databaseName("upgraded"));
+        SQLiteDatabase upgraded = open("upgraded");
+        SQLiteDatabase created = open("created");
+
+        assertEquals(PetDbHelper.schemaVersion(), upgraded.getVersion());
+        assertEquals(schema(created), schema(upgraded));
+
+        // the steps that build from the pets table have to have picked up the old rows
+        assertEquals(V1_ROWS, count(upgraded, PetEntry.TABLE_NAME));
+        assertEquals(V1_ROWS, count(upgraded, PetEntry.SEARCH_TABLE_NAME));
+        assertEquals(V1_ROWS, count(upgraded, "pet_sync_rows"));
+        assertTrue("stats were not filled from the old rows", PetStats.rebuild(upgraded));
+    }
+
+    @Test
+    public void eachStepOnItsOwnMatchesCreate() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(PetDbHelper.databaseName("stepped"), 0, null);
+        try {
+            db.execSQL(SQL_CREATE_V1);
+            for (int version = 2; version <= PetDbHelper.schemaVersion(); version++) {
+                PetMigration migration = PetDbHelper.getMigration(version);
+                assertEquals(version, migration.getVersion());
+                db.beginTransaction();
+                try {
+                    migration.migrate(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            assertEquals(schema(open("created")), schema(db));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thereIsNoMigrationPastTheSchema() {
+        PetDbHelper.getMigration(PetDbHelper.schemaVersion() + 1);
+    }
+
+    @Test
+    public void hotQueriesUseTheirIndexes() {
+        assertEquals(Collections.<String>emptyList(), PetQueryPlans.verify(open("created")));
+    }
+
+    @Test
+    public void hotQueriesUseTheirIndexesAfterUpgrade() {
+        createVersionOne(PetDbHelper.databaseName("upgraded"));
+        assertEquals(Collections.<String>emptyList(), PetQueryPlans.verify(open("upgraded")));
+    }
+
+    /** the database file as version 1 of the app left it, with a few pets in it */
+    private void createVersionOne(String name) {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, 0, null);
+        try {
+            db.execSQL(SQL_CREATE_V1);
+            for (int i = 0; i < V1_ROWS; i++) {
+                db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (?, ?, ?, ?)",
+                        new Object[]{"Pet " + i, i % 4 == 0 ? null : "Breed " + (i % 3), i % 3, i});
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private SQLiteDatabase open(String tenant) {
+        PetDbHelper helper = new PetDbHelper(mContext, PetDbTuning.DEFAULT, tenant);
+        mHelpers.add(helper);
+        return helper.getWritableDatabase();
+    }
+
+    /** every table, index, trigger and view with the sql that made it, leaving out sqlite's and android's own */
+    private static List<String> schema(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT type, name, tbl_name, sql FROM sqlite_master" +
+                " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'" +
+                " ORDER BY type, name", null);
+        try {
+            List<String> schema = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1) + " on "
+                        + cursor.getString(2) + ": " + cursor.getString(3));
+            }
+            return schema;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Correctness of the provider's writes and queries, run with every unit test run.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetProviderTest {
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void bulkInsertCountsEveryRow() {
+        ContentValues[] values = new ContentValues[250];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pet("Pet " + i, i % 3 == 0 ? null : "Tabby", PetEntry.GENDER_FEMALE, i);
+        }
+        assertEquals(values.length, mProvider.bulkInsert(PetEntry.CONTENT_URI, values));
+        assertEquals(values.length, count());
+    }
+
+    @Test
+    public void bulkInsertWritesNothingWhenARowIsBad() {
+        ContentValues[] values = {
+                pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7),
+                pet("Garfield", "Tabby", PetEntry.GENDER_MALE, -1)};
+        try {
+            mProvider.bulkInsert(PetEntry.CONTENT_URI, values);
+            fail("A negative weight was inserted");
+        } catch (IllegalArgumentException expected) {
+            // the whole batch is refused
+        }
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void insertNotifiesTheRowUri() {
+        mProvider.setNotificationDebounce(0);
+        Uri petUri = mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        assertEquals(1, ContentUris.parseId(petUri));
+        assertEquals(1, notifiedUris().size());
+        assertTrue(notifiedUris().contains(petUri));
+    }
+
+    @Test
+    public void shutdownSendsTheDebouncedNotifications() {
+        mProvider.setNotificationDebounce(60 * 1000);
+        Uri petUri = mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        mProvider.shutdown();
+        assertTrue(notifiedUris().contains(petUri));
+    }
+
+    @Test
+    public void metricsAreRecordedAgainstTheirOwnUri() throws Exception {
+        mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+        batch.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("Rex", null, PetEntry.GENDER_MALE, 9)).build());
+        mProvider.applyBatch(batch);
+        mProvider.query(PetStatsEntry.CONTENT_URI, null, null, null, null).close();
+
+        Bundle metrics = mProvider.call(PetContract.METHOD_GET_METRICS, null, null);
+        // the batch's own insert is recorded as an insert as well as in the batch
+        assertEquals(2, metrics.getLong("insert.pets.count"));
+        assertEquals(1, metrics.getLong("apply_batch.batch.count"));
+        assertEquals(1, metrics.getLong("query.stats.count"));
+        for (String key : metrics.keySet()) {
+            assertFalse(key, key.startsWith("query.batch.") || key.startsWith("insert.batch."));
+        }
+    }
+
+    @Test
+    public void pagesCoverEveryPetOnceInOrder() {
+        // few distinct names and weights, so most of the page boundaries fall inside a run of ties
+        ContentValues[] values = new ContentValues[137];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pet("Pet " + (i % 7), i % 4 == 0 ? null : "Breed " + (i % 3), i % 3, i % 5);
+        }
+        mProvider.bulkInsert(PetEntry.CONTENT_URI, values);
+
+        String[] sortKeys = {PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT};
+        Uri[] filters = {
+                PetEntry.buildFilterUri(null, null, null, null, false),
+                PetEntry.buildFilterUri(null, null, null, null, true),
+                PetEntry.buildFilterUri(PetEntry.GENDER_MALE, null, null, null, false),
+                PetEntry.buildFilterUri(null, "Breed 1", null, null, true),
+                PetEntry.buildFilterUri(null, null, 1, 3, false)};
+        for (Uri filter : filters) {
+            for (String sortKey : sortKeys) {
+                String shape = filter + " by " + sortKey;
+                assertEquals(shape, expectedIds(filter, sortKey), pagedIds(filter, sortKey, 10));
+            }
+        }
+    }
+
+    @Test
+    public void recordWritesOnlyTheMaskedColumns() {
+        PetRecord record = new PetRecord().set("Toto", null, PetEntry.GENDER_MALE, 7);
+        long id = mProvider.insert(record);
+        assertEquals(id, record.id);
+
+        record.set("Ignored", "Ignored", PetEntry.GENDER_FEMALE, 9);
+        assertEquals(1, mProvider.update(record, PetRecord.WEIGHT | PetRecord.BREED));
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                new String[]{PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                        PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Toto", cursor.getString(0));
+            assertEquals("Ignored", cursor.getString(1));
+            assertEquals(PetEntry.GENDER_MALE, cursor.getInt(2));
+            assertEquals(9, cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+
+        record.id = id + 1;
+        assertEquals(0, mProvider.update(record));
+    }
+
+    @Test
+    public void photoDeletedInAFailedBatchIsKept() throws Exception {
+        Uri toto = mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        long id = ContentUris.parseId(toto);
+        File photo = new File(new File(RuntimeEnvironment.application.getFilesDir(), "photos"), id + "_photo.jpg");
+        assertTrue(photo.getParentFile().isDirectory() || photo.getParentFile().mkdirs());
+        assertTrue(photo.createNewFile());
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_PHOTO, photo.getName());
+        mProvider.mDbHelper.getWritableDatabase().update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = " + id, null);
+
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+        batch.add(ContentProviderOperation.newDelete(PetEntry.buildPhotoUri(id)).build());
+        batch.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("Rex", null, PetEntry.GENDER_MALE, -1)).build());
+        try {
+            mProvider.applyBatch(batch);
+            fail("A negative weight was inserted");
+        } catch (IllegalArgumentException expected) {
+            // the photo delete is rolled back with the rest of the batch
+        }
+        assertTrue("The photo the pet still points at was deleted", photo.exists());
+        assertEquals(photo.getName(), photoName(toto));
+
+        batch.remove(1);
+        mProvider.applyBatch(batch);
+        assertFalse(photo.exists());
+        assertEquals(null, photoName(toto));
+    }
+
+    @Test
+    public void recordWritesNotifyTheRowUri() {
+        mProvider.setNotificationDebounce(0);
+        PetRecord record = new PetRecord().set("Toto", null, PetEntry.GENDER_MALE, 7);
+        Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, mProvider.insert(record));
+        assertEquals(Arrays.asList(petUri), notifiedUris());
+
+        record.weight = 8;
+        mProvider.update(record, PetRecord.WEIGHT);
+        assertEquals(Arrays.asList(petUri, petUri), notifiedUris());
+    }
+
+    @Test
+    public void recordWritesRunBesideATransaction() throws InterruptedException {
+        final int writes = 200;
+        // each thread writes through its own statements, so neither waits on the other's
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PetRecord record = new PetRecord();
+                for (int i = 0; i < writes; i++) {
+                    mProvider.insert(record.set("Outside " + i, null, PetEntry.GENDER_MALE, i));
+                }
+            }
+        });
+        writer.start();
+        mProvider.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                PetRecord record = new PetRecord();
+                for (int i = 0; i < writes; i++) {
+                    mProvider.insert(record.set("Inside " + i, null, PetEntry.GENDER_FEMALE, i));
+                }
+            }
+        });
+        writer.join(10 * 1000);
+        assertFalse("The writer is stuck behind the transaction", writer.isAlive());
+        assertEquals(2 * writes, count());
+    }
+
+    @Test
+    public void tenantsOnlySeeTheirOwnPets() {
+        Uri clinic = PetEntry.buildTenantUri(PetEntry.CONTENT_URI, "clinic_a");
+        Uri petUri = mProvider.insert(clinic, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        mProvider.insert(PetEntry.CONTENT_URI, pet("Rex", null, PetEntry.GENDER_MALE, 9));
+        mProvider.insert(PetEntry.CONTENT_URI, pet("Tom", null, PetEntry.GENDER_MALE, 4));
+
+        assertEquals("clinic_a", petUri.getQueryParameter(PetEntry.QUERY_PARAM_TENANT));
+        assertEquals(2, count());
+        assertEquals(1, count(clinic));
+        assertEquals(Arrays.asList("clinic_a"), mProvider.call(PetContract.METHOD_GET_TENANTS, null, null)
+                .getStringArrayList(PetContract.KEY_TENANTS));
+
+        Cursor cursor = mProvider.query(PetStatsEntry.buildAllTenantsUri(PetStatsEntry.CONTENT_URI),
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getLong(cursor.getColumnIndexOrThrow(PetStatsEntry.COLUMN_COUNT)));
+        } finally {
+            cursor.close();
+        }
+
+        try {
+            mProvider.insert(PetEntry.buildTenantUri(PetEntry.CONTENT_URI, "../clinic"),
+                    pet("Toto", null, PetEntry.GENDER_MALE, 7));
+            fail("A tenant that is not a file name was accepted");
+        } catch (IllegalArgumentException expected) {
+            // the tenant names a file
+        }
+    }
+
+    @Test
+    public void onePetQueryOnlyTakesTheContractSortOrders() {
+        Uri toto = mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        Cursor cursor = mProvider.query(toto, null, null, null, PetEntry.SORT_BY_NAME);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        try {
+            mProvider.query(toto, null, null, null, PetEntry.COLUMN_PET_NAME + ", (SELECT 1)");
+            fail("A sort order that is not in the contract was run");
+        } catch (IllegalArgumentException expected) {
+            // the same orders as the list queries
+        }
+    }
+
+    @Test
+    public void recordWritesGoToTheirTenant() {
+        final String tenant = "clinic_a";
+        final PetRecord toto = new PetRecord();
+        mProvider.runInTransaction(tenant, new Runnable() {
+            @Override
+            public void run() {
+                mProvider.insert(tenant, toto.set("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+                mProvider.insert(tenant, new PetRecord().set("Rex", null, PetEntry.GENDER_MALE, 9));
+                toto.weight = 8;
+                assertEquals(1, mProvider.update(tenant, toto, PetRecord.WEIGHT));
+            }
+        });
+        Uri clinic = PetEntry.buildTenantUri(PetEntry.CONTENT_URI, tenant);
+        assertEquals(0, count());
+        assertEquals(2, count(clinic));
+
+        // the pet with the same id in the default database is a different pet
+        mProvider.insert(new PetRecord().set("Tom", null, PetEntry.GENDER_MALE, 4));
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(clinic, toto.id),
+                new String[]{PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Toto", cursor.getString(0));
+            assertEquals(8, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void changesFollowTheWrites() {
+        Uri toto = mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7));
+        ContentValues weight = new ContentValues();
+        weight.put(PetEntry.COLUMN_PET_WEIGHT, 8);
+        mProvider.update(toto, weight, null, null);
+        mProvider.delete(toto, null, null);
+
+        Cursor cursor = mProvider.query(PetChangeEntry.buildChangesUri(0, 10), null, null, null, null);
+        try {
+            int op = cursor.getColumnIndexOrThrow(PetChangeEntry.COLUMN_OP);
+            int id = cursor.getColumnIndexOrThrow(PetChangeEntry._ID);
+            List<Integer> ops = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                assertEquals(ContentUris.parseId(toto), cursor.getLong(id));
+                ops.add(cursor.getInt(op));
+            }
+            assertEquals(Arrays.asList(PetChangeEntry.OP_INSERT, PetChangeEntry.OP_UPDATE,
+                    PetChangeEntry.OP_DELETE), ops);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** the ids of the filter uri read a page at a time the way the catalog's page loader does */
+    private List<Long> pagedIds(Uri filter, String sortKey, int pageSize) {
+        List<Long> ids = new ArrayList<>();
+        Uri uri = PetEntry.buildFirstPageUri(filter, pageSize, sortKey);
+        while (true) {
+            Cursor cursor = mProvider.query(uri, new String[]{PetEntry._ID, sortKey}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) return ids;
+                do {
+                    ids.add(cursor.getLong(0));
+                } while (cursor.moveToNext());
+                cursor.moveToLast();
+                uri = PetEntry.buildNextPageUri(filter, pageSize, sortKey, cursor.getString(1), cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /** the ids of the filter uri in one plain query of the same order */
+    private List<Long> expectedIds(Uri filter, String sortKey) {
+        List<String> where = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+        addCondition(where, args, PetEntry.COLUMN_PET_GENDER + " = ?", filter.getQueryParameter(PetEntry.QUERY_PARAM_GENDER));
+        addCondition(where, args, PetEntry.COLUMN_PET_BREED + " = ?", filter.getQueryParameter(PetEntry.QUERY_PARAM_BREED));
+        addCondition(where, args, PetEntry.COLUMN_PET_WEIGHT + " >= ?", filter.getQueryParameter(PetEntry.QUERY_PARAM_MIN_WEIGHT));
+        addCondition(where, args, PetEntry.COLUMN_PET_WEIGHT + " <= ?", filter.getQueryParameter(PetEntry.QUERY_PARAM_MAX_WEIGHT));
+        String direction = filter.getBooleanQueryParameter(PetEntry.QUERY_PARAM_DESCENDING, false) ? " DESC" : "";
+        Cursor cursor = mProvider.mDbHelper.getReadableDatabase().query(PetEntry.TABLE_NAME,
+                new String[]{PetEntry._ID}, where.isEmpty() ? null : TextUtils.join(" AND ", where),
+                args.toArray(new String[args.size()]), null, null,
+                sortKey + direction + ", " + PetEntry._ID + direction);
+        try {
+            List<Long> ids = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addCondition(List<String> where, List<String> args, String condition, String arg) {
+        if (arg == null) return;
+        where.add(condition);
+        args.add(arg);
+    }
+
+    static ContentValues pet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+
+    private int count() {
+        return count(PetEntry.CONTENT_URI);
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mProvider.query(uri, new String[]{PetEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** every uri notified through the application's resolver so far, in order */
+    private String photoName(Uri pet) {
+        Cursor cursor = mProvider.query(pet, new String[]{PetEntry.COLUMN_PET_PHOTO}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static List<Uri> notifiedUris() {
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        List<Uri> uris = new ArrayList<>();
+        for (ShadowContentResolver.NotifiedUri notified : shadowOf(resolver).getNotifiedUris()) {
+            uris.add(notified.uri);
+        }
+        return uris;
+    }
+}
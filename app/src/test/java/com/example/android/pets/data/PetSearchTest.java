@@ -0,0 +1,144 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.android.pets.data.PetProviderTest.pet;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The full text search of the pets, and the triggers that keep its index in step with the table.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetSearchTest {
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void termsDropQuotesAndOperators() {
+        assertArrayEquals(new String[]{"toto"}, PetProvider.toSearchTerms("\"toto\""));
+        assertArrayEquals(new String[]{"to"}, PetProvider.toSearchTerms("to*"));
+        assertArrayEquals(new String[]{"toto"}, PetProvider.toSearchTerms("-toto"));
+        assertArrayEquals(new String[]{"name", "toto"}, PetProvider.toSearchTerms("name:toto"));
+        assertArrayEquals(new String[]{"toto", "or", "rex"}, PetProvider.toSearchTerms("toto OR rex"));
+        assertArrayEquals(new String[]{"not", "near", "3", "and"}, PetProvider.toSearchTerms("(NOT NEAR/3 AND)"));
+        // operators only count in capitals, other words keep their case
+        assertArrayEquals(new String[]{"Or", "Rex"}, PetProvider.toSearchTerms("Or Rex"));
+        assertEquals(0, PetProvider.toSearchTerms("  *\"()-  ").length);
+        assertEquals(0, PetProvider.toSearchTerms(null).length);
+    }
+
+    @Test
+    public void everyWordMatchesAsAPrefix() {
+        insert("Toto", "Cairn Terrier");
+        insert("Tom", "Tabby");
+        insert("Rex", "Terrier");
+
+        assertEquals(Arrays.asList("Tom", "Toto"), search("to"));
+        assertEquals(Arrays.asList("Toto"), search("tot"));
+        // every word has to match, in the name or the breed
+        assertEquals(Arrays.asList("Toto"), search("to ter"));
+        assertEquals(Arrays.asList("Rex", "Toto"), search("TERR"));
+        assertEquals(new ArrayList<String>(), search("terriers"));
+    }
+
+    @Test
+    public void operatorsAreSearchedForAsWords() {
+        insert("Toto", "Terrier");
+        insert("Orla", "Tabby");
+
+        // as an operator OR would have matched both
+        assertEquals(new ArrayList<String>(), search("Toto OR Tabby"));
+        assertEquals(Arrays.asList("Orla"), search("OR"));
+        // and as NOT the minus would have left Toto out
+        assertEquals(Arrays.asList("Toto"), search("-Toto"));
+        assertEquals(Arrays.asList("Toto"), search("\"Toto"));
+    }
+
+    @Test
+    public void nameMatchesComeBeforeBreedMatches() {
+        insert("Bella", "Boxer");
+        insert("Alfie", "Boxer");
+        insert("Boxer", null);
+
+        assertEquals(Arrays.asList("Boxer", "Alfie", "Bella"), search("box"));
+    }
+
+    @Test
+    public void updatesAndDeletesReachTheIndex() {
+        Uri toto = insert("Toto", "Terrier");
+        Uri rex = insert("Rex", "Terrier");
+
+        ContentValues rename = new ContentValues();
+        rename.put(PetEntry.COLUMN_PET_NAME, "Dorothy");
+        assertEquals(1, mProvider.update(toto, rename, null, null));
+        assertEquals(new ArrayList<String>(), search("toto"));
+        assertEquals(Arrays.asList("Dorothy"), search("doro"));
+
+        ContentValues breed = new ContentValues();
+        breed.putNull(PetEntry.COLUMN_PET_BREED);
+        assertEquals(1, mProvider.update(rex, breed, null, null));
+        assertEquals(Arrays.asList("Dorothy"), search("terrier"));
+
+        // a write that leaves the searched columns alone keeps the pet findable
+        ContentValues weight = new ContentValues();
+        weight.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+        assertEquals(1, mProvider.update(rex, weight, null, null));
+        assertEquals(Arrays.asList("Rex"), search("rex"));
+
+        assertEquals(1, mProvider.delete(toto, null, null));
+        assertEquals(new ArrayList<String>(), search("doro"));
+        assertEquals(new ArrayList<String>(), search("terrier"));
+    }
+
+    private Uri insert(String name, String breed) {
+        Uri uri = mProvider.insert(PetEntry.CONTENT_URI, pet(name, breed, PetEntry.GENDER_UNKNOWN, 5));
+        // the ids are only checked so a failed insert shows up here rather than in a search
+        ContentUris.parseId(uri);
+        return uri;
+    }
+
+    /** the names the search finds, in result order */
+    private List<String> search(String query) {
+        Cursor cursor = mProvider.query(PetEntry.buildSearchUri(query, 50),
+                new String[]{PetEntry.COLUMN_PET_NAME}, null, null, null);
+        try {
+            List<String> names = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+}
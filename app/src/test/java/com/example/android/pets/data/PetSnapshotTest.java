@@ -0,0 +1,309 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.example.android.pets.data.PetProviderTest.pet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link PetSnapshot} restores exactly what it saved, and refuses a file that is not what it
+ * wrote without touching the pets there are.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetSnapshotTest {
+
+    /** Over two blocks' worth, so the breed dictionary is carried from one block to the next */
+    private static final int ROWS = 10000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Byte offset of the version byte, right after the magic */
+    private static final int VERSION_OFFSET = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private PetProvider mProvider;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        mDatabase = mProvider.mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void restoresWhatWasSaved() throws IOException {
+        fill();
+        List<String> saved = readPets();
+        File file = mFolder.newFile("pets.snapshot");
+        assertEquals(saved.size(), PetSnapshot.write(mDatabase, file));
+
+        // change the table so the restore has something to undo
+        mDatabase.delete(PetEntry.TABLE_NAME, PetEntry._ID + " % 3 = 0", null);
+        mProvider.insert(PetEntry.CONTENT_URI, pet("After the snapshot", null, PetEntry.GENDER_MALE, 1));
+
+        assertEquals(saved.size(), PetSnapshot.restore(mDatabase, file));
+        assertEquals(saved, readPets());
+    }
+
+    @Test
+    public void restoresAnEmptyTable() throws IOException {
+        File file = mFolder.newFile("empty.snapshot");
+        assertEquals(0, PetSnapshot.write(mDatabase, file));
+        mProvider.insert(PetEntry.CONTENT_URI, pet("Toto", null, PetEntry.GENDER_MALE, 1));
+        assertEquals(0, PetSnapshot.restore(mDatabase, file));
+        assertEquals(0, readPets().size());
+    }
+
+    @Test
+    public void versionOneKeepsThePhotosThereAre() throws IOException {
+        for (int i = 1; i <= 4; i++) {
+            mProvider.insert(PetEntry.CONTENT_URI, pet("Pet " + i, null, PetEntry.GENDER_MALE, i));
+        }
+        setPhoto(1, "1_a.jpg");
+        setPhoto(3, "3_b.jpg");
+        setPhoto(4, "4_c.jpg");
+
+        // a version 1 file has no photo column, and pet 4 is not in it
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(0x50455453);
+        out.writeByte(1);
+        out.write(new byte[]{3, 1, 6});
+        out.write("Terrier".getBytes(UTF_8));
+        out.write(new byte[]{1, 1, 1});
+        for (String name : new String[]{"Toto", "Rex", "Tom"}) {
+            out.writeByte(name.length());
+            out.write(name.getBytes(UTF_8));
+        }
+        out.write(new byte[]{1, 0, 1});
+        out.write(new byte[]{PetEntry.GENDER_MALE, PetEntry.GENDER_MALE, PetEntry.GENDER_FEMALE});
+        out.write(new byte[]{7, 9, 4});
+        out.writeByte(0);
+
+        assertEquals(3, PetSnapshot.restore(mDatabase, write(withChecksum(file.toByteArray()))));
+        assertEquals(Arrays.asList(
+                "1|Toto|Terrier|1|7|1_a.jpg",
+                "2|Rex|null|1|9|null",
+                "3|Tom|Terrier|2|4|3_b.jpg"), readPets());
+    }
+
+    @Test
+    public void refusesAChangedByte() throws IOException {
+        byte[] bytes = savedBytes();
+        bytes[bytes.length / 2] ^= 0x10;
+        assertRefused(bytes, "checksum");
+    }
+
+    @Test
+    public void refusesATruncatedFile() throws IOException {
+        byte[] bytes = savedBytes();
+        assertRefused(Arrays.copyOf(bytes, bytes.length / 2), "checksum");
+        assertRefused(Arrays.copyOf(bytes, 6), "short");
+        // cut inside a block but with a checksum that matches, as a buggy writer would leave it
+        assertRefused(withChecksum(Arrays.copyOf(bytes, bytes.length / 2)), "ends inside a block");
+    }
+
+    @Test
+    public void refusesAnUnknownVersion() throws IOException {
+        byte[] bytes = savedBytes();
+        bytes[VERSION_OFFSET] = 99;
+        assertRefused(withChecksum(Arrays.copyOf(bytes, bytes.length - 4)), "version 99");
+    }
+
+    @Test
+    public void refusesAnotherFile() throws IOException {
+        byte[] bytes = savedBytes();
+        bytes[0] = 'X';
+        assertRefused(withChecksum(Arrays.copyOf(bytes, bytes.length - 4)), "Not a pets snapshot");
+    }
+
+    /**
+     * The snapshot has to save and restore at least 5x faster than exporting and importing csv.
+     * Only run with the benchmarks, on 100k rows or 1M with -Ppets.benchmark.full.
+     */
+    @Test
+    public void fasterThanCsv() throws IOException {
+        assumeTrue(Boolean.getBoolean("pets.benchmark"));
+        int rows = Boolean.getBoolean("pets.benchmark.full") ? 1000000 : 100000;
+        PetGenerator generator = new PetGenerator(42);
+        ContentValues[] chunk = new ContentValues[PetImporter.CHUNK_SIZE];
+        for (int filled = 0; filled < rows; filled += chunk.length) {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = generator.next();
+            }
+            mProvider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+        }
+
+        File csv = mFolder.newFile("pets.csv");
+        long start = System.nanoTime();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), UTF_8));
+        try {
+            new PetExporter(mDatabase).writeCsv(writer);
+        } finally {
+            writer.close();
+        }
+        long csvSave = System.nanoTime() - start;
+
+        mDatabase.delete(PetEntry.TABLE_NAME, null, null);
+        start = System.nanoTime();
+        InputStream in = new BufferedInputStream(new FileInputStream(csv));
+        try {
+            new PetImporter(RuntimeEnvironment.application.getContentResolver(), null).importCsv(in);
+        } finally {
+            in.close();
+        }
+        long csvRestore = System.nanoTime() - start;
+
+        File snapshot = mFolder.newFile("pets.snapshot");
+        start = System.nanoTime();
+        PetSnapshot.write(mDatabase, snapshot);
+        long snapshotSave = System.nanoTime() - start;
+        start = System.nanoTime();
+        PetSnapshot.restore(mDatabase, snapshot);
+        long snapshotRestore = System.nanoTime() - start;
+
+        String times = String.format("%d rows: csv %d+%dms, snapshot %d+%dms", rows,
+                csvSave / 1000000, csvRestore / 1000000, snapshotSave / 1000000, snapshotRestore / 1000000);
+        assertTrue("save under 5x faster, " + times, csvSave >= 5 * snapshotSave);
+        assertTrue("restore under 5x faster, " + times, csvRestore >= 5 * snapshotRestore);
+    }
+
+    /**
+     * ROWS pets with gaps in the _ids, pets with no breed, and breeds that are only first used
+     * after the first block
+     */
+    private void fill() {
+        PetGenerator generator = new PetGenerator(7);
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = generator.next();
+            if (i % 11 == 0) values[i].putNull(PetEntry.COLUMN_PET_BREED);
+            if (i > ROWS / 2 && i % 5 == 0) values[i].put(PetEntry.COLUMN_PET_BREED, "Late breed " + (i % 40));
+            if (i % 13 == 0) values[i].put(PetEntry.COLUMN_PET_NAME, "Zoë 🐶 " + i);
+        }
+        mProvider.bulkInsert(PetEntry.CONTENT_URI, values);
+        mDatabase.delete(PetEntry.TABLE_NAME, PetEntry._ID + " % 17 = 0", null);
+        mDatabase.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_PHOTO + " = "
+                + PetEntry._ID + " || '_photo.jpg' WHERE " + PetEntry._ID + " % 7 = 0");
+    }
+
+    private void setPhoto(long id, String photo) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_PHOTO, photo);
+        assertEquals(1, mDatabase.update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = " + id, null));
+    }
+
+    /** the bytes of a snapshot of a filled table */
+    private byte[] savedBytes() throws IOException {
+        fill();
+        File file = mFolder.newFile();
+        PetSnapshot.write(mDatabase, file);
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /** the bytes followed by their crc32, as the writer ends a file */
+    private static byte[] withChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        int value = (int) crc.getValue();
+        byte[] file = Arrays.copyOf(bytes, bytes.length + 4);
+        for (int i = 0; i < 4; i++) {
+            file[bytes.length + i] = (byte) (value >>> (24 - 8 * i));
+        }
+        return file;
+    }
+
+    /** restoring the bytes fails with the message and leaves the pets as they were */
+    private void assertRefused(byte[] bytes, String message) throws IOException {
+        List<String> before = readPets();
+        File file = write(bytes);
+        try {
+            PetSnapshot.restore(mDatabase, file);
+            fail("Restored a bad snapshot, expected " + message);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+        }
+        assertEquals(before, readPets());
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /** every pet in _id order with every column */
+    private List<String> readPets() {
+        Cursor cursor = mDatabase.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+                        PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT,
+                        PetEntry.COLUMN_PET_PHOTO},
+                null, null, null, null, PetEntry._ID);
+        try {
+            List<String> pets = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                pets.add(cursor.getLong(0) + "|" + cursor.getString(1) + "|" + cursor.getString(2)
+                        + "|" + cursor.getInt(3) + "|" + cursor.getInt(4) + "|" + cursor.getString(5));
+            }
+            return pets;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.example.android.pets.data.PetProviderTest.pet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sync against {@link PetSyncTestServer}: the newest write of a pet wins on both sides, the
+ * device breaks a tie, deletes travel as tombstones, a write made during an upload is not lost,
+ * a sync cut off part way carries on where it stopped and a restored snapshot is not taken for
+ * new writes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class PetSyncTest {
+
+    /** Sync tables, private to PetSyncStore */
+    private static final String ROWS = "pet_sync_rows";
+
+    /** Devices that sort before and after any device id, which are uuids */
+    private static final String FIRST_DEVICE = "!first";
+    private static final String LAST_DEVICE = "~last";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private PetProvider mProvider;
+    private SQLiteDatabase mDatabase;
+    private PetSyncTestServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mProvider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        mDatabase = mProvider.mDbHelper.getWritableDatabase();
+        mServer = PetSyncTestServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mProvider.shutdown();
+    }
+
+    @Test
+    public void newerRemoteWriteWins() {
+        Uri toto = insert("Toto", 7);
+        sync();
+        String syncId = syncId(toto);
+
+        // written on another device after the write here
+        mServer.write(syncId, modified(toto) + 60 * 1000, LAST_DEVICE, "Toto", "Terrier", PetEntry.GENDER_MALE, 8);
+        assertEquals(1, sync().getInt(PetContract.KEY_SYNC_DOWNLOADED));
+        assertEquals(8, weight(toto));
+        assertFalse(isDirty(toto));
+    }
+
+    @Test
+    public void newerLocalWriteWins() {
+        Uri toto = insert("Toto", 7);
+        sync();
+        String syncId = syncId(toto);
+
+        setWeight(toto, 9);
+        // written on another device before the write here, and not yet seen by this one
+        mServer.write(syncId, modified(toto) - 1, LAST_DEVICE, "Toto", "Terrier", PetEntry.GENDER_MALE, 8);
+        sync();
+        assertEquals(9, weight(toto));
+        assertEquals(9, mServer.get(syncId).weight);
+        assertEquals(device(), mServer.get(syncId).device);
+    }
+
+    @Test
+    public void sameMillisecondGoesToTheDeviceThatSortsLast() {
+        Uri toto = insert("Toto", 7);
+        Uri rex = insert("Rex", 7);
+        sync();
+        setWeight(toto, 9);
+        setWeight(rex, 9);
+
+        // both pets written in the same ms elsewhere, once by a device sorting after this one
+        // and once by one sorting before it
+        mServer.write(syncId(toto), modified(toto), LAST_DEVICE, "Toto", null, PetEntry.GENDER_MALE, 8);
+        mServer.write(syncId(rex), modified(rex), FIRST_DEVICE, "Rex", null, PetEntry.GENDER_MALE, 8);
+        sync();
+
+        assertEquals(8, weight(toto));
+        assertEquals(LAST_DEVICE, mServer.get(syncId(toto)).device);
+        assertEquals(9, weight(rex));
+        assertEquals(device(), mServer.get(syncId(rex)).device);
+    }
+
+    @Test
+    public void localDeleteIsUploadedAsATombstone() {
+        Uri toto = insert("Toto", 7);
+        sync();
+        String syncId = syncId(toto);
+
+        assertEquals(1, mProvider.delete(toto, null, null));
+        // the tombstone stays until the registry has it
+        assertTrue(isDirty(toto));
+        assertEquals(1, sync().getInt(PetContract.KEY_SYNC_UPLOADED));
+        assertTrue(mServer.get(syncId).deleted);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, ROWS));
+    }
+
+    @Test
+    public void remoteDeleteRemovesThePet() {
+        Uri toto = insert("Toto", 7);
+        sync();
+        String syncId = syncId(toto);
+
+        mServer.delete(syncId, modified(toto) + 1, LAST_DEVICE);
+        sync();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, PetEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, ROWS));
+
+        // and a delete that lost to a newer write here leaves the pet alone
+        Uri rex = insert("Rex", 7);
+        sync();
+        setWeight(rex, 9);
+        mServer.delete(syncId(rex), modified(rex) - 1, LAST_DEVICE);
+        sync();
+        assertEquals(9, weight(rex));
+        assertFalse(mServer.get(syncId(rex)).deleted);
+    }
+
+    @Test
+    public void writeDuringUploadIsSentAgain() {
+        final Uri toto = insert("Toto", 7);
+        mServer.setOnReceive(new Runnable() {
+            @Override
+            public void run() {
+                setWeight(toto, 99);
+            }
+        });
+
+        // the write bumped the version that was sent, so the upload did not mark the pet clean
+        // and it went again in the same sync
+        assertEquals(2, sync().getInt(PetContract.KEY_SYNC_UPLOADED));
+        assertEquals(99, mServer.get(syncId(toto)).weight);
+        assertFalse(isDirty(toto));
+    }
+
+    @Test
+    public void failedDownloadCarriesOnFromTheLastPage() {
+        mServer.seed(25, new PetGenerator(1));
+        mProvider.setSyncBatchSize(10);
+        mServer.failDownloadsAfter(2);
+        try {
+            sync();
+            fail("The sync did not see the failed download");
+        } catch (IllegalStateException expected) {
+            // the first two pages were applied and their cursor kept
+        }
+        assertEquals(20, DatabaseUtils.queryNumEntries(mDatabase, PetEntry.TABLE_NAME));
+        assertEquals("20", PetSyncStore.getCursor(mDatabase, mServer.getUrl()));
+
+        mServer.failDownloadsAfter(-1);
+        assertEquals(5, sync().getInt(PetContract.KEY_SYNC_DOWNLOADED));
+        assertEquals(25, DatabaseUtils.queryNumEntries(mDatabase, PetEntry.TABLE_NAME));
+        assertEquals(Arrays.asList(null, "10", "20", "20"), mServer.getRequestedCursors());
+    }
+
+    @Test
+    public void restoredPetsKeepTheirSyncState() throws IOException {
+        Uri toto = insert("Toto", 7);
+        Uri rex = insert("Rex", 7);
+        Uri tom = insert("Tom", 7);
+        sync();
+        long totoModified = modified(toto);
+        File file = mFolder.newFile("pets.snapshot");
+        mProvider.call(PetContract.METHOD_SAVE_SNAPSHOT, file.getAbsolutePath(), null);
+
+        // after the snapshot Toto is written elsewhere and Rex here, Tom is left alone
+        mServer.write(syncId(toto), totoModified + 60 * 1000, LAST_DEVICE, "Toto", "Terrier", PetEntry.GENDER_MALE, 8);
+        setWeight(rex, 9);
+        sync();
+        assertEquals(8, weight(toto));
+
+        mProvider.call(PetContract.METHOD_RESTORE_SNAPSHOT, file.getAbsolutePath(), null);
+        assertEquals(7, weight(toto));
+        assertEquals(totoModified, modified(toto));
+        assertFalse(isDirty(tom));
+        // written since, so they go again with their old times
+        assertTrue(isDirty(toto));
+        assertTrue(isDirty(rex));
+
+        assertEquals(2, sync().getInt(PetContract.KEY_SYNC_UPLOADED));
+        // the registry's newer write of Toto wins and comes back down, the rollback of Rex here
+        // is this device's latest write of it
+        assertEquals(8, weight(toto));
+        assertEquals(LAST_DEVICE, mServer.get(syncId(toto)).device);
+        assertEquals(7, weight(rex));
+        assertEquals(7, mServer.get(syncId(rex)).weight);
+        assertFalse(isDirty(toto));
+    }
+
+    private Bundle sync() {
+        return mProvider.call(PetContract.METHOD_SYNC, mServer.getUrl(), null);
+    }
+
+    private Uri insert(String name, int weight) {
+        return mProvider.insert(PetEntry.CONTENT_URI, pet(name, "Terrier", PetEntry.GENDER_MALE, weight));
+    }
+
+    private void setWeight(Uri pet, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        assertEquals(1, mProvider.update(pet, values, null, null));
+    }
+
+    private int weight(Uri pet) {
+        Cursor cursor = mProvider.query(pet, new String[]{PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        try {
+            assertTrue("No pet " + pet, cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String device() {
+        return PetSyncStore.deviceId(mDatabase);
+    }
+
+    private String syncId(Uri pet) {
+        return syncRow(pet, "sync_id");
+    }
+
+    /** when the pet was last written, here or on the device it came from */
+    private long modified(Uri pet) {
+        return Long.parseLong(syncRow(pet, "modified"));
+    }
+
+    private boolean isDirty(Uri pet) {
+        return "1".equals(syncRow(pet, "dirty"));
+    }
+
+    private String syncRow(Uri pet, String column) {
+        Cursor cursor = mDatabase.query(ROWS, new String[]{column}, "_id = ?",
+                new String[]{String.valueOf(ContentUris.parseId(pet))}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the clinic registry on a local port, speaking the protocol described in
+ * PetSyncClient. It keeps the newest write of every pet by the same last writer wins rule as the
+ * devices, and a feed of every write it accepted whose cursor is simply a position in the feed.
+ *
+ * The sync tests can also write pets as another device would, look at what the registry holds,
+ * run a hook while an upload is in flight and make the downloads fail part way.
+ */
+public class PetSyncTestServer {
+
+    /** The device the seeded changes come from */
+    static final String SEED_DEVICE = "registry-seed";
+
+    private final HttpServer mServer;
+
+    /** guarded by this */
+    private final Map<String, Change> mLatest = new HashMap<>();
+    private final List<Change> mFeed = new ArrayList<>();
+    private final List<String> mRequestedCursors = new ArrayList<>();
+    private Runnable mOnReceive;
+    private int mDownloadsBeforeFailure = -1;
+
+    public static PetSyncTestServer start() throws IOException {
+        return new PetSyncTestServer();
+    }
+
+    private PetSyncTestServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/pets/changes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if ("POST".equals(exchange.getRequestMethod())) {
+                        receive(exchange);
+                    } else {
+                        send(exchange);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    public String getUrl() {
+        return "http://" + mServer.getAddress().getHostString() + ":" + mServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    /** Number of pets the registry holds, deleted ones included */
+    public synchronized int size() {
+        return mLatest.size();
+    }
+
+    /** Add new pets written on another device */
+    public synchronized void seed(int rows, PetGenerator generator) {
+        long modified = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            ContentValues values = generator.next();
+            Change change = new Change();
+            change.id = UUID.randomUUID().toString();
+            change.modified = modified;
+            change.device = SEED_DEVICE;
+            change.name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            change.breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+            change.gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            change.weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            merge(change);
+        }
+    }
+
+    /** A write of the pet made on another device at the time given */
+    synchronized void write(String id, long modified, String device, String name, String breed, int gender, int weight) {
+        Change change = new Change();
+        change.id = id;
+        change.modified = modified;
+        change.device = device;
+        change.name = name;
+        change.breed = breed;
+        change.gender = gender;
+        change.weight = weight;
+        merge(change);
+    }
+
+    /** A delete of the pet made on another device at the time given */
+    synchronized void delete(String id, long modified, String device) {
+        Change change = new Change();
+        change.id = id;
+        change.modified = modified;
+        change.device = device;
+        change.deleted = true;
+        merge(change);
+    }
+
+    /** The newest write of the pet the registry holds, null if it has none */
+    synchronized Change get(String id) {
+        return mLatest.get(id);
+    }
+
+    /** Run the hook once, after the next upload has been read and before it is merged and answered */
+    synchronized void setOnReceive(Runnable hook) {
+        mOnReceive = hook;
+    }
+
+    /** Answer this many more downloads and fail every one after them, -1 never fails */
+    synchronized void failDownloadsAfter(int downloads) {
+        mDownloadsBeforeFailure = downloads;
+    }
+
+    /** The cursor each download asked from, null for the first page */
+    synchronized List<String> getRequestedCursors() {
+        return new ArrayList<>(mRequestedCursors);
+    }
+
+    private void receive(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        List<Change> changes = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("changes")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        changes.add(readChange(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        Runnable hook;
+        synchronized (this) {
+            hook = mOnReceive;
+            mOnReceive = null;
+        }
+        // outside the lock, the hook may well be waiting on the database
+        if (hook != null) hook.run();
+        synchronized (this) {
+            for (Change change : changes) {
+                merge(change);
+            }
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void send(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI());
+        int cursor = query.containsKey("cursor") ? Integer.parseInt(query.get("cursor")) : 0;
+        int limit = Integer.parseInt(query.get("limit"));
+        String device = query.get("device");
+        List<Change> page = new ArrayList<>();
+        synchronized (this) {
+            mRequestedCursors.add(query.get("cursor"));
+            if (mDownloadsBeforeFailure == 0) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            if (mDownloadsBeforeFailure > 0) mDownloadsBeforeFailure--;
+            while (cursor < mFeed.size() && page.size() < limit) {
+                Change change = mFeed.get(cursor++);
+                if (!change.device.equals(device)) page.add(change);
+            }
+        }
+
+        boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        if (gzip) out = new GZIPOutputStream(out);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        try {
+            writer.beginObject();
+            writer.name("cursor").value(String.valueOf(cursor));
+            writer.name("changes").beginArray();
+            for (Change change : page) {
+                writeChange(writer, change);
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** keep the change if it is the newest write of its pet, and add it to the feed */
+    private void merge(Change change) {
+        Change latest = mLatest.get(change.id);
+        if (latest != null && !change.winsOver(latest)) return;
+        mLatest.put(change.id, change);
+        mFeed.add(change);
+    }
+
+    private static Map<String, String> parseQuery(URI uri) {
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() == null) return query;
+        for (String pair : uri.getRawQuery().split("&")) {
+            int equals = pair.indexOf('=');
+            query.put(pair.substring(0, equals), pair.substring(equals + 1));
+        }
+        return query;
+    }
+
+    private static Change readChange(JsonReader reader) throws IOException {
+        Change change = new Change();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("id")) {
+                change.id = reader.nextString();
+            } else if (name.equals("modified")) {
+                change.modified = reader.nextLong();
+            } else if (name.equals("device")) {
+                change.device = reader.nextString();
+            } else if (name.equals("deleted")) {
+                change.deleted = reader.nextBoolean();
+            } else if (name.equals("name")) {
+                change.name = reader.nextString();
+            } else if (name.equals("breed")) {
+                change.breed = reader.nextString();
+            } else if (name.equals("gender")) {
+                change.gender = reader.nextInt();
+            } else if (name.equals("weight")) {
+                change.weight = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return change;
+    }
+
+    private static void writeChange(JsonWriter writer, Change change) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(change.id);
+        writer.name("modified").value(change.modified);
+        writer.name("device").value(change.device);
+        writer.name("deleted").value(change.deleted);
+        if (!change.deleted) {
+            writer.name("name").value(change.name);
+            writer.name("breed").value(change.breed);
+            writer.name("gender").value(change.gender);
+            writer.name("weight").value(change.weight);
+        }
+        writer.endObject();
+    }
+
+    /** One write of a pet, as the registry keeps it */
+    static class Change {
+        String id;
+        long modified;
+        String device;
+        boolean deleted;
+        String name;
+        String breed;
+        int gender;
+        int weight;
+
+        boolean winsOver(Change other) {
+            if (device.equals(other.device)) return true;
+            if (modified != other.modified) return modified > other.modified;
+            return device.compareTo(other.device) > 0;
+        }
+    }
+}